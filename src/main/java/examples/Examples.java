@@ -4,7 +4,9 @@ import examples.models.Company;
 import examples.models.CompanyDetails;
 import examples.models.ExpandedCompany;
 import examples.repositories.CompanyRepository;
+import net.quicknatrepository.Predicate;
 import net.quicknatrepository.Repository;
+import net.quicknatrepository.UnitOfWork;
 
 import java.sql.Connection;
 import java.sql.ResultSet;
@@ -54,6 +56,20 @@ public class Examples {
         repository.deleteById(cn, newCompany.getId());
 
 
+        // unit of work example (a company and its details saved in one transaction, details first)
+
+        CompanyDetails details = new CompanyDetails();
+        details.setId("details-1");
+        Company companyWithDetails = new Company("HelloDetailsCompany", "Rome");
+        companyWithDetails.setDetailsId(details.getId());
+
+        int savedRows = new UnitOfWork()
+                .dependsOn(repository, companyDetailsRepository)
+                .insert(repository, companyWithDetails)
+                .insert(companyDetailsRepository, details)
+                .flush(cn);
+
+
         // Read number of elements
 
         Long numberOfCompanies = repository.getTotalElements(cn);
@@ -133,6 +149,22 @@ public class Examples {
         List<Company> companiesWherePage = repository.readWhere(cn, "city = 'London' OR city = 'Manchester'", new Repository.Pageable(0L,10L,"companyName", "desc")); // Read fist page (10 elements for page) of companies where city is London or Manchester sorted by name
 
 
+        // readWhere (predicate) examples
+
+        Predicate londonOrManchester = Predicate.in("city", Arrays.asList("London", "Manchester"));
+
+        List<Company> companiesMatching = repository.readWhere(cn, londonOrManchester); // Read all companies where city is London or Manchester, with bound values
+
+        List<Company> companiesMatchingPage = repository.readWhere(cn, londonOrManchester.and(Predicate.like("companyName", "Hello%")), new Repository.Pageable(0L,10L,"companyName", "desc")); // Read fist page of companies matching both conditions
+
+        Long numberOfCompaniesMatching = repository.getTotalElementsWhere(cn, londonOrManchester);
+
+
+        // association example (all the details of the companies read with chunked IN queries, instead of one readById per company)
+
+        companyDetailsRepository.attachOne(cn, repository, companies, "detailsId", "id", Company::setDetails);
+
+
         // readByQuery examples
 
         List<Company> companyList1 = repository.readByQuery(cn, "SELECT * FROM companies WHERE city = ?;", "Rome");
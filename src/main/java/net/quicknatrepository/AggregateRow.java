@@ -0,0 +1,101 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.quicknatrepository;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Map;
+
+/**
+ * AggregateRow class, one row of an aggregate query: the grouping field values and the aggregates, by name.
+ * The rows of a query share the name index, so each row only holds its values.
+ */
+public final class AggregateRow {
+
+    private final Map<String, Integer> indexes;   // The name -> value index map, shared by the rows of a query
+    private final Object[] values;                // The values, by index
+
+    AggregateRow(Map<String, Integer> indexes, Object[] values) {
+        this.indexes = indexes;
+        this.values = values;
+    }
+
+    /**
+     * Get a value
+     * @param name The grouping field name or the aggregate result name
+     * @return The value (null if SQL NULL, e.g. the sum of no rows)
+     */
+    public Object get(String name) {
+        Integer index = indexes.get(name);
+        if (index == null) throw new IllegalArgumentException("Unknown aggregation result name: " + name);
+        return values[index];
+    }
+
+    /**
+     * Get a value of a given type
+     * @param name The grouping field name or the aggregate result name
+     * @param type The type
+     * @param <V> The type of the value
+     * @return The value (null if SQL NULL)
+     */
+    public <V> V get(String name, Class<V> type) {
+        return type.cast(get(name));
+    }
+
+    /**
+     * Get a numeric value as long
+     * @param name The aggregate result name
+     * @return The value (0 if SQL NULL)
+     */
+    public long getLong(String name) {
+        Object value = get(name);
+        return value == null ? 0L : ((Number) value).longValue();
+    }
+
+    /**
+     * Get a numeric value as double
+     * @param name The aggregate result name
+     * @return The value (0 if SQL NULL)
+     */
+    public double getDouble(String name) {
+        Object value = get(name);
+        return value == null ? 0.0 : ((Number) value).doubleValue();
+    }
+
+    /**
+     * Get a numeric value as BigDecimal, without loss of precision
+     * @param name The aggregate result name
+     * @return The value (null if SQL NULL)
+     */
+    public BigDecimal getBigDecimal(String name) {
+        Object value = get(name);
+        if (value == null || value instanceof BigDecimal) return (BigDecimal) value;
+        if (value instanceof Double || value instanceof Float) return BigDecimal.valueOf(((Number) value).doubleValue());
+        if (value instanceof BigInteger) return new BigDecimal((BigInteger) value);
+        return BigDecimal.valueOf(((Number) value).longValue());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (Map.Entry<String, Integer> entry : indexes.entrySet()) {
+            if (builder.length() > 1) builder.append(", ");
+            builder.append(entry.getKey()).append('=').append(values[entry.getValue()]);
+        } return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.quicknatrepository;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Aggregation class, the aggregate functions and the grouping of an aggregate query, built on entity field names.
+ * The query runs in the database, so only one row per group is transferred (see Repository.aggregate).
+ * <pre>
+ * Aggregation aggregation = new Aggregation()
+ *         .groupBy("city")
+ *         .count("companies")
+ *         .sum("employees", "totalEmployees")
+ *         .avg("revenue", "averageRevenue");
+ * </pre>
+ */
+public final class Aggregation {
+
+    private static class Measure {
+        private final String function;     // The function, e.g. "SUM", "COUNT DISTINCT"
+        private final String fieldName;    // The field name (null for COUNT(*))
+        private final String alias;        // The result name
+
+        private Measure(String function, String fieldName, String alias) {
+            this.function = function;
+            this.fieldName = fieldName;
+            this.alias = alias;
+        }
+    }
+
+    private final List<String> groupFieldNames = new ArrayList<>(); // The grouping field names
+    private final List<Measure> measures = new ArrayList<>();       // The aggregate functions
+    private final Set<String> names = new HashSet<>();              // The result names already used
+
+    // Grouping
+
+    /**
+     * Group the rows by fields (the field values are returned with the aggregates, under the field names)
+     * @param fieldNames The field names
+     * @return This aggregation
+     */
+    public Aggregation groupBy(String... fieldNames) {
+        for (String fieldName : fieldNames) {
+            addName(fieldName);
+            groupFieldNames.add(fieldName);
+        } return this;
+    }
+
+    // Aggregate functions
+
+    /**
+     * Count the rows
+     * @param alias The result name
+     * @return This aggregation
+     */
+    public Aggregation count(String alias) {
+        return measure("COUNT", null, alias);
+    }
+
+    /**
+     * Count the distinct non null values of a field
+     * @param fieldName The field name
+     * @param alias The result name
+     * @return This aggregation
+     */
+    public Aggregation countDistinct(String fieldName, String alias) {
+        return measure("COUNT DISTINCT", Objects.requireNonNull(fieldName), alias);
+    }
+
+    /**
+     * Sum the values of a field
+     * @param fieldName The field name
+     * @param alias The result name
+     * @return This aggregation
+     */
+    public Aggregation sum(String fieldName, String alias) {
+        return measure("SUM", Objects.requireNonNull(fieldName), alias);
+    }
+
+    /**
+     * Average the values of a field
+     * @param fieldName The field name
+     * @param alias The result name
+     * @return This aggregation
+     */
+    public Aggregation avg(String fieldName, String alias) {
+        return measure("AVG", Objects.requireNonNull(fieldName), alias);
+    }
+
+    /**
+     * Get the smallest value of a field (returned with the type of the field)
+     * @param fieldName The field name
+     * @param alias The result name
+     * @return This aggregation
+     */
+    public Aggregation min(String fieldName, String alias) {
+        return measure("MIN", Objects.requireNonNull(fieldName), alias);
+    }
+
+    /**
+     * Get the largest value of a field (returned with the type of the field)
+     * @param fieldName The field name
+     * @param alias The result name
+     * @return This aggregation
+     */
+    public Aggregation max(String fieldName, String alias) {
+        return measure("MAX", Objects.requireNonNull(fieldName), alias);
+    }
+
+    // Package methods
+
+    List<String> getGroupFieldNames() {
+        return groupFieldNames;
+    }
+
+    int getMeasureCount() {
+        return measures.size();
+    }
+
+    String getFunction(int index) {
+        return measures.get(index).function;
+    }
+
+    String getFieldName(int index) {
+        return measures.get(index).fieldName;
+    }
+
+    String getAlias(int index) {
+        return measures.get(index).alias;
+    }
+
+    String toSelectSql(Function<String, String> columnResolver) {
+        if (measures.isEmpty()) throw new IllegalStateException("The aggregation has no aggregate function");
+        StringJoiner joiner = new StringJoiner(",");
+        for (String fieldName : groupFieldNames) {
+            joiner.add(columnResolver.apply(fieldName));
+        }
+        for (int i = 0; i < measures.size(); i++) {
+            Measure measure = measures.get(i);
+            String argument;
+            if (measure.fieldName == null) argument = "*";
+            else if (measure.function.equals("COUNT DISTINCT")) argument = "DISTINCT " + columnResolver.apply(measure.fieldName);
+            else argument = columnResolver.apply(measure.fieldName);
+            String function = measure.function.equals("COUNT DISTINCT") ? "COUNT" : measure.function;
+            // Positional aliases, since the result names may not be valid SQL identifiers
+            joiner.add(function + "(" + argument + ") AS a" + i);
+        } return joiner.toString();
+    }
+
+    String toGroupBySql(Function<String, String> columnResolver) {
+        StringJoiner joiner = new StringJoiner(",");
+        for (String fieldName : groupFieldNames) {
+            joiner.add(columnResolver.apply(fieldName));
+        } return joiner.toString();
+    }
+
+    // Private methods
+
+    private Aggregation measure(String function, String fieldName, String alias) {
+        addName(alias);
+        measures.add(new Measure(function, fieldName, alias));
+        return this;
+    }
+
+    private void addName(String name) {
+        if (!names.add(Objects.requireNonNull(name))) throw new IllegalArgumentException("Duplicate aggregation result name: " + name);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import java.util.List;
+
+/**
+ * ChangeBatch class, a batch of entities changed since a watermark, returned by Repository.readChangedSince.
+ * Batches are ordered by change column and public key, so reading again from the new watermark returns the
+ * following changes without skipping or repeating rows, even when many rows share the same change value.
+ * @param <T> The type of the entity
+ */
+public final class ChangeBatch<T> {
+
+    /**
+     * Watermark class, the position of the last change read: its change value and public key.
+     * Store it (e.g. getValue and getId) to resume the synchronization later.
+     */
+    public static final class Watermark {
+
+        private final Object value;     // The change value of the last row read (null to read from the start)
+        private final Object id;        // The public key of the last row read (null to read all the rows with the change value greater than value)
+
+        /**
+         * Constructor
+         * @param value The change value of the last row read (null to read from the start)
+         * @param id The public key of the last row read (null to read all the rows with a greater change value)
+         */
+        public Watermark(Object value, Object id) {
+            this.value = value;
+            this.id = id;
+        }
+
+        /**
+         * Get the watermark reading from the start
+         * @return The watermark
+         */
+        public static Watermark initial() {
+            return new Watermark(null, null);
+        }
+
+        /**
+         * Get the watermark reading the rows with a change value greater than the given one
+         * @param value The change value, e.g. the time of the last synchronization
+         * @return The watermark
+         */
+        public static Watermark after(Object value) {
+            return new Watermark(value, null);
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        public Object getId() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return "Watermark{value=" + value + ", id=" + id + "}";
+        }
+    }
+
+    private final List<T> entities;         // The changed entities
+    private final Watermark watermark;      // The watermark after the last entity (the given one if there are none)
+    private final boolean hasMore;          // The batch is full, so more changes may follow
+
+    ChangeBatch(List<T> entities, Watermark watermark, boolean hasMore) {
+        this.entities = entities;
+        this.watermark = watermark;
+        this.hasMore = hasMore;
+    }
+
+    /**
+     * Get the changed entities, ordered by change value and public key
+     * @return The entities
+     */
+    public List<T> getEntities() {
+        return entities;
+    }
+
+    /**
+     * Get the watermark to read the next batch from
+     * @return The watermark
+     */
+    public Watermark getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Check whether the batch is full, so more changes may follow
+     * @return True if the next batch should be read right away
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+}
@@ -0,0 +1,731 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * ConnectionPool class, a small JDBC connection pool usable as the DataSource of the repository APIs.
+ * Idle connections are kept in a lock-free deque and reused most recently returned first; a fair semaphore bounds
+ * the connections in use, so borrowers wait (up to the connection timeout) only when the pool is exhausted.
+ * <ul>
+ *     <li>A connection idle for longer than the validation interval is validated (Connection.isValid) before being lent.</li>
+ *     <li>A connection older than the maximum lifetime is closed when it is returned or found idle.</li>
+ *     <li>With leak detection, a connection borrowed for longer than the threshold is reported with the stack trace of its borrower.</li>
+ *     <li>Each connection caches its prepared statements: statements closed by the caller, or left open when the
+ *     connection is returned, are reused by the next prepareStatement with the same SQL. The cache is not synchronized:
+ *     as with any JDBC connection, a borrowed connection and its statements must be used by one thread at a time.</li>
+ * </ul>
+ * <pre>
+ * ConnectionPool pool = new ConnectionPool("jdbc:mysql://localhost/db", "user", "pass")
+ *         .setMaxSize(20)
+ *         .setLeakDetectionMillis(60000);
+ * try (Connection connection = pool.getConnection()) {
+ *     List&lt;Company&gt; companies = repository.read(connection);
+ * }
+ * </pre>
+ */
+public class ConnectionPool implements DataSource, AutoCloseable {
+
+    /**
+     * ConnectionFactory interface, the source of the physical connections
+     */
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private final ConnectionFactory factory;                                        // The physical connection factory
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();  // The idle connections
+    private final Set<PooledConnection> borrowed = Collections.newSetFromMap(new java.util.concurrent.ConcurrentHashMap<>()); // The borrowed connections
+    private final AtomicInteger totalConnections = new AtomicInteger();            // The open physical connections
+    private volatile Semaphore permits;                                             // The permits to borrow (created on first use)
+    private volatile boolean closed;                                                // The pool is closed
+
+    private int maxSize = 10;                               // The maximum number of connections
+    private long connectionTimeoutMillis = 30000;           // The maximum wait for a connection
+    private long validationIntervalMillis = 1000;           // The idle time after which a connection is validated
+    private int validationTimeoutSeconds = 5;               // The timeout of Connection.isValid
+    private long maxLifetimeMillis = 1800000;               // The maximum lifetime of a connection (0 for no limit)
+    private long leakDetectionMillis = 0;                   // The leak detection threshold (0 to disable it)
+    private int statementCacheSize = 64;                    // The prepared statements cached by each connection (0 to disable it)
+    private Consumer<Throwable> leakReporter = Throwable::printStackTrace;   // The leak reporter
+    private ScheduledExecutorService leakDetector;          // The leak detection thread (null if disabled)
+
+    private final AtomicLong borrowCount = new AtomicLong();        // The connections borrowed
+    private final AtomicLong timeoutCount = new AtomicLong();       // The borrows timed out
+    private final AtomicLong totalWaitNanos = new AtomicLong();     // The total wait for a connection
+    private final AtomicLong maxWaitNanos = new AtomicLong();       // The maximum wait for a connection
+    private final AtomicLong statementHits = new AtomicLong();      // The prepared statements found in the cache
+    private final AtomicLong statementMisses = new AtomicLong();    // The prepared statements created
+    private final AtomicLong leakCount = new AtomicLong();          // The leaks reported
+
+    private PrintWriter logWriter;
+    private int loginTimeout;
+
+    /**
+     * Constructor, creating the connections with DriverManager
+     * @param url The JDBC url
+     * @param user The user
+     * @param password The password
+     */
+    public ConnectionPool(String url, String user, String password) {
+        this(() -> DriverManager.getConnection(url, user, password));
+    }
+
+    /**
+     * Constructor, creating the connections with a non pooled data source
+     * @param dataSource The data source
+     */
+    public ConnectionPool(DataSource dataSource) {
+        this(dataSource::getConnection);
+    }
+
+    /**
+     * Constructor
+     * @param factory The connection factory
+     */
+    public ConnectionPool(ConnectionFactory factory) {
+        this.factory = factory;
+    }
+
+    // Setters (to be called before the first connection is borrowed: afterwards they throw IllegalStateException)
+
+    /**
+     * Set the maximum number of connections (10 by default)
+     * @param maxSize The maximum number of connections
+     * @return This pool
+     * @throws IllegalStateException If a connection was already borrowed
+     */
+    public synchronized ConnectionPool setMaxSize(int maxSize) {
+        checkNotStarted();
+        if (maxSize <= 0) throw new IllegalArgumentException("The maximum size must be positive: " + maxSize);
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Set the maximum wait for a connection when the pool is exhausted (30 seconds by default)
+     * @param connectionTimeoutMillis The timeout in milliseconds
+     * @return This pool
+     * @throws IllegalStateException If a connection was already borrowed
+     */
+    public synchronized ConnectionPool setConnectionTimeoutMillis(long connectionTimeoutMillis) {
+        checkNotStarted();
+        this.connectionTimeoutMillis = connectionTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Set the idle time after which a connection is validated before being lent (1 second by default)
+     * @param validationIntervalMillis The idle time in milliseconds
+     * @return This pool
+     * @throws IllegalStateException If a connection was already borrowed
+     */
+    public synchronized ConnectionPool setValidationIntervalMillis(long validationIntervalMillis) {
+        checkNotStarted();
+        this.validationIntervalMillis = validationIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Set the maximum lifetime of a connection (30 minutes by default)
+     * @param maxLifetimeMillis The lifetime in milliseconds (0 for no limit)
+     * @return This pool
+     * @throws IllegalStateException If a connection was already borrowed
+     */
+    public synchronized ConnectionPool setMaxLifetimeMillis(long maxLifetimeMillis) {
+        checkNotStarted();
+        this.maxLifetimeMillis = maxLifetimeMillis;
+        return this;
+    }
+
+    /**
+     * Set the leak detection threshold: a connection borrowed for longer is reported (disabled by default)
+     * @param leakDetectionMillis The threshold in milliseconds (0 to disable it)
+     * @return This pool
+     * @throws IllegalStateException If a connection was already borrowed
+     */
+    public synchronized ConnectionPool setLeakDetectionMillis(long leakDetectionMillis) {
+        checkNotStarted();
+        this.leakDetectionMillis = leakDetectionMillis;
+        return this;
+    }
+
+    /**
+     * Set the leak reporter (printing the stack trace by default)
+     * @param leakReporter The reporter, receiving an exception with the stack trace of the borrower
+     * @return This pool
+     * @throws IllegalStateException If a connection was already borrowed
+     */
+    public synchronized ConnectionPool setLeakReporter(Consumer<Throwable> leakReporter) {
+        checkNotStarted();
+        this.leakReporter = leakReporter;
+        return this;
+    }
+
+    /**
+     * Set the number of prepared statements cached by each connection (64 by default)
+     * @param statementCacheSize The number of statements (0 to disable the cache)
+     * @return This pool
+     * @throws IllegalStateException If a connection was already borrowed
+     */
+    public synchronized ConnectionPool setStatementCacheSize(int statementCacheSize) {
+        checkNotStarted();
+        this.statementCacheSize = statementCacheSize;
+        return this;
+    }
+
+    // DataSource methods
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) throw new SQLException("The connection pool is closed", "08003");
+        Semaphore semaphore = permits();
+        long start = System.nanoTime();
+        try {
+            if (!semaphore.tryAcquire(connectionTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new SQLTransientConnectionException("No connection available within " + connectionTimeoutMillis + " ms " +
+                        "(" + borrowed.size() + " in use of " + maxSize + ")", "08001");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", "08001", e);
+        }
+        recordWait(System.nanoTime() - start);
+        try {
+            PooledConnection pooled = takeIdle();
+            if (pooled == null) pooled = open();
+            pooled.borrow(leakDetectionMillis > 0 ? new Throwable("Connection borrowed here") : null);
+            borrowed.add(pooled);
+            borrowCount.incrementAndGet();
+            return pooled.proxy();
+        } catch (SQLException | RuntimeException e) {
+            semaphore.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The connection pool uses the credentials it was created with");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return logWriter;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        this.logWriter = out;
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+        this.loginTimeout = seconds;
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return loginTimeout;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <I> I unwrap(Class<I> iface) throws SQLException {
+        if (iface.isInstance(this)) return iface.cast(this);
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    /**
+     * Close the idle connections and the pool: borrowed connections are closed when they are returned
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (leakDetector != null) leakDetector.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.poll()) != null) pooled.closePhysical();
+    }
+
+    // Metrics
+
+    /**
+     * Get the number of open physical connections
+     * @return The number of connections
+     */
+    public int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    /**
+     * Get the number of borrowed connections
+     * @return The number of connections
+     */
+    public int getActiveConnections() {
+        return borrowed.size();
+    }
+
+    /**
+     * Get the number of idle connections
+     * @return The number of connections
+     */
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    /**
+     * Get the number of connections borrowed since the creation of the pool
+     * @return The number of borrows
+     */
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /**
+     * Get the number of borrows that timed out waiting for a connection
+     * @return The number of timeouts
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * Get the total time spent waiting for a connection
+     * @return The time in nanoseconds
+     */
+    public long getTotalWaitNanos() {
+        return totalWaitNanos.get();
+    }
+
+    /**
+     * Get the longest wait for a connection
+     * @return The time in nanoseconds
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * Get the number of prepared statements reused from the statement cache
+     * @return The number of hits
+     */
+    public long getStatementCacheHits() {
+        return statementHits.get();
+    }
+
+    /**
+     * Get the number of prepared statements created
+     * @return The number of misses
+     */
+    public long getStatementCacheMisses() {
+        return statementMisses.get();
+    }
+
+    /**
+     * Get the number of leaks reported
+     * @return The number of leaks
+     */
+    public long getLeakCount() {
+        return leakCount.get();
+    }
+
+    // Private methods
+
+    private void checkNotStarted() {
+        if (permits != null) throw new IllegalStateException("The pool settings cannot be changed after the first connection is borrowed");
+    }
+
+    private Semaphore permits() {
+        Semaphore semaphore = permits;
+        if (semaphore == null) {
+            synchronized (this) {
+                if (permits == null) {
+                    permits = new Semaphore(maxSize, true);
+                    if (leakDetectionMillis > 0) startLeakDetector();
+                }
+                semaphore = permits;
+            }
+        } return semaphore;
+    }
+
+    private void recordWait(long nanos) {
+        totalWaitNanos.addAndGet(nanos);
+        long max;
+        do {
+            max = maxWaitNanos.get();
+        } while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos));
+    }
+
+    private PooledConnection takeIdle() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            long now = System.currentTimeMillis();
+            if (pooled.isExpired(now)) {
+                pooled.closePhysical();
+            } else if (now - pooled.returnedAt >= validationIntervalMillis && !pooled.isValid()) {
+                pooled.closePhysical();
+            } else {
+                return pooled;
+            }
+        } return null;
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection physical = factory.create();
+        totalConnections.incrementAndGet();
+        return new PooledConnection(physical);
+    }
+
+    private void giveBack(PooledConnection pooled) {
+        borrowed.remove(pooled);
+        try {
+            if (closed || pooled.isExpired(System.currentTimeMillis()) || !pooled.reset()) {
+                pooled.closePhysical();
+            } else {
+                idle.addFirst(pooled);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void startLeakDetector() {
+        leakDetector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-leak-detector");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(leakDetectionMillis / 2, 10);
+        leakDetector.scheduleAtFixedRate(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void detectLeaks() {
+        long now = System.currentTimeMillis();
+        for (PooledConnection pooled : borrowed) {
+            Throwable borrower = pooled.borrower;
+            if (borrower != null && !pooled.leakReported && now - pooled.borrowedAt > leakDetectionMillis) {
+                pooled.leakReported = true;
+                leakCount.incrementAndGet();
+                Throwable leak = new Throwable("Connection borrowed for more than " + leakDetectionMillis + " ms, possible leak");
+                leak.setStackTrace(borrower.getStackTrace());
+                leakReporter.accept(leak);
+            }
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Private classes
+
+    /**
+     * A physical connection with its pool state and statement cache
+     */
+    private final class PooledConnection {
+        private final Connection physical;
+        private final long createdAt = System.currentTimeMillis();
+        private final Map<String, PreparedStatement> statementCache = new LinkedHashMap<>(16, 0.75f, true);   // Idle statements (LRU, used by the borrower thread only)
+        private final List<CachedStatement> openStatements = new ArrayList<>();    // Statements lent during the current borrow
+        private volatile long borrowedAt;
+        private volatile long returnedAt = System.currentTimeMillis();
+        private volatile Throwable borrower;
+        private volatile boolean leakReported;
+        private LogicalConnection current;
+        private final int defaultIsolation;         // The settings of the new connection, restored when it is returned
+        private final int defaultHoldability;
+        private final String defaultCatalog;
+        private final String defaultSchema;
+
+        private PooledConnection(Connection physical) throws SQLException {
+            this.physical = physical;
+            this.defaultIsolation = physical.getTransactionIsolation();
+            this.defaultHoldability = physical.getHoldability();
+            this.defaultCatalog = physical.getCatalog();
+            this.defaultSchema = schemaOf(physical);
+        }
+
+        private void borrow(Throwable borrower) {
+            this.borrowedAt = System.currentTimeMillis();
+            this.borrower = borrower;
+            this.leakReported = false;
+            this.current = new LogicalConnection(this);
+        }
+
+        private Connection proxy() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, current);
+        }
+
+        private boolean isExpired(long now) {
+            return maxLifetimeMillis > 0 && now - createdAt >= maxLifetimeMillis;
+        }
+
+        private boolean isValid() {
+            try {
+                return physical.isValid(validationTimeoutSeconds);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        private boolean reset() {
+            try {
+                // The statements left open by the borrower go back to the cache
+                for (CachedStatement statement : new ArrayList<>(openStatements)) statement.release();
+                openStatements.clear();
+                if (!physical.getAutoCommit()) {
+                    physical.rollback();
+                    physical.setAutoCommit(true);
+                }
+                if (physical.isReadOnly()) physical.setReadOnly(false);
+                if (physical.getTransactionIsolation() != defaultIsolation) physical.setTransactionIsolation(defaultIsolation);
+                if (physical.getHoldability() != defaultHoldability) physical.setHoldability(defaultHoldability);
+                if (defaultCatalog != null && !defaultCatalog.equals(physical.getCatalog())) physical.setCatalog(defaultCatalog);
+                if (defaultSchema != null && !defaultSchema.equals(schemaOf(physical))) physical.setSchema(defaultSchema);
+                physical.clearWarnings();
+                returnedAt = System.currentTimeMillis();
+                borrower = null;
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        private PreparedStatement prepare(LogicalConnection owner, String sql, Integer autoGeneratedKeys) throws SQLException {
+            if (statementCacheSize <= 0) {
+                return autoGeneratedKeys == null ? physical.prepareStatement(sql) : physical.prepareStatement(sql, autoGeneratedKeys);
+            }
+            String key = autoGeneratedKeys == null ? sql : autoGeneratedKeys + ":" + sql;
+            PreparedStatement statement = statementCache.remove(key);
+            if (statement != null) {
+                statementHits.incrementAndGet();
+            } else {
+                statementMisses.incrementAndGet();
+                statement = autoGeneratedKeys == null ? physical.prepareStatement(sql) : physical.prepareStatement(sql, autoGeneratedKeys);
+            }
+            CachedStatement cached;
+            try {
+                cached = new CachedStatement(this, owner, key, statement);
+            } catch (SQLException e) {
+                closeQuietly(statement);
+                throw e;
+            }
+            openStatements.add(cached);
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, cached);
+        }
+
+        private void cache(String key, PreparedStatement statement) {
+            PreparedStatement previous = statementCache.put(key, statement);
+            if (previous != null) closeQuietly(previous);
+            if (statementCache.size() > statementCacheSize) {
+                Iterator<PreparedStatement> eldest = statementCache.values().iterator();
+                closeQuietly(eldest.next());
+                eldest.remove();
+            }
+        }
+
+        private void closePhysical() {
+            for (PreparedStatement statement : statementCache.values()) closeQuietly(statement);
+            statementCache.clear();
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                // The connection is discarded anyway
+            } finally {
+                totalConnections.decrementAndGet();
+            }
+        }
+
+        private void closeQuietly(Statement statement) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // The statement is discarded anyway
+            }
+        }
+
+        private String schemaOf(Connection connection) {
+            try {
+                return connection.getSchema();
+            } catch (SQLException | AbstractMethodError e) {
+                // Drivers older than JDBC 4.1
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The connection handed to a borrower: closing it returns the physical connection to the pool
+     */
+    private final class LogicalConnection implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean closed;
+
+        private LogicalConnection(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        giveBack(pooled);
+                        QueryCache.endTransaction((Connection) proxy);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + pooled.physical;
+                default:
+            }
+            if (closed) throw new SQLException("The connection is closed", "08003");
+            if (method.getName().equals("prepareStatement") && args.length == 1) {
+                return pooled.prepare(this, (String) args[0], null);
+            }
+            if (method.getName().equals("prepareStatement") && args.length == 2 && method.getParameterTypes()[1] == int.class) {
+                return pooled.prepare(this, (String) args[0], (Integer) args[1]);
+            }
+            Object result = ConnectionPool.invoke(pooled.physical, method, args);
+            if (endsTransaction(method, args)) QueryCache.endTransaction((Connection) proxy);
+            return result;
+        }
+
+        private boolean endsTransaction(Method method, Object[] args) {
+            switch (method.getName()) {
+                case "commit":
+                    return true;
+                case "rollback":
+                    return args == null || args.length == 0;
+                case "setAutoCommit":
+                    // Enabling auto-commit commits the open transaction
+                    return Boolean.TRUE.equals(args[0]);
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * A prepared statement lent from the cache: closing it returns it to the cache
+     */
+    private static final class CachedStatement implements InvocationHandler {
+        private final PooledConnection pooled;
+        private final LogicalConnection owner;
+        private final String key;
+        private final PreparedStatement statement;
+        private final int defaultFetchSize;         // The settings of the statement when lent, restored when it is released
+        private final int defaultFetchDirection;
+        private final int defaultMaxRows;
+        private final int defaultQueryTimeout;
+        private boolean closed;
+
+        private CachedStatement(PooledConnection pooled, LogicalConnection owner, String key, PreparedStatement statement) throws SQLException {
+            this.pooled = pooled;
+            this.owner = owner;
+            this.key = key;
+            this.statement = statement;
+            // A cached statement was reset when released, so these are the settings it was created with
+            this.defaultFetchSize = statement.getFetchSize();
+            this.defaultFetchDirection = statement.getFetchDirection();
+            this.defaultMaxRows = statement.getMaxRows();
+            this.defaultQueryTimeout = statement.getQueryTimeout();
+        }
+
+        private void release() {
+            if (closed) return;
+            closed = true;
+            pooled.openStatements.remove(this);
+            try {
+                ResultSet resultSet = statement.getResultSet();
+                if (resultSet != null) resultSet.close();
+                statement.clearParameters();
+                statement.clearBatch();
+                // e.g. a streaming fetch size must not leak into the next read of the same SQL
+                // (max rows first: some drivers reject a fetch size larger than it)
+                if (statement.getMaxRows() != defaultMaxRows) statement.setMaxRows(defaultMaxRows);
+                if (statement.getFetchSize() != defaultFetchSize) statement.setFetchSize(defaultFetchSize);
+                if (statement.getFetchDirection() != defaultFetchDirection) statement.setFetchDirection(defaultFetchDirection);
+                if (statement.getQueryTimeout() != defaultQueryTimeout) statement.setQueryTimeout(defaultQueryTimeout);
+                pooled.cache(key, statement);
+            } catch (SQLException e) {
+                pooled.closeQuietly(statement);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    release();
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getConnection":
+                    if (closed) throw new SQLException("The statement is closed");
+                    return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, owner);
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return statement.toString();
+                default:
+            }
+            if (closed) throw new SQLException("The statement is closed");
+            return ConnectionPool.invoke(statement, method, args);
+        }
+    }
+}
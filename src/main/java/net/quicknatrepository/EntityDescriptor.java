@@ -0,0 +1,345 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import javax.persistence.*;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * EntityDescriptor class, the immutable mapping metadata of an entity class.
+ * The reflection scan runs once per class: descriptors are kept in a class-keyed registry and shared by all the
+ * repositories of the same entity.
+ * @param <T> The type of the entity
+ */
+final class EntityDescriptor<T> {
+
+    private final static Map<Class<?>, EntityDescriptor<?>> REGISTRY = new ConcurrentHashMap<>();
+
+    private final Class<T> typeClass;                                   // The type class of the entity
+    private final String tableName;                                     // The table name of the entity
+    private final String publicKeyColumnName;                           // The public key column name (null if none)
+    private final int publicKeyColumnIndex;                             // The public key column index (-1 if none)
+    private final boolean autoIncrement;                                // The public key is autoincrement
+    private final boolean uuidKey;                                      // The public key is a UUID generated before insert
+    private final int versionColumnIndex;                               // The @Version column index (-1 if none)
+    private final String columnNamesString;                             // The column names string
+
+    private final String[] columnNames;                                 // The column names, by column index
+    private final String[] fieldNames;                                  // The field names, by column index
+    private final Field[] fields;                                       // The fields, by column index
+    private final int[] typeCodes;                                      // The java.sql.Types codes, by column index
+    private final List<String> columnNameList;                          // The column names (unmodifiable)
+    private final Map<String, String> fieldColumnNames;                 // The field name -> column name map
+    private final Map<String, String> columnFieldNames;                 // The column name -> field name map
+    private final Map<String, Integer> columnIndexes;                   // The column name -> column index map
+    private final Map<String, BiConsumer<T, Object>> defaultSetters;    // The default setters (column name -> setter), expecting converted values
+    private final Map<String, Function<T, Object>> defaultGetters;      // The default getters (column name -> getter)
+    private final Supplier<T> factory;                                  // The no-arg constructor factory (null if none)
+
+    private EntityDescriptor(Class<T> typeClass) {
+        this.typeClass = typeClass;
+        if (typeClass.isAnnotationPresent(Table.class)){
+            String annotationTableName = typeClass.getAnnotation(Table.class).name();
+            this.tableName = !annotationTableName.isEmpty() ? annotationTableName : typeClass.getSimpleName();
+        } else if (typeClass.isAnnotationPresent(Entity.class)){
+            String annotationTableName = typeClass.getAnnotation(Entity.class).name();
+            this.tableName = !annotationTableName.isEmpty() ? annotationTableName : typeClass.getSimpleName();
+        }  else {
+            this.tableName = typeClass.getSimpleName();
+        }
+
+        List<Field> mappedFields = new ArrayList<>();
+        List<String> mappedColumns = new ArrayList<>();
+        String publicKeyColumnName = null;
+        int publicKeyColumnIndex = -1;
+        boolean autoIncrement = false;
+        boolean uuidKey = false;
+        int versionColumnIndex = -1;
+
+        for (Field field : typeClass.getDeclaredFields()){
+            String columnName = "";
+
+            if (field.isAnnotationPresent(Column.class)){
+                columnName = field.getAnnotation(Column.class).name().isEmpty() ?
+                        field.getName() : field.getAnnotation(Column.class).name();
+            }
+
+            if (field.isAnnotationPresent(Id.class)){
+
+                if (columnName.isEmpty()){
+                    columnName = field.getName();
+                }
+
+                publicKeyColumnName = columnName;
+                publicKeyColumnIndex = mappedColumns.size();
+
+                if (field.isAnnotationPresent(GeneratedValue.class) && field.getType().equals(UUID.class)){
+                    // UUID keys are generated client side (version 7), whatever the strategy
+                    uuidKey = true;
+                } else if (field.isAnnotationPresent(GeneratedValue.class) &&
+                        field.getAnnotation(GeneratedValue.class).strategy().equals(GenerationType.AUTO)){
+                    autoIncrement = true;
+                }
+            }
+
+            if (field.isAnnotationPresent(Version.class)){
+                Class<?> type = field.getType();
+                if (!(type == int.class || type == Integer.class || type == long.class || type == Long.class ||
+                        type == short.class || type == Short.class)) {
+                    throw new IllegalStateException("Unsupported @Version type " + type.getName() + " of " + typeClass.getName());
+                }
+                if (columnName.isEmpty()){
+                    columnName = field.getName();
+                }
+                versionColumnIndex = mappedColumns.size();
+            }
+
+            if (!columnName.isEmpty()){
+                mappedFields.add(field);
+                mappedColumns.add(columnName);
+            }
+        }
+
+        this.publicKeyColumnName = publicKeyColumnName;
+        this.publicKeyColumnIndex = publicKeyColumnIndex;
+        this.autoIncrement = autoIncrement;
+        this.uuidKey = uuidKey;
+        this.versionColumnIndex = versionColumnIndex;
+
+        int size = mappedColumns.size();
+        this.columnNames = mappedColumns.toArray(new String[0]);
+        this.fields = mappedFields.toArray(new Field[0]);
+        this.fieldNames = new String[size];
+        this.typeCodes = new int[size];
+        Map<String, String> fieldColumnNames = new LinkedHashMap<>();
+        Map<String, String> columnFieldNames = new HashMap<>();
+        Map<String, Integer> columnIndexes = new HashMap<>();
+        Map<String, BiConsumer<T, Object>> defaultSetters = new LinkedHashMap<>();
+        Map<String, Function<T, Object>> defaultGetters = new LinkedHashMap<>();
+
+        for (int i = 0; i < size; i++){
+            Field field = fields[i];
+            String columnName = columnNames[i];
+            fieldNames[i] = field.getName();
+            typeCodes[i] = typeCodeOf(field);
+            fieldColumnNames.put(field.getName(), columnName);
+            columnFieldNames.put(columnName, field.getName());
+            columnIndexes.put(columnName, i);
+            field.setAccessible(true);
+            defaultSetters.put(columnName, createSetter(field));
+            defaultGetters.put(columnName, createGetter(field));
+        }
+
+        this.columnNameList = Collections.unmodifiableList(Arrays.asList(columnNames));
+        this.fieldColumnNames = Collections.unmodifiableMap(fieldColumnNames);
+        this.columnFieldNames = Collections.unmodifiableMap(columnFieldNames);
+        this.columnIndexes = Collections.unmodifiableMap(columnIndexes);
+        this.defaultSetters = Collections.unmodifiableMap(defaultSetters);
+        this.defaultGetters = Collections.unmodifiableMap(defaultGetters);
+        this.columnNamesString = String.join(",", columnNames);
+        this.factory = createFactory(typeClass);
+    }
+
+    /**
+     * Get the descriptor of an entity class, scanning the class only the first time
+     * @param typeClass The type class
+     * @param <T> The type of the entity
+     * @return The descriptor
+     */
+    @SuppressWarnings("unchecked")
+    static <T> EntityDescriptor<T> of(Class<T> typeClass) {
+        return (EntityDescriptor<T>) REGISTRY.computeIfAbsent(typeClass, EntityDescriptor::new);
+    }
+
+    // Getters
+
+    Class<T> getTypeClass() {
+        return typeClass;
+    }
+
+    String getTableName() {
+        return tableName;
+    }
+
+    String getPublicKeyColumnName() {
+        return publicKeyColumnName;
+    }
+
+    int getPublicKeyColumnIndex() {
+        return publicKeyColumnIndex;
+    }
+
+    boolean isAutoIncrement() {
+        return autoIncrement;
+    }
+
+    boolean isUuidKey() {
+        return uuidKey;
+    }
+
+    int getVersionColumnIndex() {
+        return versionColumnIndex;
+    }
+
+    String getColumnNamesString() {
+        return columnNamesString;
+    }
+
+    int getColumnCount() {
+        return columnNames.length;
+    }
+
+    List<String> getColumnNames() {
+        return columnNameList;
+    }
+
+    String getColumnName(int index) {
+        return columnNames[index];
+    }
+
+    String getFieldName(int index) {
+        return fieldNames[index];
+    }
+
+    Field getField(int index) {
+        return fields[index];
+    }
+
+    int getTypeCode(int index) {
+        return typeCodes[index];
+    }
+
+    int getColumnIndex(String columnName) {
+        Integer index = columnIndexes.get(columnName);
+        return index == null ? -1 : index;
+    }
+
+    String getFieldColumnName(String fieldName) {
+        return fieldColumnNames.get(fieldName);
+    }
+
+    String getColumnFieldName(String columnName) {
+        return columnFieldNames.get(columnName);
+    }
+
+    Map<String, String> getFieldColumnNames() {
+        return fieldColumnNames;
+    }
+
+    Map<String, BiConsumer<T, Object>> getDefaultSetters() {
+        return defaultSetters;
+    }
+
+    Map<String, Function<T, Object>> getDefaultGetters() {
+        return defaultGetters;
+    }
+
+    Supplier<T> getFactory() {
+        return factory;
+    }
+
+    // Private methods
+
+    @SuppressWarnings("unchecked")
+    private static <T> Supplier<T> createFactory(Class<T> typeClass) {
+        if (Modifier.isAbstract(typeClass.getModifiers()) || typeClass.isInterface()) return null;
+        final Constructor<T> constructor;
+        try {
+            constructor = typeClass.getDeclaredConstructor();
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+        try {
+            // A Supplier spun by the LambdaMetafactory is invoked like a plain constructor call
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(typeClass, MethodHandles.lookup());
+            MethodHandle handle = lookup.findConstructor(typeClass, MethodType.methodType(void.class));
+            CallSite site = LambdaMetafactory.metafactory(lookup, "get", MethodType.methodType(Supplier.class),
+                    MethodType.methodType(Object.class), handle, MethodType.methodType(typeClass));
+            return (Supplier<T>) site.getTarget().invokeExact();
+        } catch (Throwable e) {
+            constructor.setAccessible(true);
+            return () -> {
+                try {
+                    return constructor.newInstance();
+                } catch (ReflectiveOperationException ex) {
+                    throw new IllegalStateException("Cannot instantiate " + typeClass.getName(), ex);
+                }
+            };
+        }
+    }
+
+    private static int typeCodeOf(Field field) {
+        Class<?> type = field.getType();
+        if (type.isEnum() && field.isAnnotationPresent(Enumerated.class) &&
+                field.getAnnotation(Enumerated.class).value() == EnumType.ORDINAL) return Types.INTEGER;
+        if (type.equals(String.class) || type.isEnum()) return Types.VARCHAR;
+        if (type.equals(Integer.class) || type.equals(int.class)) return Types.INTEGER;
+        if (type.equals(Long.class) || type.equals(long.class)) return Types.BIGINT;
+        if (type.equals(Short.class) || type.equals(short.class)) return Types.SMALLINT;
+        if (type.equals(Byte.class) || type.equals(byte.class)) return Types.TINYINT;
+        if (type.equals(Boolean.class) || type.equals(boolean.class)) return Types.BOOLEAN;
+        if (type.equals(Double.class) || type.equals(double.class)) return Types.DOUBLE;
+        if (type.equals(Float.class) || type.equals(float.class)) return Types.REAL;
+        if (type.equals(BigDecimal.class)) return Types.DECIMAL;
+        if (type.equals(Date.class) || type.equals(LocalDate.class)) return Types.DATE;
+        if (type.equals(Timestamp.class) || type.equals(LocalDateTime.class)) return Types.TIMESTAMP;
+        if (type.equals(Instant.class)) return Types.TIMESTAMP;
+        if (type.equals(Time.class) || type.equals(LocalTime.class)) return Types.TIME;
+        if (type.equals(OffsetDateTime.class)) return Types.TIMESTAMP_WITH_TIMEZONE;
+        if (type.equals(byte[].class) || type.equals(UUID.class)) return Types.VARBINARY;
+        return Types.OTHER;
+    }
+
+    private static <T> BiConsumer<T, Object> createSetter(Field field) {
+        return (x, y) -> {
+            try {
+                field.set(x, y);
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            }
+        };
+    }
+
+    private static <T> Function<T, Object> createGetter(Field field) {
+        return (x) -> {
+            try {
+                return field.get(x);
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.quicknatrepository;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FetchConfig class, how many rows the driver transfers per round trip when a repository reads.
+ * <ul>
+ *     <li>DEFAULT keeps the driver default (MySQL Connector/J reads the whole result into memory)</li>
+ *     <li>streaming() sets the fetch size to Integer.MIN_VALUE, the MySQL row-by-row streaming mode; drivers rejecting
+ *     negative sizes (e.g. H2, PostgreSQL) get a fixed batch instead</li>
+ *     <li>of(fetchSize) reads the rows in batches (MySQL needs useCursorFetch=true on the URL for server side cursors,
+ *     PostgreSQL needs the connection not to be in auto-commit mode)</li>
+ *     <li>adaptive(targetBytes) chooses the batch from the average width of the rows read so far, so that each
+ *     round trip transfers about targetBytes</li>
+ * </ul>
+ * <pre>
+ * repository.setFetchConfig(FetchConfig.adaptive(1024 * 1024));
+ * </pre>
+ * A streaming result holds the connection until it is fully read: the connection cannot run other statements meanwhile.
+ */
+public final class FetchConfig {
+
+    /** The driver default */
+    public final static FetchConfig DEFAULT = new FetchConfig(0, 0);
+
+    public final static int STREAMING_FALLBACK_SIZE = 1000;    // The batch used when the driver rejects streaming
+    public final static int MIN_ADAPTIVE_SIZE = 10;            // The smallest adaptive batch
+    public final static int MAX_ADAPTIVE_SIZE = 10000;         // The largest adaptive batch
+    public final static int INITIAL_ADAPTIVE_SIZE = 100;       // The adaptive batch before any row is observed
+    final static int SAMPLED_ROWS = 32;                        // The rows observed per read
+
+    private final int fetchSize;                                // The fetch size (0 driver default, Integer.MIN_VALUE streaming)
+    private final long targetBytes;                             // The bytes per round trip (0 if not adaptive)
+    private final AtomicLong averageRowBytes = new AtomicLong(); // The moving average of the observed row width (0 if none)
+
+    private FetchConfig(int fetchSize, long targetBytes) {
+        this.fetchSize = fetchSize;
+        this.targetBytes = targetBytes;
+    }
+
+    /**
+     * Stream the rows one at a time (MySQL), or in batches of STREAMING_FALLBACK_SIZE on drivers without streaming
+     * @return The configuration
+     */
+    public static FetchConfig streaming() {
+        return new FetchConfig(Integer.MIN_VALUE, 0);
+    }
+
+    /**
+     * Read the rows in batches of a fixed size
+     * @param fetchSize The rows per round trip
+     * @return The configuration
+     */
+    public static FetchConfig of(int fetchSize) {
+        if (fetchSize <= 0) throw new IllegalArgumentException("The fetch size must be positive: " + fetchSize);
+        return new FetchConfig(fetchSize, 0);
+    }
+
+    /**
+     * Read the rows in batches sized from the observed row width. The configuration keeps its statistics, so it should
+     * be shared only by reads of rows of similar width (e.g. one per repository).
+     * @param targetBytes The bytes per round trip
+     * @return The configuration
+     */
+    public static FetchConfig adaptive(long targetBytes) {
+        if (targetBytes <= 0) throw new IllegalArgumentException("The target bytes must be positive: " + targetBytes);
+        return new FetchConfig(0, targetBytes);
+    }
+
+    // Getters
+
+    /**
+     * Check whether the rows are streamed
+     * @return True if streaming
+     */
+    public boolean isStreaming() {
+        return fetchSize == Integer.MIN_VALUE;
+    }
+
+    /**
+     * Check whether the fetch size is chosen from the observed row width
+     * @return True if adaptive
+     */
+    public boolean isAdaptive() {
+        return targetBytes > 0;
+    }
+
+    /**
+     * Get the fetch size the next read will use
+     * @return The fetch size (0 for the driver default, Integer.MIN_VALUE for streaming)
+     */
+    public int getFetchSize() {
+        if (!isAdaptive()) return fetchSize;
+        long rowBytes = averageRowBytes.get();
+        if (rowBytes == 0) return INITIAL_ADAPTIVE_SIZE;
+        return (int) Math.max(MIN_ADAPTIVE_SIZE, Math.min(MAX_ADAPTIVE_SIZE, targetBytes / rowBytes));
+    }
+
+    /**
+     * Get the average width of the observed rows
+     * @return The estimated bytes per row (0 if no row was observed or the configuration is not adaptive)
+     */
+    public long getAverageRowBytes() {
+        return averageRowBytes.get();
+    }
+
+    // Package methods
+
+    /**
+     * Set the fetch size of a statement
+     * @param statement The statement
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    void apply(PreparedStatement statement) throws SQLException {
+        int size = getFetchSize();
+        // DEFAULT sets 0 too, since a reused statement may keep the size of an earlier read
+        if (size != Integer.MIN_VALUE) {
+            statement.setFetchSize(size);
+            return;
+        }
+        try {
+            statement.setFetchSize(Integer.MIN_VALUE);
+        } catch (SQLException e) {
+            statement.setFetchSize(STREAMING_FALLBACK_SIZE);
+        }
+    }
+
+    /**
+     * Record the width of a row read
+     * @param rowBytes The estimated bytes of the row
+     */
+    void observe(long rowBytes) {
+        long bytes = Math.max(1, rowBytes);
+        // Exponential moving average (1/8 weight), seeded by the first row
+        averageRowBytes.accumulateAndGet(bytes, (average, row) -> average == 0 ? row : average + (row - average) / 8);
+    }
+
+    /**
+     * Estimate the bytes a column value takes on the wire
+     * @param value The value
+     * @return The estimated bytes
+     */
+    static long estimateBytes(Object value) {
+        if (value == null) return 1;
+        if (value instanceof CharSequence) return ((CharSequence) value).length() + 4L;
+        if (value instanceof byte[]) return ((byte[]) value).length + 4L;
+        return 8;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * HiLoIdGenerator class, a generator of numeric keys reserved in blocks from a sequence table.
+ * Each block costs one round trip to the sequence table, then its keys are handed out from memory.
+ * The sequence table has one row for each sequence:
+ * <pre>
+ * CREATE TABLE sequences (name VARCHAR(64) NOT NULL, next_value BIGINT NOT NULL, PRIMARY KEY (name));
+ * </pre>
+ * With a data source, blocks are reserved on a connection of their own and committed immediately, so a block is
+ * never handed out twice even if the insert transaction rolls back. Without it, blocks are reserved on the insert
+ * connection and must only be used if that transaction commits.
+ */
+public class HiLoIdGenerator implements IdGenerator {
+
+    private final static String UPDATE_QUERY = "UPDATE %s SET next_value = next_value + ? WHERE name = ?";
+    private final static String SELECT_QUERY = "SELECT next_value FROM %s WHERE name = ?";
+    private final static String INSERT_QUERY = "INSERT INTO %s (name, next_value) VALUES (?, ?)";
+
+    private final DataSource dataSource;    // The data source used to reserve blocks (null to use the insert connection)
+    private final String sequenceTable;     // The sequence table name
+    private final String sequenceName;      // The sequence name
+    private final int blockSize;            // The number of keys in a block
+
+    private long nextValue;                 // The next key of the current block
+    private long blockEnd;                  // The end (exclusive) of the current block
+
+    /**
+     * Constructor, reserving blocks on the insert connection
+     * @param sequenceTable The sequence table name
+     * @param sequenceName The sequence name, e.g. the table name
+     * @param blockSize The number of keys in a block
+     */
+    public HiLoIdGenerator(String sequenceTable, String sequenceName, int blockSize) {
+        this(null, sequenceTable, sequenceName, blockSize);
+    }
+
+    /**
+     * Constructor, reserving blocks on connections of a data source
+     * @param dataSource The data source
+     * @param sequenceTable The sequence table name
+     * @param sequenceName The sequence name, e.g. the table name
+     * @param blockSize The number of keys in a block
+     */
+    public HiLoIdGenerator(DataSource dataSource, String sequenceTable, String sequenceName, int blockSize) {
+        if (blockSize <= 0) throw new IllegalArgumentException("The block size must be positive: " + blockSize);
+        this.dataSource = dataSource;
+        this.sequenceTable = sequenceTable;
+        this.sequenceName = sequenceName;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public synchronized Object next(Connection connection) throws SQLException {
+        if (nextValue >= blockEnd) {
+            if (dataSource == null) {
+                reserveBlock(connection);
+            } else {
+                try (Connection blockConnection = dataSource.getConnection()) {
+                    boolean autoCommit = blockConnection.getAutoCommit();
+                    blockConnection.setAutoCommit(false);
+                    try {
+                        reserveBlock(blockConnection);
+                        blockConnection.commit();
+                    } catch (SQLException | RuntimeException e) {
+                        blockConnection.rollback();
+                        throw e;
+                    } finally {
+                        blockConnection.setAutoCommit(autoCommit);
+                    }
+                }
+            }
+        } return nextValue++;
+    }
+
+    // Private methods
+
+    private void reserveBlock(Connection connection) throws SQLException {
+        // The update locks the sequence row, so concurrent generators get disjoint blocks
+        int updated;
+        try (PreparedStatement statement = connection.prepareStatement(String.format(UPDATE_QUERY, sequenceTable))) {
+            statement.setLong(1, blockSize);
+            statement.setString(2, sequenceName);
+            updated = statement.executeUpdate();
+        }
+        if (updated == 0) {
+            try (PreparedStatement statement = connection.prepareStatement(String.format(INSERT_QUERY, sequenceTable))) {
+                statement.setString(1, sequenceName);
+                statement.setLong(2, 1L + blockSize);
+                statement.executeUpdate();
+            }
+        }
+        try (PreparedStatement statement = connection.prepareStatement(String.format(SELECT_QUERY, sequenceTable))) {
+            statement.setString(1, sequenceName);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) throw new SQLException("Sequence not found: " + sequenceName);
+                blockEnd = resultSet.getLong(1);
+                nextValue = blockEnd - blockSize;
+            }
+        }
+    }
+}
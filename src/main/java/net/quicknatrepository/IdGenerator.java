@@ -0,0 +1,45 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * IdGenerator interface, a strategy assigning public keys to new entities before they are inserted.
+ * With a generator the repository inserts the key like any other column, so the insert batch does not need
+ * generated keys to be read back and can be rewritten by the driver or split between connections.
+ * <pre>
+ * repository.setIdGenerator(new SnowflakeIdGenerator(workerId));
+ * </pre>
+ */
+@FunctionalInterface
+public interface IdGenerator {
+
+    /**
+     * Generator of time-ordered version 7 UUIDs, the default one for UUID keys annotated with GeneratedValue
+     */
+    IdGenerator UUID_V7 = connection -> Uuids.v7();
+
+    /**
+     * Generate the next key
+     * @param connection The connection used for the insert (generators not reading the database may ignore it)
+     * @return The key, converted by the repository to the type of the public key field
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    Object next(Connection connection) throws SQLException;
+}
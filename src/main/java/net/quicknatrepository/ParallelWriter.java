@@ -0,0 +1,229 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ParallelWriter class, used to insert, update or delete large lists of entities on several connections at once.
+ * The entities are partitioned by the hash of their public key, so the same row is always written by the same
+ * connection and the connections do not wait for each other's row locks. Each partition is written in chunks,
+ * every chunk in its own transaction, retried by a RetryExecutor on deadlocks and lock wait timeouts.
+ * <pre>
+ * try (ParallelWriter&lt;Company&gt; writer = new ParallelWriter&lt;&gt;(repository, dataSource, 8, 1000)) {
+ *     int affectedRows = writer.insert(companies);
+ * }
+ * </pre>
+ * Chunks are committed independently: if a chunk fails, the chunks already committed stay
+ * committed, the remaining ones are skipped and the failure is thrown.
+ * The partitions run on a thread pool created on first use and kept by the writer until it is closed,
+ * or on an executor set with {@link #setExecutor(ExecutorService)}.
+ * @param <T> The type of the entity
+ */
+public class ParallelWriter<T> implements AutoCloseable {
+
+    private final Repository<T> repository;     // The repository of the entities
+    private final DataSource dataSource;        // The data source of the connections
+    private final int connections;              // The number of connections (and threads)
+    private final int chunkSize;                // The number of entities of a chunk
+    private RetryExecutor retryExecutor = new RetryExecutor();   // The executor of the chunks
+    private ExecutorService executor;           // The executor of the partitions (null until first use)
+    private boolean ownedExecutor;              // The executor was created by the writer, which shuts it down on close
+
+    /**
+     * Constructor
+     * @param repository The repository of the entities
+     * @param dataSource The data source, able to provide at least the given number of connections
+     * @param connections The number of connections (and threads) used at once
+     * @param chunkSize The number of entities written in each transaction
+     */
+    public ParallelWriter(Repository<T> repository, DataSource dataSource, int connections, int chunkSize) {
+        if (connections <= 0) throw new IllegalArgumentException("The number of connections must be positive: " + connections);
+        if (chunkSize <= 0) throw new IllegalArgumentException("The chunk size must be positive: " + chunkSize);
+        this.repository = repository;
+        this.dataSource = dataSource;
+        this.connections = connections;
+        this.chunkSize = chunkSize;
+    }
+
+    // Setters
+
+    /**
+     * Set the executor of the chunks, which retries them on deadlocks and lock wait timeouts
+     * (new RetryExecutor() by default)
+     * @param retryExecutor The executor
+     * @return This writer
+     */
+    public ParallelWriter<T> setRetryExecutor(RetryExecutor retryExecutor) {
+        this.retryExecutor = retryExecutor;
+        return this;
+    }
+
+    /**
+     * Set the executor of the partitions, instead of the thread pool owned by the writer.
+     * The executor is not shut down by {@link #close()}.
+     * @param executor The executor, able to run the given number of connections at once
+     * @return This writer
+     */
+    public synchronized ParallelWriter<T> setExecutor(ExecutorService executor) {
+        if (ownedExecutor) this.executor.shutdown();
+        this.executor = executor;
+        this.ownedExecutor = false;
+        return this;
+    }
+
+    // Write methods
+
+    /**
+     * Insert entities.
+     * Entities without public key (e.g. autoincrement ones) are spread over the connections in round robin.
+     * @param entities The entities
+     * @return The total number of affected rows
+     * @throws SQLException The SQL exception if a chunk fails
+     */
+    public int insert(List<T> entities) throws SQLException {
+        return write(entities, repository::insert);
+    }
+
+    /**
+     * Update entities
+     * @param entities The entities
+     * @return The total number of affected rows
+     * @throws SQLException The SQL exception if a chunk fails
+     */
+    public int update(List<T> entities) throws SQLException {
+        return write(entities, repository::update);
+    }
+
+    /**
+     * Delete entities
+     * @param entities The entities
+     * @return The total number of affected rows
+     * @throws SQLException The SQL exception if a chunk fails
+     */
+    public int delete(List<T> entities) throws SQLException {
+        return write(entities, repository::delete);
+    }
+
+    /**
+     * Shut down the thread pool owned by the writer, if any
+     */
+    @Override
+    public synchronized void close() {
+        if (ownedExecutor) executor.shutdown();
+        executor = null;
+        ownedExecutor = false;
+    }
+
+    // Private methods
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(connections, runnable -> {
+                Thread thread = new Thread(runnable, "parallel-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ownedExecutor = true;
+        } return executor;
+    }
+
+    private int write(List<T> entities, RetryExecutor.BatchOperation<T> writer) throws SQLException {
+        if (entities.isEmpty()) return 0;
+        List<List<T>> partitions = partition(entities);
+        ExecutorService executor = executor();
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Future<Integer>> futures = new ArrayList<>();
+        try {
+            for (List<T> partition : partitions) {
+                futures.add(executor.submit(() -> writePartition(partition, writer, failed)));
+            }
+            int affectedRows = 0;
+            SQLException failure = null;
+            for (Future<Integer> future : futures) {
+                try {
+                    affectedRows += future.get();
+                } catch (ExecutionException e) {
+                    SQLException cause = e.getCause() instanceof SQLException ?
+                            (SQLException) e.getCause() : new SQLException("Parallel write failed", e.getCause());
+                    if (failure == null) failure = cause; else failure.addSuppressed(cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failed.set(true);
+                    throw new SQLException("Interrupted while waiting for the parallel write", e);
+                }
+            }
+            if (failure != null) throw failure;
+            return affectedRows;
+        } finally {
+            // If interrupted, the partitions not started yet are dropped and the running ones stop at the next chunk
+            failed.set(true);
+            for (Future<Integer> future : futures) future.cancel(false);
+        }
+    }
+
+    private List<List<T>> partition(List<T> entities) {
+        int partitionCount = Math.min(connections, (entities.size() + chunkSize - 1) / chunkSize);
+        List<List<T>> partitions = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            partitions.add(new ArrayList<>(entities.size() / partitionCount + 1));
+        }
+        String publicKeyColumnName = repository.getPublicKeyColumnName();
+        int next = 0;
+        for (T entity : entities) {
+            Object id = publicKeyColumnName == null ? null : repository.getColumnValue(entity, publicKeyColumnName);
+            int partition = id == null ? next++ % partitionCount :
+                    Math.floorMod(Repository.normalizeKey(id).hashCode(), partitionCount);
+            partitions.get(partition).add(entity);
+        }
+        partitions.removeIf(List::isEmpty);
+        return partitions;
+    }
+
+    private int writePartition(List<T> partition, RetryExecutor.BatchOperation<T> writer, AtomicBoolean failed) throws SQLException {
+        int affectedRows = 0;
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                for (int from = 0; from < partition.size() && !failed.get(); from += chunkSize) {
+                    List<T> chunk = partition.subList(from, Math.min(from + chunkSize, partition.size()));
+                    affectedRows += writeChunk(connection, chunk, writer);
+                }
+            } catch (SQLException | RuntimeException e) {
+                failed.set(true);
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } return affectedRows;
+    }
+
+    private int writeChunk(Connection connection, List<T> chunk, RetryExecutor.BatchOperation<T> writer) throws SQLException {
+        int affectedRows = Repository.sumAffectedRows(retryExecutor.executeBatch(connection, chunk, writer));
+        QueryCache.invalidate(repository.getTableName());
+        return affectedRows;
+    }
+}
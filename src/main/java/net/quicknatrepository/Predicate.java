@@ -0,0 +1,326 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Predicate class, a parameterized filter condition built on entity field names.
+ * A predicate is compiled into SQL with "?" placeholders, while its values are bound separately, so predicates
+ * with the same shape (fields, operators and number of values) always produce the same SQL.
+ * <pre>
+ * Predicate predicate = Predicate.eq("city", "Rome").or(Predicate.in("city", Arrays.asList("Genoa", "Turin")));
+ * </pre>
+ */
+public final class Predicate {
+
+    private final String operator;          // The operator, e.g. "=", "IN", "AND"
+    private final String fieldName;         // The field name (null for logical operators)
+    private final List<Object> values;      // The values to bind
+    private final List<Predicate> children; // The operands of a logical operator
+    private String shape;                   // The shape, computed on first use
+    private List<Object> shapeKey;          // The structural shape key, computed on first use
+
+    private Predicate(String operator, String fieldName, List<Object> values, List<Predicate> children) {
+        this.operator = operator;
+        this.fieldName = fieldName;
+        this.values = values;
+        this.children = children;
+    }
+
+    // Comparison predicates
+
+    /**
+     * Field equal to value (IS NULL if the value is null)
+     * @param fieldName The field name
+     * @param value The value
+     * @return The predicate
+     */
+    public static Predicate eq(String fieldName, Object value) {
+        return value == null ? isNull(fieldName) : comparison("=", fieldName, value);
+    }
+
+    /**
+     * Field not equal to value (IS NOT NULL if the value is null)
+     * @param fieldName The field name
+     * @param value The value
+     * @return The predicate
+     */
+    public static Predicate ne(String fieldName, Object value) {
+        return value == null ? isNotNull(fieldName) : comparison("<>", fieldName, value);
+    }
+
+    /**
+     * Field greater than value
+     * @param fieldName The field name
+     * @param value The value
+     * @return The predicate
+     */
+    public static Predicate gt(String fieldName, Object value) {
+        return comparison(">", fieldName, value);
+    }
+
+    /**
+     * Field greater than or equal to value
+     * @param fieldName The field name
+     * @param value The value
+     * @return The predicate
+     */
+    public static Predicate ge(String fieldName, Object value) {
+        return comparison(">=", fieldName, value);
+    }
+
+    /**
+     * Field less than value
+     * @param fieldName The field name
+     * @param value The value
+     * @return The predicate
+     */
+    public static Predicate lt(String fieldName, Object value) {
+        return comparison("<", fieldName, value);
+    }
+
+    /**
+     * Field less than or equal to value
+     * @param fieldName The field name
+     * @param value The value
+     * @return The predicate
+     */
+    public static Predicate le(String fieldName, Object value) {
+        return comparison("<=", fieldName, value);
+    }
+
+    /**
+     * Field matching a LIKE pattern
+     * @param fieldName The field name
+     * @param pattern The pattern, e.g. "Rom%"
+     * @return The predicate
+     */
+    public static Predicate like(String fieldName, String pattern) {
+        return comparison("LIKE", fieldName, pattern);
+    }
+
+    /**
+     * Field between two values (inclusive)
+     * @param fieldName The field name
+     * @param from The lower bound
+     * @param to The upper bound
+     * @return The predicate
+     */
+    public static Predicate between(String fieldName, Object from, Object to) {
+        return new Predicate("BETWEEN", fieldName, Arrays.asList(from, to), Collections.emptyList());
+    }
+
+    /**
+     * Field equal to one of the values
+     * @param fieldName The field name
+     * @param values The values (an empty list matches nothing)
+     * @return The predicate
+     */
+    public static Predicate in(String fieldName, Collection<?> values) {
+        return new Predicate("IN", fieldName, new ArrayList<>(values), Collections.emptyList());
+    }
+
+    /**
+     * Field is null
+     * @param fieldName The field name
+     * @return The predicate
+     */
+    public static Predicate isNull(String fieldName) {
+        return new Predicate("IS NULL", fieldName, Collections.emptyList(), Collections.emptyList());
+    }
+
+    /**
+     * Field is not null
+     * @param fieldName The field name
+     * @return The predicate
+     */
+    public static Predicate isNotNull(String fieldName) {
+        return new Predicate("IS NOT NULL", fieldName, Collections.emptyList(), Collections.emptyList());
+    }
+
+    // Logical predicates
+
+    /**
+     * All the predicates must match
+     * @param predicates The predicates
+     * @return The predicate
+     */
+    public static Predicate and(Predicate... predicates) {
+        return logical("AND", predicates);
+    }
+
+    /**
+     * At least one of the predicates must match
+     * @param predicates The predicates
+     * @return The predicate
+     */
+    public static Predicate or(Predicate... predicates) {
+        return logical("OR", predicates);
+    }
+
+    /**
+     * The predicate must not match
+     * @param predicate The predicate
+     * @return The predicate
+     */
+    public static Predicate not(Predicate predicate) {
+        return new Predicate("NOT", null, Collections.emptyList(), Collections.singletonList(predicate));
+    }
+
+    /**
+     * This predicate and another one must match
+     * @param other The other predicate
+     * @return The predicate
+     */
+    public Predicate and(Predicate other) {
+        return and(this, other);
+    }
+
+    /**
+     * This predicate or another one must match
+     * @param other The other predicate
+     * @return The predicate
+     */
+    public Predicate or(Predicate other) {
+        return or(this, other);
+    }
+
+    // Getters
+
+    /**
+     * Get the shape of the predicate, i.e. its SQL on field names without the values.
+     * Predicates with the same shape compile to the same SQL.
+     * @return The shape, e.g. "(city = ? OR city IN (?,?))"
+     */
+    public String getShape() {
+        if (shape == null) {
+            shape = toSql(Function.identity());
+        } return shape;
+    }
+
+    /**
+     * Get the values to bind, in placeholder order
+     * @return The values
+     */
+    public List<Object> getValues() {
+        List<Object> result = new ArrayList<>();
+        collectValues(result);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return getShape() + " " + getValues();
+    }
+
+    // Package methods
+
+    String toSql(Function<String, String> columnResolver) {
+        StringBuilder builder = new StringBuilder();
+        appendSql(builder, columnResolver);
+        return builder.toString();
+    }
+
+    /**
+     * Get the structural key of the shape (operators, field names and value counts, in tree order): cheaper to build and
+     * compare than the shape text, and equal for predicates compiling to the same SQL
+     * @return The shape key
+     */
+    List<Object> getShapeKey() {
+        if (shapeKey == null) {
+            List<Object> key = new ArrayList<>();
+            appendShapeKey(key);
+            shapeKey = key;
+        } return shapeKey;
+    }
+
+    void collectValues(List<Object> result) {
+        result.addAll(values);
+        for (Predicate child : children) {
+            child.collectValues(result);
+        }
+    }
+
+    void collectBindings(List<String> fieldNames, List<Object> result) {
+        for (Object value : values) {
+            fieldNames.add(fieldName);
+            result.add(value);
+        }
+        for (Predicate child : children) {
+            child.collectBindings(fieldNames, result);
+        }
+    }
+
+    // Private methods
+
+    private static Predicate comparison(String operator, String fieldName, Object value) {
+        return new Predicate(operator, fieldName, Collections.singletonList(value), Collections.emptyList());
+    }
+
+    private static Predicate logical(String operator, Predicate... predicates) {
+        if (predicates.length == 0) throw new IllegalArgumentException(operator + " requires at least one predicate");
+        if (predicates.length == 1) return predicates[0];
+        return new Predicate(operator, null, Collections.emptyList(), Arrays.asList(predicates));
+    }
+
+    private void appendShapeKey(List<Object> key) {
+        key.add(operator);
+        key.add(fieldName);
+        key.add(values.size());
+        key.add(children.size());
+        for (Predicate child : children) {
+            child.appendShapeKey(key);
+        }
+    }
+
+    private void appendSql(StringBuilder builder, Function<String, String> columnResolver) {
+        switch (operator) {
+            case "AND":
+            case "OR":
+                builder.append('(');
+                for (int i = 0; i < children.size(); i++) {
+                    if (i > 0) builder.append(' ').append(operator).append(' ');
+                    children.get(i).appendSql(builder, columnResolver);
+                }
+                builder.append(')');
+                break;
+            case "NOT":
+                builder.append("NOT ");
+                children.get(0).appendSql(builder, columnResolver);
+                break;
+            case "IN":
+                if (values.isEmpty()) {
+                    builder.append("1 = 0");
+                } else {
+                    builder.append(columnResolver.apply(fieldName)).append(" IN (")
+                            .append(Repository.generateSQLPlaceholders(values.size())).append(')');
+                }
+                break;
+            case "BETWEEN":
+                builder.append(columnResolver.apply(fieldName)).append(" BETWEEN ? AND ?");
+                break;
+            case "IS NULL":
+            case "IS NOT NULL":
+                builder.append(columnResolver.apply(fieldName)).append(' ').append(operator);
+                break;
+            default:
+                builder.append(columnResolver.apply(fieldName)).append(' ').append(operator).append(" ?");
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * QueryCache class, an opt-in cache of the results of readBy and readWhere, shared by the repositories it is set on.
+ * A result is stored as the list of the public keys it returned, keyed by the SQL and the bound values, while the
+ * entities are stored once in an entity cache shared by all the results. Both are stamped with the version of
+ * their table, which every write of any repository of that table increments, so a result read before a write is
+ * never served after it. The cache is bounded by an estimate of the memory it uses, evicting the least recently used
+ * entries first.
+ * <pre>
+ * QueryCache cache = new QueryCache(64 * 1024 * 1024);
+ * repository.setQueryCache(cache);
+ * </pre>
+ * Cached entities are copied (field by field, shallowly) before being returned, so callers may modify them.
+ * Reads made on a connection that is not in auto-commit mode bypass the cache, since they may see uncommitted rows.
+ * The tables written inside a transaction are invalidated again when it ends, so results read by other threads
+ * before the commit are not served after it: the library does it wherever it commits (UnitOfWork, RetryExecutor,
+ * ParallelWriter, purgeWhere, ConnectionPool connections); call endTransaction(connection) after committing
+ * other connections.
+ */
+public class QueryCache {
+
+    private final static Map<String, AtomicLong> VERSIONS = new ConcurrentHashMap<>();    // The table versions (table name -> version)
+    private final static Map<Connection, Set<String>> PENDING = new WeakHashMap<>();      // The tables written by the open transactions (connection -> table names)
+
+    private final long maxBytes;                                                        // The memory budget
+    private final LinkedHashMap<ResultKey, Result> results = new LinkedHashMap<>(64, 0.75f, true);   // The results (LRU)
+    private final LinkedHashMap<EntityKey, CachedEntity> entities = new LinkedHashMap<>(64, 0.75f, true); // The entities (LRU)
+    private long bytes;                                                                 // The estimated memory used
+    private long hits;                                                                  // The results served from the cache
+    private long misses;                                                                // The results read from the database
+
+    /**
+     * Constructor
+     * @param maxBytes The estimated memory the cache may use, in bytes
+     */
+    public QueryCache(long maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("The memory budget must be positive: " + maxBytes);
+        this.maxBytes = maxBytes;
+    }
+
+    // Invalidation
+
+    /**
+     * Invalidate the cached results and entities of a table, in all the caches
+     * @param tableName The table name
+     */
+    public static void invalidate(String tableName) {
+        VERSIONS.computeIfAbsent(tableName.toLowerCase(Locale.ROOT), x -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Invalidate a table written on a connection, and again when its transaction ends if it is not in auto-commit mode
+     * @param connection The connection
+     * @param tableName The table name
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    static void written(Connection connection, String tableName) throws SQLException {
+        invalidate(tableName);
+        if (connection.getAutoCommit()) return;
+        synchronized (PENDING) {
+            PENDING.computeIfAbsent(connection, x -> new HashSet<>()).add(tableName);
+        }
+    }
+
+    /**
+     * Invalidate the tables written by the transaction of a connection, once it is committed or rolled back
+     * @param connection The connection
+     */
+    public static void endTransaction(Connection connection) {
+        Set<String> tableNames;
+        synchronized (PENDING) {
+            tableNames = PENDING.remove(connection);
+        }
+        if (tableNames != null) tableNames.forEach(QueryCache::invalidate);
+    }
+
+    /**
+     * Remove all the cached results and entities
+     */
+    public synchronized void clear() {
+        results.clear();
+        entities.clear();
+        bytes = 0;
+    }
+
+    // Statistics
+
+    /**
+     * Get the number of results served from the cache
+     * @return The number of hits
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Get the number of results read from the database while the cache was set
+     * @return The number of misses
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Get the estimated memory used by the cache
+     * @return The memory in bytes
+     */
+    public synchronized long getEstimatedBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the number of cached results
+     * @return The number of results
+     */
+    public synchronized int getResultCount() {
+        return results.size();
+    }
+
+    // Package methods
+
+    static long versionOf(String tableName) {
+        AtomicLong version = VERSIONS.get(tableName.toLowerCase(Locale.ROOT));
+        return version == null ? 0 : version.get();
+    }
+
+    /**
+     * Get the cached entities of a result, in order (null if the result is not cached or is stale)
+     */
+    synchronized List<Object> get(String tableName, String query, List<Object> values) {
+        ResultKey key = new ResultKey(tableName, query, values);
+        Result result = results.get(key);
+        long version = versionOf(tableName);
+        if (result == null || result.version != version) {
+            if (result != null) remove(key);
+            misses++;
+            return null;
+        }
+        List<Object> cached = new ArrayList<>(result.ids.size());
+        for (Object id : result.ids) {
+            CachedEntity entity = entities.get(new EntityKey(tableName, id));
+            if (entity == null || entity.version != version) {
+                misses++;
+                return null;
+            }
+            cached.add(entity.entity);
+        }
+        hits++;
+        return cached;
+    }
+
+    /**
+     * Store a result read at the given table version, with its entities and their public keys
+     */
+    synchronized void put(String tableName, long version, String query, List<Object> values, List<?> resultEntities, List<Object> ids, int columnCount) {
+        if (versionOf(tableName) != version) return;
+        ResultKey key = new ResultKey(tableName, query, new ArrayList<>(values));
+        remove(key);
+        Result result = new Result(version, new ArrayList<>(ids), 96 + 2L * query.length() + 24L * values.size() + 40L * ids.size());
+        results.put(key, result);
+        bytes += result.bytes;
+        for (int i = 0; i < ids.size(); i++) {
+            EntityKey entityKey = new EntityKey(tableName, ids.get(i));
+            CachedEntity previous = entities.remove(entityKey);
+            if (previous != null) bytes -= previous.bytes;
+            CachedEntity entity = new CachedEntity(version, resultEntities.get(i), 64 + 48L * columnCount);
+            entities.put(entityKey, entity);
+            bytes += entity.bytes;
+        }
+        evict();
+    }
+
+    // Private methods
+
+    private void remove(ResultKey key) {
+        Result removed = results.remove(key);
+        if (removed != null) bytes -= removed.bytes;
+    }
+
+    private void evict() {
+        // Results go first: an entity without results is only useful to the results stored after it
+        Iterator<Result> resultIterator = results.values().iterator();
+        while (bytes > maxBytes && resultIterator.hasNext()) {
+            bytes -= resultIterator.next().bytes;
+            resultIterator.remove();
+        }
+        Iterator<CachedEntity> entityIterator = entities.values().iterator();
+        while (bytes > maxBytes && entityIterator.hasNext()) {
+            bytes -= entityIterator.next().bytes;
+            entityIterator.remove();
+        }
+    }
+
+    // Private classes
+
+    private static final class ResultKey {
+        private final String tableName;
+        private final String query;
+        private final List<Object> values;
+        private final int hash;
+
+        private ResultKey(String tableName, String query, List<Object> values) {
+            this.tableName = tableName;
+            this.query = query;
+            this.values = values;
+            this.hash = Objects.hash(tableName, query, values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ResultKey)) return false;
+            ResultKey other = (ResultKey) o;
+            return hash == other.hash && tableName.equals(other.tableName) && query.equals(other.query) && values.equals(other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class EntityKey {
+        private final String tableName;
+        private final Object id;
+
+        private EntityKey(String tableName, Object id) {
+            this.tableName = tableName;
+            this.id = Repository.normalizeKey(id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof EntityKey)) return false;
+            EntityKey other = (EntityKey) o;
+            return tableName.equals(other.tableName) && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * tableName.hashCode() + id.hashCode();
+        }
+    }
+
+    private static final class Result {
+        private final long version;
+        private final List<Object> ids;
+        private final long bytes;
+
+        private Result(long version, List<Object> ids, long bytes) {
+            this.version = version;
+            this.ids = ids;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class CachedEntity {
+        private final long version;
+        private final Object entity;
+        private final long bytes;
+
+        private CachedEntity(long version, Object entity, long bytes) {
+            this.version = version;
+            this.entity = entity;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ReplicaRouter class, used to send reads to replica databases and writes to the primary one.
+ * Reads are balanced in round robin over the healthy replicas; a replica that fails to provide a connection (or
+ * loses it) is skipped for a while and the read moves to the next one, then to the primary. After a thread writes,
+ * its reads go to the primary for the read-your-writes window, so they see its own changes despite the replication lag.
+ * <pre>
+ * ReplicaRouter router = new ReplicaRouter(primary, Arrays.asList(replica1, replica2));
+ * router.write(c -&gt; repository.insert(c, company));
+ * List&lt;Company&gt; companies = router.read(c -&gt; repository.readBy(c, "city", "Rome"));
+ * </pre>
+ */
+public class ReplicaRouter {
+
+    private final DataSource primary;               // The primary data source
+    private final List<DataSource> replicas;        // The replica data sources
+    private final AtomicLongArray downUntil;        // The time until each replica is skipped (0 if healthy)
+    private final AtomicInteger next = new AtomicInteger();                 // The round robin position
+    private final ThreadLocal<Long> lastWrite = ThreadLocal.withInitial(() -> 0L); // The time of the last write of each thread
+    private long readYourWritesMillis = 1000;       // The read-your-writes window
+    private long downtimeMillis = 30000;            // The time a failed replica is skipped
+
+    /**
+     * Constructor
+     * @param primary The primary data source
+     * @param replicas The replica data sources (if empty, all the reads go to the primary)
+     */
+    public ReplicaRouter(DataSource primary, List<DataSource> replicas) {
+        this.primary = primary;
+        this.replicas = new ArrayList<>(replicas);
+        this.downUntil = new AtomicLongArray(replicas.size());
+    }
+
+    /**
+     * Constructor
+     * @param primary The primary data source
+     * @param replicas The replica data sources
+     */
+    public ReplicaRouter(DataSource primary, DataSource... replicas) {
+        this(primary, Arrays.asList(replicas));
+    }
+
+    // Setters
+
+    /**
+     * Set the read-your-writes window: after a write, the reads of the same thread go to the primary for this time
+     * @param readYourWritesMillis The window in milliseconds (0 to disable it)
+     * @return This router
+     */
+    public ReplicaRouter setReadYourWritesMillis(long readYourWritesMillis) {
+        this.readYourWritesMillis = readYourWritesMillis;
+        return this;
+    }
+
+    /**
+     * Set the time a failed replica is skipped before being tried again
+     * @param downtimeMillis The time in milliseconds
+     * @return This router
+     */
+    public ReplicaRouter setDowntimeMillis(long downtimeMillis) {
+        this.downtimeMillis = downtimeMillis;
+        return this;
+    }
+
+    // Route methods
+
+    /**
+     * Run a read operation on a replica (or on the primary, inside the read-your-writes window or if no replica is healthy).
+     * The connection is closed when the operation returns, so results must not be consumed lazily after it.
+     * @param operation The operation
+     * @param <R> The type of the result
+     * @return The result of the operation
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public <R> R read(SqlOperation<R> operation) throws SQLException {
+        if (replicas.isEmpty() || isPinnedToPrimary()) return run(primary, operation);
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            int index = (start + i) % replicas.size();
+            if (!isHealthy(index)) continue;
+            Connection connection;
+            try {
+                connection = replicas.get(index).getConnection();
+            } catch (SQLException e) {
+                markDown(index);
+                continue;
+            }
+            try (connection) {
+                return operation.execute(connection);
+            } catch (SQLException e) {
+                // Connection errors move the read to the next replica, any other error belongs to the operation
+                if (!isConnectionError(e)) throw e;
+                markDown(index);
+            }
+        }
+        return run(primary, operation);
+    }
+
+    /**
+     * Run a write operation on the primary, pinning the reads of the current thread to the primary for the
+     * read-your-writes window
+     * @param operation The operation
+     * @param <R> The type of the result
+     * @return The result of the operation
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public <R> R write(SqlOperation<R> operation) throws SQLException {
+        try {
+            return run(primary, operation);
+        } finally {
+            markWrite();
+        }
+    }
+
+    /**
+     * Pin the reads of the current thread to the primary for the read-your-writes window,
+     * e.g. after a write made on a primary connection obtained elsewhere
+     */
+    public void markWrite() {
+        lastWrite.set(System.currentTimeMillis());
+    }
+
+    // Getters
+
+    /**
+     * Check whether the reads of the current thread are pinned to the primary
+     * @return True if the current thread wrote inside the read-your-writes window
+     */
+    public boolean isPinnedToPrimary() {
+        return System.currentTimeMillis() - lastWrite.get() < readYourWritesMillis;
+    }
+
+    /**
+     * Check whether a replica is healthy, i.e. it is not skipped after a failure
+     * @param index The replica index
+     * @return True if the replica is healthy
+     */
+    public boolean isHealthy(int index) {
+        return downUntil.get(index) <= System.currentTimeMillis();
+    }
+
+    /**
+     * Get the primary data source
+     * @return The primary data source
+     */
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    // Private methods
+
+    private static <R> R run(DataSource dataSource, SqlOperation<R> operation) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            return operation.execute(connection);
+        }
+    }
+
+    private void markDown(int index) {
+        downUntil.set(index, System.currentTimeMillis() + downtimeMillis);
+    }
+
+    private static boolean isConnectionError(SQLException exception) {
+        if (exception instanceof SQLNonTransientConnectionException || exception instanceof SQLTransientConnectionException) return true;
+        String sqlState = exception.getSQLState();
+        return sqlState != null && sqlState.startsWith("08");
+    }
+}
@@ -18,14 +18,17 @@ package net.quicknatrepository;
 
 
 import javax.persistence.*;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.sql.Date;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.*;
-import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -39,6 +42,7 @@ public class Repository<T> {
 
     private final static String INSERT_INTO_RAW_QUERY = "INSERT INTO %s (%s) VALUES (%s);";
     private final static String UPDATE_RAW_QUERY = "UPDATE %s SET %s WHERE %s = ?;";
+    private final static String UPDATE_WHERE_RAW_QUERY = "UPDATE %s SET %s WHERE %s;";
 
     private final static String SELECT_ALL_RAW_QUERY = "SELECT %s FROM %s;";
     private final static String SELECT_ALL_LIMIT_RAW_QUERY = "SELECT %s FROM %s LIMIT %s;";
@@ -78,6 +82,9 @@ public class Repository<T> {
     private final static String SELECT_TOTAL_ROWS_BY_KEYS_RAW_QUERY = "SELECT COUNT(%s) as total FROM %s WHERE %s IN ( %s );";
     private final static String SELECT_TOTAL_ROWS_WHERE_RAW_QUERY = "SELECT COUNT(%s) as total FROM %s WHERE %s;";
 
+    private final static int MAX_COMPILED_PREDICATES = 1024;
+    private final static int IN_CLAUSE_CHUNK_SIZE = 1000;
+
     /**
      * Generate a string with n mnemonic raw values
      * @param n The number of values
@@ -182,26 +189,99 @@ public class Repository<T> {
 
     }
 
-    private Class<T> typeClass;                     // The type class of the entity
-    private String tableName;                       // The table name of the entity
-    private String publicKeyColumnName = null;      // The public key column name
-    private int publicKeyColumnIndex = -1;          // The public key column index
-    private Boolean autoIncrement = false;          // The public key is autoincrement
-    private String columnNamesString;               // The column names string
+    private interface KeyRangeOperation {
+        int execute(Connection connection, Predicate range) throws SQLException;
+    }
+
+    private interface StatementBinder {
+        void bind(PreparedStatement statement) throws SQLException;
+    }
+
+    private final EntityDescriptor<T> descriptor;  // The shared mapping metadata of the entity
+    private final Class<T> typeClass;               // The type class of the entity
+    private final Supplier<T> factory;              // The no-arg constructor factory of the entity
+    private final String tableName;                 // The table name of the entity
+    private final String publicKeyColumnName;       // The public key column name
+    private final int publicKeyColumnIndex;         // The public key column index
+    private final Boolean autoIncrement;            // The public key is autoincrement
+    private final int versionColumnIndex;           // The @Version column index (-1 if none)
+    private final boolean customInstantiation;      // instantiateEntity is overridden (entities cannot be copied)
+    private final String columnNamesString;         // The column names string
 
-    private final List<String> columnNames = new ArrayList<>();                                   // The column names
-    private final Map<String, String> fieldColumnNamesMap = new LinkedHashMap<>();                // The field column names map (field name -> column name)
+    private final List<String> columnNames;                                                       // The column names
+    private final Map<String, String> fieldColumnNamesMap;                                        // The field column names map (field name -> column name)
     private final Map<String, BiConsumer<T,Object>> fieldValueSettersMap = new LinkedHashMap<>(); // The field value setters map (column name -> setter)
     private final Map<String, Function<T,Object>> fieldValueGetterMap = new LinkedHashMap<>();    // The field value getter map (column name -> getter)
+    private final Map<List<Object>, String> compiledPredicates = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, String> eldest) {
+            return size() > MAX_COMPILED_PREDICATES;
+        }
+    });                                                                                           // The compiled predicates (shape key -> where clause), LRU
+    private final Map<Class<?>, TypeConverter<?>> typeConverters = new HashMap<>();              // The repository type converters (java type -> converter)
+    private final Map<String, TypeConverter<?>> columnConverterBindings = new HashMap<>();       // The converters bound to a column (column name -> converter)
+    private IdGenerator idGenerator;                                                               // The public key generator (null if keys are assigned or generated by the database)
+    private QueryCache queryCache;                                                                 // The query result cache (null if disabled)
+    private String changeTrackingFieldName;                                                        // The change tracking field name (null if none)
+    private Executor publisherExecutor = ResultPublisher.DEFAULT_EXECUTOR;                         // The executor of the publishers JDBC calls
+    private FetchConfig fetchConfig = FetchConfig.DEFAULT;                                         // The fetch configuration of the reads
+    private final ThreadLocal<FetchConfig> callFetchConfig = new ThreadLocal<>();                  // The fetch configuration of the current call (null if none)
+
+    private final Class<?>[] columnTypes;                   // The boxed field types, by column index
+    private final TypeConverter<Object>[] columnConverters; // The converters, by column index
+    private final BiConsumer<T,Object>[] columnSetters;     // The setters, by column index
+    private final Function<T,Object>[] columnGetters;       // The getters, by column index
+    private final boolean[] rawColumns;                     // The columns whose custom setter receives the raw getObject value
 
     // Constructor
 
     /**
      * Constructor
      * @param typeClass The type class
+     * @throws IllegalArgumentException If the entity has no no-arg constructor and instantiateEntity is not overridden
      */
     public Repository(Class<T> typeClass) {
-        this.init(typeClass);
+        this(typeClass, null);
+    }
+
+    /**
+     * Constructor, for an entity stored in a table other than the mapped one (e.g. a shard table "companies_2")
+     * @param typeClass The type class
+     * @param tableName The table name (null for the table name of the Table or Entity annotation)
+     * @throws IllegalArgumentException If the entity has no no-arg constructor and instantiateEntity is not overridden
+     */
+    public Repository(Class<T> typeClass, String tableName) {
+        this.descriptor = EntityDescriptor.of(typeClass);
+        this.typeClass = typeClass;
+        this.factory = descriptor.getFactory();
+        this.customInstantiation = overridesInstantiateEntity();
+        if (this.factory == null && !customInstantiation) {
+            throw new IllegalArgumentException(typeClass.getName() + " has no no-arg constructor: override instantiateEntity to create its instances");
+        }
+        this.tableName = tableName != null ? tableName : descriptor.getTableName();
+        this.publicKeyColumnName = descriptor.getPublicKeyColumnName();
+        this.publicKeyColumnIndex = descriptor.getPublicKeyColumnIndex();
+        this.autoIncrement = descriptor.isAutoIncrement();
+        this.versionColumnIndex = descriptor.getVersionColumnIndex();
+        this.columnNamesString = descriptor.getColumnNamesString();
+        this.columnNames = descriptor.getColumnNames();
+        this.fieldColumnNamesMap = descriptor.getFieldColumnNames();
+        this.fieldValueSettersMap.putAll(descriptor.getDefaultSetters());
+        this.fieldValueGetterMap.putAll(descriptor.getDefaultGetters());
+        this.idGenerator = descriptor.isUuidKey() ? IdGenerator.UUID_V7 : null;
+
+        int columnCount = descriptor.getColumnCount();
+        this.columnTypes = new Class<?>[columnCount];
+        this.columnConverters = newArray(TypeConverter.class, columnCount);
+        this.columnSetters = newArray(BiConsumer.class, columnCount);
+        this.columnGetters = newArray(Function.class, columnCount);
+        this.rawColumns = new boolean[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            this.columnTypes[i] = boxed(descriptor.getField(i).getType());
+            this.columnSetters[i] = fieldValueSettersMap.get(descriptor.getColumnName(i));
+            this.columnGetters[i] = fieldValueGetterMap.get(descriptor.getColumnName(i));
+            resolveColumnConverter(i);
+        }
     }
 
     // Getters
@@ -212,7 +292,7 @@ public class Repository<T> {
      * @return The column name
      */
     public final String getFieldColumnName (String fieldName){
-        return this.fieldColumnNamesMap.get(fieldName);
+        return this.descriptor.getFieldColumnName(fieldName);
     }
 
     /**
@@ -221,11 +301,17 @@ public class Repository<T> {
      * @return The field name
      */
     public final String getColumnFieldName (String columnName){
-        for (Map.Entry<String,String> entry : this.fieldColumnNamesMap.entrySet()){
-            if (entry.getValue().equals(columnName)){
-                return entry.getKey();
-            }
-        } return null;
+        return this.descriptor.getColumnFieldName(columnName);
+    }
+
+    /**
+     * Get the value of a field of an entity, through the getter bound to its column
+     * @param entity The entity
+     * @param fieldName The field name
+     * @return The value
+     */
+    public final Object getFieldValue(T entity, String fieldName){
+        return this.fieldValueGetterMap.get(getRequiredFieldColumnName(fieldName)).apply(entity);
     }
 
     /**
@@ -246,7 +332,7 @@ public class Repository<T> {
 
     /**
      * Get the column names
-     * @return The column names
+     * @return The column names (unmodifiable)
      */
     public final List<String> getColumnNames() {
         return columnNames;
@@ -258,16 +344,16 @@ public class Repository<T> {
      * @return The column name
      */
     public final String getColumnNameByIndex (int index){
-        return this.columnNames.get(index);
+        return this.descriptor.getColumnName(index);
     }
 
     /**
      * Get the column index by name
      * @param columnName The column name
-     * @return The column index
+     * @return The column index, or -1 if the column is not mapped
      */
     public final int getColumnIndexByName (String columnName){
-        return this.columnNames.indexOf(columnName);
+        return this.descriptor.getColumnIndex(columnName);
     }
 
     /**
@@ -292,12 +378,19 @@ public class Repository<T> {
     // Bind methods
 
     /**
-     * Bind a field to a setter
+     * Bind a field to a setter.
+     * When reading rows, the setter receives the raw ResultSet.getObject value, unless a converter is bound to the column
+     * with {@link #bindColumnToConverter} (then it receives values of the converter type).
      * @param columnName The column name
      * @param setter The setter
      */
     public final void bindFieldToSetter(String columnName, BiConsumer<T,Object> setter){
         this.fieldValueSettersMap.put(columnName,setter);
+        int columnIndex = descriptor.getColumnIndex(columnName);
+        if (columnIndex >= 0) {
+            this.columnSetters[columnIndex] = setter;
+            this.rawColumns[columnIndex] = !columnConverterBindings.containsKey(columnName);
+        }
     }
 
     /**
@@ -307,6 +400,109 @@ public class Repository<T> {
      */
     public final void bindFieldToGetter(String columnName, Function<T,Object> getter){
         this.fieldValueGetterMap.put(columnName,getter);
+        int columnIndex = descriptor.getColumnIndex(columnName);
+        if (columnIndex >= 0) this.columnGetters[columnIndex] = getter;
+    }
+
+    /**
+     * Bind a column to a type converter, e.g. TypeConverters.json(...) for a JSON column.
+     * The values passed to the column setter and returned by the column getter are of the converter type.
+     * @param columnName The column name
+     * @param converter The converter
+     */
+    public final void bindColumnToConverter(String columnName, TypeConverter<?> converter){
+        int columnIndex = descriptor.getColumnIndex(columnName);
+        if (columnIndex < 0) throw new IllegalArgumentException("Unknown column: " + columnName);
+        this.columnConverterBindings.put(columnName, converter);
+        this.rawColumns[columnIndex] = false;
+        resolveColumnConverter(columnIndex);
+    }
+
+    /**
+     * Register a type converter for this repository, used for the columns of that type and for the values of that type
+     * bound to the queries. It overrides the converter registered globally in {@link TypeConverters}.
+     * @param type The Java type
+     * @param converter The converter
+     * @param <J> The Java type
+     */
+    public final <J> void registerConverter(Class<J> type, TypeConverter<J> converter){
+        this.typeConverters.put(type, converter);
+        for (int i = 0; i < columnTypes.length; i++) {
+            resolveColumnConverter(i);
+        }
+    }
+
+    /**
+     * Set the generator of the public keys, assigned to the entities with a null public key before they are inserted.
+     * The public key column is then inserted like any other column, even if it is autoincrement, so the insert does not
+     * read generated keys back. UUID keys annotated with GeneratedValue use IdGenerator.UUID_V7 by default.
+     * @param idGenerator The generator (null to go back to the keys generated by the database, if autoincrement)
+     */
+    public final void setIdGenerator(IdGenerator idGenerator){
+        if (idGenerator != null && publicKeyColumnName == null) {
+            throw new IllegalStateException("The entity " + typeClass.getName() + " has no public key");
+        }
+        this.idGenerator = idGenerator;
+    }
+
+    /**
+     * Set the cache of the results of readBy, readById and readWhere (see QueryCache).
+     * The cache may be shared by several repositories: the results are invalidated by the writes of any repository of the same table.
+     * Repositories overriding instantiateEntity do not use the cache, since cached entities are returned as copies.
+     * @param queryCache The cache (null to disable it)
+     */
+    public final void setQueryCache(QueryCache queryCache){
+        this.queryCache = queryCache;
+    }
+
+    /**
+     * Mark a field as the change tracking column, e.g. an "updated_at" timestamp or a version increased on every
+     * write, so the changed rows can be read with readChangedSince
+     * @param fieldName The field name
+     */
+    public final void setChangeTrackingField(String fieldName){
+        getRequiredFieldColumnName(fieldName);
+        this.changeTrackingFieldName = fieldName;
+    }
+
+    /**
+     * Set the executor running the JDBC calls of the publishers (a cached pool of daemon threads by default).
+     * On Java 21 or later, Executors.newVirtualThreadPerTaskExecutor() avoids holding a platform thread for every subscription.
+     * @param executor The executor
+     */
+    public final void setPublisherExecutor(Executor executor){
+        this.publisherExecutor = Objects.requireNonNull(executor);
+    }
+
+    /**
+     * Set the fetch configuration of all the reads (read, readBy, readWhere, readByQuery, scan, publish, snapshots)
+     * @param fetchConfig The fetch configuration (see FetchConfig)
+     */
+    public final void setFetchConfig(FetchConfig fetchConfig){
+        this.fetchConfig = Objects.requireNonNull(fetchConfig);
+    }
+
+    /**
+     * Run an operation with another fetch configuration for the reads of this repository made by the current thread
+     * <pre>
+     * repository.withFetchConfig(connection, FetchConfig.streaming(), c -> repository.scan(c, visitor));
+     * </pre>
+     * @param connection The connection
+     * @param fetchConfig The fetch configuration of the call
+     * @param operation The operation
+     * @param <R> The type of the result
+     * @return The result of the operation
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final <R> R withFetchConfig(Connection connection, FetchConfig fetchConfig, SqlOperation<R> operation) throws SQLException {
+        FetchConfig previous = callFetchConfig.get();
+        callFetchConfig.set(Objects.requireNonNull(fetchConfig));
+        try {
+            return operation.execute(connection);
+        } finally {
+            if (previous == null) callFetchConfig.remove();
+            else callFetchConfig.set(previous);
+        }
     }
 
     // Count methods
@@ -338,7 +534,7 @@ public class Repository<T> {
     public final long getTotalElementsBy(Connection connection, String column, Object value) throws SQLException {
         String query = String.format(SELECT_TOTAL_ROWS_BY_KEY_RAW_QUERY, this.publicKeyColumnName, this.tableName, column);
         PreparedStatement preparedStatement = connection.prepareStatement(query);
-        preparedStatement.setObject(1, value);
+        bindColumnValue(preparedStatement, 1, column, value);
         ResultSet resultSet = preparedStatement.executeQuery();
         if (resultSet.next()){
             return resultSet.getLong("total");
@@ -359,7 +555,7 @@ public class Repository<T> {
         String rawValues = generateSQLPlaceholders(values.size());
         String query = String.format(SELECT_TOTAL_ROWS_BY_KEYS_RAW_QUERY, this.publicKeyColumnName, this.tableName, column, rawValues);
         PreparedStatement statement = connection.prepareStatement(query);
-        this.populateStatement(statement,values);
+        this.populateStatement(statement, column, values);
         ResultSet resultSet = statement.executeQuery();
         if (resultSet.next()){
             return resultSet.getLong("total");
@@ -384,6 +580,49 @@ public class Repository<T> {
         return 0;
     }
 
+    /**
+     * Get the number of elements matching a predicate
+     * @param connection The connection
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @return The number of elements
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final long getTotalElementsWhere(Connection connection, Predicate predicate) throws SQLException {
+        String query = String.format(SELECT_TOTAL_ROWS_WHERE_RAW_QUERY, this.publicKeyColumnName, this.tableName, compilePredicate(predicate));
+        PreparedStatement preparedStatement = connection.prepareStatement(query);
+        this.populateStatement(preparedStatement, predicate);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        if (resultSet.next()){
+            return resultSet.getLong("total");
+        }
+        return 0;
+    }
+
+    // Aggregate methods
+
+    /**
+     * Run an aggregate query on all the elements, e.g. the number of companies and employees by city
+     * @param connection The connection
+     * @param aggregation The aggregation, e.g. new Aggregation().groupBy("city").count("companies")
+     * @return The rows, one for each group (a single row if the aggregation has no grouping)
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final List<AggregateRow> aggregate(Connection connection, Aggregation aggregation) throws SQLException {
+        return aggregate(connection, null, aggregation);
+    }
+
+    /**
+     * Run an aggregate query on the elements matching a predicate
+     * @param connection The connection
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @param aggregation The aggregation, e.g. new Aggregation().sum("employees", "employees")
+     * @return The rows, one for each group (a single row if the aggregation has no grouping)
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final List<AggregateRow> aggregateWhere(Connection connection, Predicate predicate, Aggregation aggregation) throws SQLException {
+        return aggregate(connection, Objects.requireNonNull(predicate), aggregation);
+    }
+
     // Insert methods
 
     /**
@@ -400,7 +639,8 @@ public class Repository<T> {
     }
 
     /**
-     * Insert entities
+     * Insert entities.
+     * Entities with a null public key get one from the id generator before the insert, if set (see setIdGenerator).
      * @param connection The connection
      * @param entities The entities
      * @return An array with the number of affected rows (one for each entity)
@@ -408,8 +648,16 @@ public class Repository<T> {
      */
     public final int[] insert(Connection connection, List<T> entities) throws SQLException {
         if (entities.isEmpty()) return new int[0];
+        IdGenerator generator = this.idGenerator;
+        if (generator != null) assignIds(connection, generator, entities);
+        if (versionColumnIndex >= 0) {
+            for (T entity : entities) {
+                if (columnGetters[versionColumnIndex].apply(entity) == null) columnSetters[versionColumnIndex].accept(entity, versionValue(1));
+            }
+        }
+        boolean generatedKeys = this.autoIncrement && generator == null;
         // Assumes all entities have the same columns to be inserted
-        List<String> columns = this.autoIncrement ?
+        List<String> columns = generatedKeys ?
                 columnNames.stream().filter(c -> !c.equals(publicKeyColumnName)).collect(Collectors.toList()) :
                 new ArrayList<>(columnNames);
 
@@ -417,7 +665,7 @@ public class Repository<T> {
         String columnRawValues = generateSQLPlaceholders(columns.size());
         String query = String.format(INSERT_INTO_RAW_QUERY, this.tableName, columnsList, columnRawValues);
 
-        PreparedStatement statement = this.autoIncrement ?
+        PreparedStatement statement = generatedKeys ?
                 connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS) :
                 connection.prepareStatement(query);
 
@@ -427,15 +675,17 @@ public class Repository<T> {
         }
 
         int[] ints = statement.executeBatch();
+        QueryCache.written(connection, tableName);
 
-        if (this.autoIncrement) {
-            try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+        if (generatedKeys) {
+            try (ResultSet keys = statement.getGeneratedKeys()) {
 
-                BiConsumer<T, Object> idSetter = this.fieldValueSettersMap.get(publicKeyColumnName);
+                BiConsumer<T, Object> idSetter = this.columnSetters[publicKeyColumnIndex];
+                TypeConverter<Object> idConverter = this.columnConverters[publicKeyColumnIndex];
 
                 for (T entity : entities) {
-                    if (generatedKeys.next()) {
-                        long key = generatedKeys.getLong(1);
+                    if (keys.next()) {
+                        Object key = idConverter.convert(keys.getObject(1));
                         idSetter.accept(entity, key);
                     } else {
                         throw new SQLException("Creation failed, no ID obtained for one of the entities.");
@@ -462,10 +712,13 @@ public class Repository<T> {
     }
 
     /**
-     * Update entities
+     * Update entities.
+     * If the entity has a @Version field, a row is updated only if its version is still the one of the entity,
+     * and the version is incremented (see StaleEntityException).
      * @param connection The connection
      * @param entities The entities
      * @return An array with the number of affected rows (one for each entity)
+     * @throws StaleEntityException If the version of some entities no longer matches
      * @throws SQLException The SQL exception if the operation fails for any reason
      */
     public final int[] update(Connection connection, List<T> entities) throws SQLException {
@@ -477,17 +730,69 @@ public class Repository<T> {
         });
         String updateBodyRawQuery = builder.deleteCharAt( builder.length() -1).toString();
         String query = String.format(UPDATE_RAW_QUERY, this.tableName,updateBodyRawQuery,this.publicKeyColumnName);
+        if (versionColumnIndex >= 0) query = versionedQuery(query);
         PreparedStatement statement = connection.prepareStatement(query);
         Function<T, Object> idGetter = this.fieldValueGetterMap.get(this.publicKeyColumnName);
+        Object[] versions = versionColumnIndex >= 0 ? new Object[entities.size()] : null;
+        int bumped = 0;
 
-        for (T entity : entities) {
-            int parameterIndex = populateStatement(statement,entity,columnsToUpdate);
-            Object entityId = idGetter.apply(entity);
-            statement.setObject(parameterIndex + 1, entityId);
-            statement.addBatch();
+        try {
+            for (int i = 0; i < entities.size(); i++) {
+                T entity = entities.get(i);
+                if (versions != null) {
+                    // The incremented version is written, the current one is checked
+                    versions[i] = columnGetters[versionColumnIndex].apply(entity);
+                    columnSetters[versionColumnIndex].accept(entity, nextVersion(versions[i]));
+                    bumped++;
+                }
+                int parameterIndex = populateStatement(statement,entity,columnsToUpdate);
+                Object entityId = idGetter.apply(entity);
+                bindColumnValue(statement, parameterIndex + 1, this.publicKeyColumnName, entityId);
+                if (versions != null) bindColumnValue(statement, parameterIndex + 2, columnNames.get(versionColumnIndex), versions[i]);
+                statement.addBatch();
+            }
+
+            int[] counts = invalidated(connection, statement.executeBatch());
+            if (versions != null) checkVersions(entities, counts);
+            return counts;
+        } catch (SQLException | RuntimeException e) {
+            // The transaction is expected to be rolled back, so all the entities get their current version back
+            for (int i = 0; i < bumped; i++) {
+                columnSetters[versionColumnIndex].accept(entities.get(i), versions[i]);
+            } throw e;
         }
+    }
+
+    /**
+     * Update the entities matching a predicate with a single statement, without reading them
+     * <pre>
+     * repository.updateWhere(connection, Map.of("city", "Rome"), Predicate.eq("city", "Roma"));
+     * </pre>
+     * @param connection The connection
+     * @param assignments The values to set (field name -> value)
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @return The number of affected rows
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final int updateWhere(Connection connection, Map<String, Object> assignments, Predicate predicate) throws SQLException {
+        return invalidated(connection, updateRange(connection, assignments, Objects.requireNonNull(predicate)));
+    }
 
-        return statement.executeBatch();
+    /**
+     * Update the entities matching a predicate in chunks of consecutive public keys, committing after every chunk (see purgeWhere)
+     * @param connection The connection (if not in auto-commit mode, the open transaction is committed too)
+     * @param assignments The values to set (field name -> value), not including the public key
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @param chunkSize The maximum number of rows of a chunk
+     * @return The number of affected rows
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final long updateWhere(Connection connection, Map<String, Object> assignments, Predicate predicate, int chunkSize) throws SQLException {
+        if (publicKeyColumnName != null && assignments.containsKey(descriptor.getColumnFieldName(publicKeyColumnName))) {
+            throw new IllegalArgumentException("The public key cannot be updated in chunks");
+        }
+        return forEachKeyRange(connection, Objects.requireNonNull(predicate), chunkSize, 0, null,
+                (c, range) -> updateRange(c, assignments, range));
     }
 
     // Delete methods
@@ -499,28 +804,40 @@ public class Repository<T> {
      * @throws SQLException The SQL exception if the operation fails for any reason
      */
     public final void delete(Connection connection, T entity) throws SQLException {
+        if (versionColumnIndex >= 0) {
+            delete(connection, Collections.singletonList(entity));
+            return;
+        }
         Object id = fieldValueGetterMap.get(publicKeyColumnName).apply(entity);
         deleteById(connection, id);
     }
 
     /**
-     * Delete entities
+     * Delete entities.
+     * If the entity has a @Version field, a row is deleted only if its version is still the one of the entity
+     * (see StaleEntityException).
      * @param connection The connection
      * @param entities The entities
+     * @return An array with the number of affected rows (one for each entity)
+     * @throws StaleEntityException If the version of some entities no longer matches
      * @throws SQLException The SQL exception if the operation fails for any reason
      */
-    public final void delete(Connection connection, List<T> entities) throws SQLException {
+    public final int[] delete(Connection connection, List<T> entities) throws SQLException {
         String query = String.format(DELETE_BY_KEY_RAW_QUERY, this.tableName, publicKeyColumnName);
+        if (versionColumnIndex >= 0) query = versionedQuery(query);
         PreparedStatement statement = connection.prepareStatement(query);
         Function<T, Object> idGetter = fieldValueGetterMap.get(publicKeyColumnName);
 
         for (T entity : entities) {
             Object id = idGetter.apply(entity);
-            statement.setObject(1, id);
+            bindColumnValue(statement, 1, publicKeyColumnName, id);
+            if (versionColumnIndex >= 0) bindColumnValue(statement, 2, columnNames.get(versionColumnIndex), columnGetters[versionColumnIndex].apply(entity));
             statement.addBatch();
         }
 
-        statement.executeBatch();
+        int[] counts = invalidated(connection, statement.executeBatch());
+        if (versionColumnIndex >= 0) checkVersions(entities, counts);
+        return counts;
     }
 
     /**
@@ -533,7 +850,21 @@ public class Repository<T> {
     public final boolean deleteWhere(Connection connection, String whereClause) throws SQLException {
         String query = String.format(DELETE_WHERE_RAW_QUERY, this.tableName, whereClause);
         PreparedStatement statement = connection.prepareStatement(query);
-        return statement.execute();
+        return invalidated(connection, statement.execute());
+    }
+
+    /**
+     * Delete entities matching a predicate
+     * @param connection The connection
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @return The number of affected rows
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final int deleteWhere(Connection connection, Predicate predicate) throws SQLException {
+        String query = String.format(DELETE_WHERE_RAW_QUERY, this.tableName, compilePredicate(predicate));
+        PreparedStatement statement = connection.prepareStatement(query);
+        this.populateStatement(statement, predicate);
+        return invalidated(connection, statement.executeUpdate());
     }
 
     /**
@@ -547,8 +878,8 @@ public class Repository<T> {
     public final boolean deleteBy(Connection connection, String columnName, Object value) throws SQLException {
         String query = String.format(DELETE_BY_KEY_RAW_QUERY, this.tableName, columnName);
         PreparedStatement statement = connection.prepareStatement(query);
-        statement.setObject(1, value);
-        return statement.execute();
+        bindColumnValue(statement, 1, columnName, value);
+        return invalidated(connection, statement.execute());
     }
 
     /**
@@ -564,8 +895,8 @@ public class Repository<T> {
         String rawKeys = generateSQLPlaceholders(values.size());
         String query = String.format(DELETE_BY_KEYS_RAW_QUERY, this.tableName, columnName, rawKeys);
         PreparedStatement statement = connection.prepareStatement(query);
-        populateStatement(statement, values);
-        return statement.execute();
+        populateStatement(statement, columnName, values);
+        return invalidated(connection, statement.execute());
     }
 
     /**
@@ -599,7 +930,47 @@ public class Repository<T> {
     public final boolean deleteAll(Connection connection) throws SQLException {
         String query = String.format(DELETE_ALL_RAW_QUERY, this.tableName);
         PreparedStatement statement = connection.prepareStatement(query);
-        return statement.execute();
+        return invalidated(connection, statement.execute());
+    }
+
+    /**
+     * Delete the entities matching a predicate in chunks of consecutive public keys, committing after every chunk,
+     * so that no statement holds its locks and undo log for the whole purge
+     * @param connection The connection (if not in auto-commit mode, the open transaction is committed too)
+     * @param predicate The predicate, e.g. Predicate.lt("createdAt", cutoff)
+     * @param chunkSize The maximum number of rows of a chunk
+     * @return The number of affected rows
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final long purgeWhere(Connection connection, Predicate predicate, int chunkSize) throws SQLException {
+        return purgeWhere(connection, predicate, chunkSize, 0, null);
+    }
+
+    /**
+     * Delete the entities matching a predicate in chunks of consecutive public keys (see purgeWhere), pausing between chunks
+     * @param connection The connection (if not in auto-commit mode, the open transaction is committed too)
+     * @param predicate The predicate, e.g. Predicate.lt("createdAt", cutoff)
+     * @param chunkSize The maximum number of rows of a chunk
+     * @param pauseMillis The pause after every chunk, to let replicas and other writers catch up (0 for none)
+     * @param progress The consumer of the number of rows deleted so far, called after every chunk (null if not needed)
+     * @return The number of affected rows
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final long purgeWhere(Connection connection, Predicate predicate, int chunkSize, long pauseMillis, LongConsumer progress) throws SQLException {
+        return forEachKeyRange(connection, Objects.requireNonNull(predicate), chunkSize, pauseMillis, progress, this::deleteRange);
+    }
+
+    /**
+     * Delete all the entities in chunks of consecutive public keys (see purgeWhere)
+     * @param connection The connection (if not in auto-commit mode, the open transaction is committed too)
+     * @param chunkSize The maximum number of rows of a chunk
+     * @param pauseMillis The pause after every chunk (0 for none)
+     * @param progress The consumer of the number of rows deleted so far, called after every chunk (null if not needed)
+     * @return The number of affected rows
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final long purgeAll(Connection connection, int chunkSize, long pauseMillis, LongConsumer progress) throws SQLException {
+        return forEachKeyRange(connection, null, chunkSize, pauseMillis, progress, this::deleteRange);
     }
 
     // Read methods
@@ -631,7 +1002,7 @@ public class Repository<T> {
      */
     public final List<T> read(Connection connection) throws SQLException {
         String query = String.format(SELECT_ALL_RAW_QUERY, this.columnNamesString, this.tableName);
-        PreparedStatement statement = connection.prepareStatement(query);
+        PreparedStatement statement = prepareRead(connection, query);
         ResultSet rs = statement.executeQuery();
         return readResultSet(rs);
     }
@@ -645,7 +1016,7 @@ public class Repository<T> {
      */
     public final List<T> read(Connection connection, Long limit) throws SQLException {
         String query = String.format(SELECT_ALL_LIMIT_RAW_QUERY, this.columnNamesString, this.tableName, limit);
-        PreparedStatement statement = connection.prepareStatement(query);
+        PreparedStatement statement = prepareRead(connection, query);
         ResultSet rs = statement.executeQuery();
         return readResultSet(rs);
     }
@@ -660,7 +1031,7 @@ public class Repository<T> {
      */
     public final List<T> read(Connection connection, Long limit, Long offset) throws SQLException {
         String query = String.format(SELECT_ALL_LIMIT_OFFSET_RAW_QUERY, this.columnNamesString, this.tableName, limit, offset);
-        PreparedStatement statement = connection.prepareStatement(query);
+        PreparedStatement statement = prepareRead(connection, query);
         ResultSet rs = statement.executeQuery();
         return readResultSet(rs);
     }
@@ -674,7 +1045,7 @@ public class Repository<T> {
      */
     public final List<T> read(Connection connection, String orderByClause) throws SQLException {
         String query = String.format(SELECT_ALL_ORDER_BY_RAW_QUERY, this.columnNamesString, this.tableName, orderByClause);
-        PreparedStatement statement = connection.prepareStatement(query);
+        PreparedStatement statement = prepareRead(connection, query);
         ResultSet rs = statement.executeQuery();
         return readResultSet(rs);
     }
@@ -689,7 +1060,7 @@ public class Repository<T> {
      */
     public final List<T> read(Connection connection, String orderByClause, Long limit) throws SQLException {
         String query = String.format(SELECT_ALL_ORDER_BY_LIMIT_RAW_QUERY, this.columnNamesString, this.tableName, orderByClause, limit);
-        PreparedStatement statement = connection.prepareStatement(query);
+        PreparedStatement statement = prepareRead(connection, query);
         ResultSet rs = statement.executeQuery();
         return readResultSet(rs);
     }
@@ -705,7 +1076,7 @@ public class Repository<T> {
      */
     public final List<T> read(Connection connection, String orderByClause, Long limit, Long offset) throws SQLException {
         String query = String.format(SELECT_ALL_ORDER_BY_LIMIT_OFFSET_RAW_QUERY, this.columnNamesString, this.tableName, orderByClause, limit, offset);
-        PreparedStatement statement = connection.prepareStatement(query);
+        PreparedStatement statement = prepareRead(connection, query);
         ResultSet rs = statement.executeQuery();
         return readResultSet(rs);
     }
@@ -741,9 +1112,7 @@ public class Repository<T> {
      */
     public final List<T> readWhere(Connection connection, String whereClause) throws SQLException {
         String query = String.format(SELECT_WHERE_RAW_QUERY, this.columnNamesString, this.tableName, whereClause);
-        PreparedStatement statement = connection.prepareStatement(query);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, Collections.emptyList(), statement -> {});
     }
 
     /**
@@ -756,9 +1125,7 @@ public class Repository<T> {
      */
     public final List<T> readWhere(Connection connection, String whereClause, Long limit) throws SQLException {
         String query = String.format(SELECT_WHERE_LIMIT_RAW_QUERY, this.columnNamesString, this.tableName, whereClause, limit);
-        PreparedStatement statement = connection.prepareStatement(query);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, Collections.emptyList(), statement -> {});
     }
 
     /**
@@ -772,9 +1139,7 @@ public class Repository<T> {
      */
     public final List<T> readWhere(Connection connection, String whereClause, Long limit, Long offset) throws SQLException {
         String query = String.format(SELECT_WHERE_LIMIT_OFFSET_RAW_QUERY, this.columnNamesString, this.tableName, whereClause, limit, offset);
-        PreparedStatement statement = connection.prepareStatement(query);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, Collections.emptyList(), statement -> {});
     }
 
     /**
@@ -787,9 +1152,7 @@ public class Repository<T> {
      */
     public final List<T> readWhere(Connection connection, String whereClause, String orderByClause) throws SQLException {
         String query = String.format(SELECT_WHERE_ORDER_BY_RAW_QUERY, this.columnNamesString, this.tableName, whereClause, orderByClause);
-        PreparedStatement statement = connection.prepareStatement(query);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, Collections.emptyList(), statement -> {});
     }
 
     /**
@@ -803,9 +1166,7 @@ public class Repository<T> {
      */
     public final List<T> readWhere(Connection connection, String whereClause, String orderByClause, Long limit) throws SQLException {
         String query = String.format(SELECT_WHERE_ORDER_BY_LIMIT_RAW_QUERY, this.columnNamesString, this.tableName, whereClause, orderByClause, limit);
-        PreparedStatement statement = connection.prepareStatement(query);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, Collections.emptyList(), statement -> {});
     }
 
     /**
@@ -820,9 +1181,108 @@ public class Repository<T> {
      */
     public final List<T> readWhere(Connection connection, String whereClause, String orderByClause, Long limit, Long offset) throws SQLException {
         String query = String.format(SELECT_WHERE_ORDER_BY_LIMIT_OFFSET_RAW_QUERY, this.columnNamesString, this.tableName, whereClause, orderByClause, limit, offset);
-        PreparedStatement statement = connection.prepareStatement(query);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, Collections.emptyList(), statement -> {});
+    }
+
+    // Read where predicate methods
+
+    /**
+     * Read entities matching a predicate
+     * @param connection The connection
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @param pageable The pageable
+     * @return The list of entities
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final List<T> readWhere(Connection connection, Predicate predicate, Pageable pageable) throws SQLException {
+        Long offset = pageable.page * pageable.size;
+        Optional<String> orderByClause = getOrderByClauseFromPageable(pageable);
+        if (orderByClause.isEmpty()){
+            return readWhere(connection, predicate, pageable.size, offset);
+        } else {
+            return readWhere(connection, predicate, orderByClause.get(), pageable.size, offset);
+        }
+    }
+
+    /**
+     * Read entities matching a predicate
+     * @param connection The connection
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @return The list of entities
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final List<T> readWhere(Connection connection, Predicate predicate) throws SQLException {
+        String query = String.format(SELECT_WHERE_RAW_QUERY, this.columnNamesString, this.tableName, compilePredicate(predicate));
+        return readWhere(connection, query, predicate);
+    }
+
+    /**
+     * Read entities matching a predicate
+     * @param connection The connection
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @param limit The limit (number of entities to read)
+     * @return The list of entities
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final List<T> readWhere(Connection connection, Predicate predicate, Long limit) throws SQLException {
+        String query = String.format(SELECT_WHERE_LIMIT_RAW_QUERY, this.columnNamesString, this.tableName, compilePredicate(predicate), limit);
+        return readWhere(connection, query, predicate);
+    }
+
+    /**
+     * Read entities matching a predicate
+     * @param connection The connection
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @param limit The limit (number of entities to read)
+     * @param offset The offset (number of entities to skip)
+     * @return The list of entities
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final List<T> readWhere(Connection connection, Predicate predicate, Long limit, Long offset) throws SQLException {
+        String query = String.format(SELECT_WHERE_LIMIT_OFFSET_RAW_QUERY, this.columnNamesString, this.tableName, compilePredicate(predicate), limit, offset);
+        return readWhere(connection, query, predicate);
+    }
+
+    /**
+     * Read entities matching a predicate
+     * @param connection The connection
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @param orderByClause The order by clause, e.g. "name DESC"
+     * @return The list of entities
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final List<T> readWhere(Connection connection, Predicate predicate, String orderByClause) throws SQLException {
+        String query = String.format(SELECT_WHERE_ORDER_BY_RAW_QUERY, this.columnNamesString, this.tableName, compilePredicate(predicate), orderByClause);
+        return readWhere(connection, query, predicate);
+    }
+
+    /**
+     * Read entities matching a predicate
+     * @param connection The connection
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @param orderByClause The order by clause, e.g. "name DESC"
+     * @param limit The limit (number of entities to read)
+     * @return The list of entities
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final List<T> readWhere(Connection connection, Predicate predicate, String orderByClause, Long limit) throws SQLException {
+        String query = String.format(SELECT_WHERE_ORDER_BY_LIMIT_RAW_QUERY, this.columnNamesString, this.tableName, compilePredicate(predicate), orderByClause, limit);
+        return readWhere(connection, query, predicate);
+    }
+
+    /**
+     * Read entities matching a predicate
+     * @param connection The connection
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @param orderByClause The order by clause, e.g. "name DESC"
+     * @param limit The limit (number of entities to read)
+     * @param offset The offset (number of entities to skip)
+     * @return The list of entities
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final List<T> readWhere(Connection connection, Predicate predicate, String orderByClause, Long limit, Long offset) throws SQLException {
+        String query = String.format(SELECT_WHERE_ORDER_BY_LIMIT_OFFSET_RAW_QUERY, this.columnNamesString, this.tableName, compilePredicate(predicate), orderByClause, limit, offset);
+        return readWhere(connection, query, predicate);
     }
 
     // Read by methods
@@ -878,10 +1338,7 @@ public class Repository<T> {
      */
     public final List<T> readBy(Connection connection, String columnName, Object value) throws SQLException {
         String query = String.format(SELECT_BY_KEY_RAW_QUERY, this.columnNamesString, this.tableName, columnName);
-        PreparedStatement statement = connection.prepareStatement(query);
-        statement.setObject(1, value);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, Collections.singletonList(value), statement -> bindColumnValue(statement, 1, columnName, value));
     }
 
     /**
@@ -895,10 +1352,7 @@ public class Repository<T> {
      */
     public final List<T> readBy(Connection connection, String columnName, Object value, Long limit) throws SQLException {
         String query = String.format(SELECT_BY_KEY_LIMIT_RAW_QUERY, this.columnNamesString, this.tableName, columnName, limit);
-        PreparedStatement statement = connection.prepareStatement(query);
-        statement.setObject(1, value);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, Collections.singletonList(value), statement -> bindColumnValue(statement, 1, columnName, value));
     }
 
     /**
@@ -913,10 +1367,7 @@ public class Repository<T> {
      */
     public final List<T> readBy(Connection connection, String columnName, Object value, Long limit, Long offset) throws SQLException {
         String query = String.format(SELECT_BY_KEY_LIMIT_OFFSET_RAW_QUERY, this.columnNamesString, this.tableName, columnName, limit, offset);
-        PreparedStatement statement = connection.prepareStatement(query);
-        statement.setObject(1, value);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, Collections.singletonList(value), statement -> bindColumnValue(statement, 1, columnName, value));
     }
 
     /**
@@ -930,10 +1381,7 @@ public class Repository<T> {
      */
     public final List<T> readBy(Connection connection, String columnName, Object value, String orderByClause) throws SQLException {
         String query = String.format(SELECT_BY_KEY_ORDER_BY_RAW_QUERY, this.columnNamesString, this.tableName, columnName, orderByClause);
-        PreparedStatement statement = connection.prepareStatement(query);
-        statement.setObject(1, value);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, Collections.singletonList(value), statement -> bindColumnValue(statement, 1, columnName, value));
     }
 
     /**
@@ -948,10 +1396,7 @@ public class Repository<T> {
      */
     public final List<T> readBy(Connection connection, String columnName, Object value, String orderByClause, Long limit) throws SQLException {
         String query = String.format(SELECT_BY_KEY_ORDER_BY_LIMIT_RAW_QUERY, this.columnNamesString, this.tableName, columnName, orderByClause, limit);
-        PreparedStatement statement = connection.prepareStatement(query);
-        statement.setObject(1, value);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, Collections.singletonList(value), statement -> bindColumnValue(statement, 1, columnName, value));
     }
 
     /**
@@ -967,10 +1412,7 @@ public class Repository<T> {
      */
     public final List<T> readBy(Connection connection, String columnName, Object value, String orderByClause, Long limit, Long offset) throws SQLException {
         String query = String.format(SELECT_BY_KEY_ORDER_BY_LIMIT_OFFSET_RAW_QUERY, this.columnNamesString, this.tableName, columnName, orderByClause, limit, offset);
-        PreparedStatement statement = connection.prepareStatement(query);
-        statement.setObject(1, value);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, Collections.singletonList(value), statement -> bindColumnValue(statement, 1, columnName, value));
     }
 
     /**
@@ -985,10 +1427,7 @@ public class Repository<T> {
         if (values.isEmpty()) return new ArrayList<>();
         String rawValues = generateSQLPlaceholders(values.size());
         String query = String.format(SELECT_BY_KEYS_RAW_QUERY, this.columnNamesString, this.tableName, columnName, rawValues);
-        PreparedStatement statement = connection.prepareStatement(query);
-        this.populateStatement(statement,values);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, values, statement -> populateStatement(statement, columnName, values));
     }
 
     /**
@@ -1004,10 +1443,7 @@ public class Repository<T> {
         if (values.isEmpty()) return new ArrayList<>();
         String rawValues = generateSQLPlaceholders(values.size());
         String query = String.format(SELECT_BY_KEYS_LIMIT_RAW_QUERY, this.columnNamesString, this.tableName, columnName, rawValues, limit);
-        PreparedStatement statement = connection.prepareStatement(query);
-        this.populateStatement(statement,values);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, values, statement -> populateStatement(statement, columnName, values));
     }
 
     /**
@@ -1024,10 +1460,7 @@ public class Repository<T> {
         if (values.isEmpty()) return new ArrayList<>();
         String rawValues = generateSQLPlaceholders(values.size());
         String query = String.format(SELECT_BY_KEYS_LIMIT_OFFSET_RAW_QUERY, this.columnNamesString, this.tableName, columnName, rawValues, limit, offset);
-        PreparedStatement statement = connection.prepareStatement(query);
-        this.populateStatement(statement,values);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, values, statement -> populateStatement(statement, columnName, values));
     }
 
     /**
@@ -1043,10 +1476,7 @@ public class Repository<T> {
         if (values.isEmpty()) return new ArrayList<>();
         String rawValues = generateSQLPlaceholders(values.size());
         String query = String.format(SELECT_BY_KEYS_ORDER_BY_RAW_QUERY, this.columnNamesString, this.tableName, columnName, rawValues, orderByClause);
-        PreparedStatement statement = connection.prepareStatement(query);
-        this.populateStatement(statement,values);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, values, statement -> populateStatement(statement, columnName, values));
     }
 
     /**
@@ -1063,10 +1493,7 @@ public class Repository<T> {
         if (values.isEmpty()) return new ArrayList<>();
         String rawValues = generateSQLPlaceholders(values.size());
         String query = String.format(SELECT_BY_KEYS_ORDER_BY_LIMIT_RAW_QUERY, this.columnNamesString, this.tableName, columnName, rawValues, orderByClause, limit);
-        PreparedStatement statement = connection.prepareStatement(query);
-        this.populateStatement(statement,values);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, values, statement -> populateStatement(statement, columnName, values));
     }
 
     /**
@@ -1084,10 +1511,7 @@ public class Repository<T> {
         if (values.isEmpty()) return new ArrayList<>();
         String rawValues = generateSQLPlaceholders(values.size());
         String query = String.format(SELECT_BY_KEYS_ORDER_BY_LIMIT_OFFSET_RAW_QUERY, this.columnNamesString, this.tableName, columnName, rawValues, orderByClause, limit, offset);
-        PreparedStatement statement = connection.prepareStatement(query);
-        this.populateStatement(statement,values);
-        ResultSet rs = statement.executeQuery();
-        return readResultSet(rs);
+        return read(connection, query, values, statement -> populateStatement(statement, columnName, values));
     }
 
     // Read by query methods
@@ -1101,7 +1525,7 @@ public class Repository<T> {
      * @throws SQLException The SQL exception if the operation fails for any reason
      */
     public final List<T> readByQuery(Connection connection,String query, Object...values) throws SQLException {
-        PreparedStatement statement = connection.prepareStatement(query);
+        PreparedStatement statement = prepareRead(connection, query);
         List<Object> valueList = Arrays.asList(values);
         this.populateStatement(statement,valueList);
         ResultSet rs = statement.executeQuery();
@@ -1117,7 +1541,7 @@ public class Repository<T> {
      * @throws SQLException The SQL exception if the operation fails for any reason
      */
     public final List<T> readByQuery(Connection connection,String query, List<Object> values) throws SQLException{
-        PreparedStatement statement = connection.prepareStatement(query);
+        PreparedStatement statement = prepareRead(connection, query);
         this.populateStatement(statement,values);
         ResultSet rs = statement.executeQuery();
         return readResultSet(rs);
@@ -1133,7 +1557,7 @@ public class Repository<T> {
      * @throws SQLException The SQL exception if the operation fails for any reason
      */
     public final List<T> readByQuery(Connection connection, String query, BiConsumer<ResultSet,T> consumer, Object...values) throws SQLException {
-        PreparedStatement statement = connection.prepareStatement(query);
+        PreparedStatement statement = prepareRead(connection, query);
         List<Object> valueList = Arrays.asList(values);
         this.populateStatement(statement,valueList);
         ResultSet rs = statement.executeQuery();
@@ -1150,7 +1574,7 @@ public class Repository<T> {
      * @throws SQLException The SQL exception if the operation fails for any reason
      */
     public final List<T> readByQuery(Connection connection, String query, BiConsumer<ResultSet,T> consumer, List<Object> values) throws SQLException {
-        PreparedStatement statement = connection.prepareStatement(query);
+        PreparedStatement statement = prepareRead(connection, query);
         this.populateStatement(statement,values);
         ResultSet rs = statement.executeQuery();
         return readResultSet(rs,consumer);
@@ -1167,7 +1591,7 @@ public class Repository<T> {
      * @throws SQLException The SQL exception if the operation fails for any reason
      */
     public final <C extends T> List<C> readByQuery(Connection connection, String query, Supplier<C> supplier,  BiConsumer<ResultSet,C> consumer, Object...values) throws SQLException {
-        PreparedStatement statement = connection.prepareStatement(query);
+        PreparedStatement statement = prepareRead(connection, query);
         List<Object> valueList = Arrays.asList(values);
         this.populateStatement(statement,valueList);
         ResultSet rs = statement.executeQuery();
@@ -1185,7 +1609,7 @@ public class Repository<T> {
      * @throws SQLException The SQL exception if the operation fails for any reason
      */
     public final <C extends T> List<C> readByQuery(Connection connection, String query, Supplier<C> supplier, BiConsumer<ResultSet,C> consumer, List<Object> values) throws SQLException {
-        PreparedStatement statement = connection.prepareStatement(query);
+        PreparedStatement statement = prepareRead(connection, query);
         this.populateStatement(statement,values);
         ResultSet rs = statement.executeQuery();
         return readResultSet(rs,supplier,consumer);
@@ -1206,6 +1630,407 @@ public class Repository<T> {
         return results.get(0);
     }
 
+    /**
+     * Read entities by id, with one IN query for every 1000 distinct ids
+     * @param connection The connection
+     * @param ids The ids (duplicates and nulls are ignored)
+     * @return The entities by id, keyed by the ids as given (ids without entity are missing)
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final Map<Object, T> readByIds(Connection connection, List<Object> ids) throws SQLException {
+        return readByIds(connection, ids, false, null);
+    }
+
+    /**
+     * Read entities by id, with one IN query for every 1000 distinct ids
+     * @param connection The connection
+     * @param ids The ids (duplicates and nulls are ignored)
+     * @param keepOrder True to iterate the returned map in the order of the ids
+     * @param missingIds The collection receiving the ids without entity, in input order (null if not needed)
+     * @return The entities by id, keyed by the ids as given
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final Map<Object, T> readByIds(Connection connection, List<Object> ids, boolean keepOrder, Collection<Object> missingIds) throws SQLException {
+        if (publicKeyColumnName == null) throw new IllegalStateException("The entity " + typeClass.getName() + " has no public key");
+        Map<Object, Object> requested = new LinkedHashMap<>(hashCapacity(ids.size()));
+        for (Object id : ids) {
+            if (id != null) requested.putIfAbsent(normalizeKey(toColumnValue(publicKeyColumnIndex, id)), id);
+        }
+
+        Function<T, Object> idGetter = this.columnGetters[publicKeyColumnIndex];
+        Map<Object, T> found = keepOrder || missingIds != null ? new HashMap<>(hashCapacity(requested.size())) : null;
+        Map<Object, T> results = new HashMap<>(hashCapacity(requested.size()));
+        List<Object> keys = new ArrayList<>(requested.values());
+        for (int from = 0; from < keys.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+            List<Object> chunk = keys.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, keys.size()));
+            for (T entity : readBy(connection, publicKeyColumnName, chunk)) {
+                Object key = normalizeKey(idGetter.apply(entity));
+                if (found != null) found.put(key, entity);
+                else if (requested.containsKey(key)) results.put(requested.get(key), entity);
+            }
+        }
+        if (found == null) return results;
+
+        // The rows arrive in database order: the map is built following the ids
+        if (keepOrder) results = new LinkedHashMap<>(hashCapacity(found.size()));
+        for (Map.Entry<Object, Object> entry : requested.entrySet()) {
+            T entity = found.get(entry.getKey());
+            if (entity != null) results.put(entry.getValue(), entity);
+            else if (missingIds != null) missingIds.add(entry.getValue());
+        } return results;
+    }
+
+    // Exists methods
+
+    /**
+     * Check whether an entity exists, reading only its id
+     * @param connection The connection
+     * @param value The id of the entity
+     * @return True if the entity exists
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final boolean existsById(Connection connection, Object value) throws SQLException {
+        if (publicKeyColumnName == null) throw new IllegalStateException("The entity " + typeClass.getName() + " has no public key");
+        return existsBy(connection, publicKeyColumnName, value);
+    }
+
+    /**
+     * Check whether at least one entity has a column value, stopping at the first match
+     * @param connection The connection
+     * @param column The column
+     * @param value The value (null never matches)
+     * @return True if an entity matches
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final boolean existsBy(Connection connection, String column, Object value) throws SQLException {
+        String selectedColumn = publicKeyColumnName != null ? publicKeyColumnName : column;
+        String query = String.format(SELECT_BY_KEY_LIMIT_RAW_QUERY, selectedColumn, this.tableName, column, 1);
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            bindColumnValue(statement, 1, column, value);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+
+    /**
+     * Get which of a list of ids exist, reading only the ids with one IN query for every 1000 distinct ids
+     * @param connection The connection
+     * @param ids The ids
+     * @return The existing ids, as given and in input order
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final Set<Object> existingIds(Connection connection, List<Object> ids) throws SQLException {
+        if (publicKeyColumnName == null) throw new IllegalStateException("The entity " + typeClass.getName() + " has no public key");
+        Map<Object, Object> requested = new LinkedHashMap<>(hashCapacity(ids.size()));
+        for (Object id : ids) {
+            if (id != null) requested.putIfAbsent(normalizeKey(toColumnValue(publicKeyColumnIndex, id)), id);
+        }
+
+        Set<Object> found = new HashSet<>(hashCapacity(requested.size()));
+        List<Object> keys = new ArrayList<>(requested.values());
+        TypeConverter<Object> idConverter = this.columnConverters[publicKeyColumnIndex];
+        for (int from = 0; from < keys.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+            List<Object> chunk = keys.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, keys.size()));
+            String query = String.format(SELECT_BY_KEYS_RAW_QUERY, publicKeyColumnName, this.tableName, publicKeyColumnName, generateSQLPlaceholders(chunk.size()));
+            try (PreparedStatement statement = connection.prepareStatement(query)) {
+                this.populateStatement(statement, publicKeyColumnName, chunk);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        found.add(normalizeKey(idConverter.read(resultSet, publicKeyColumnName)));
+                    }
+                }
+            }
+        }
+
+        Set<Object> existing = new LinkedHashSet<>(hashCapacity(found.size()));
+        for (Map.Entry<Object, Object> entry : requested.entrySet()) {
+            if (found.contains(entry.getKey())) existing.add(entry.getValue());
+        } return existing;
+    }
+
+    // Scan methods
+
+    /**
+     * Visit all the entities, one at a time. A single entity instance is reused and repopulated for every row,
+     * so the visitor must not keep references to it (copy the values it needs instead).
+     * @param connection The connection
+     * @param visitor The visitor called for every row
+     * @return The number of visited rows
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final long scan(Connection connection, Consumer<T> visitor) throws SQLException {
+        String query = String.format(SELECT_ALL_RAW_QUERY, this.columnNamesString, this.tableName);
+        return scanByQuery(connection, query, visitor, Collections.emptyList());
+    }
+
+    /**
+     * Visit the entities matching a predicate, one at a time. A single entity instance is reused and repopulated
+     * for every row, so the visitor must not keep references to it (copy the values it needs instead).
+     * @param connection The connection
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @param visitor The visitor called for every row
+     * @return The number of visited rows
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final long scanWhere(Connection connection, Predicate predicate, Consumer<T> visitor) throws SQLException {
+        String query = String.format(SELECT_WHERE_RAW_QUERY, this.columnNamesString, this.tableName, compilePredicate(predicate));
+        return scan(connection, query, visitor, statement -> populateStatement(statement, predicate));
+    }
+
+    /**
+     * Visit the entities read by a query, one at a time. A single entity instance is reused and repopulated
+     * for every row, so the visitor must not keep references to it (copy the values it needs instead).
+     * @param connection The connection
+     * @param query The query, e.g. "SELECT * FROM table WHERE name = ?"
+     * @param visitor The visitor called for every row
+     * @param values The values for the query
+     * @return The number of visited rows
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final long scanByQuery(Connection connection, String query, Consumer<T> visitor, Object...values) throws SQLException {
+        return scanByQuery(connection, query, visitor, Arrays.asList(values));
+    }
+
+    /**
+     * Visit the entities read by a query, one at a time. A single entity instance is reused and repopulated
+     * for every row, so the visitor must not keep references to it (copy the values it needs instead).
+     * @param connection The connection
+     * @param query The query, e.g. "SELECT * FROM table WHERE name = ?"
+     * @param visitor The visitor called for every row
+     * @param values The values for the query
+     * @return The number of visited rows
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final long scanByQuery(Connection connection, String query, Consumer<T> visitor, List<Object> values) throws SQLException {
+        return scan(connection, query, visitor, statement -> populateStatement(statement, values));
+    }
+
+    private long scan(Connection connection, String query, Consumer<T> visitor, StatementBinder binder) throws SQLException {
+        try (PreparedStatement statement = prepareRead(connection, query)) {
+            binder.bind(statement);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                FetchConfig sampling = samplingFetchConfig();
+                long rows = 0;
+                T entity = null;
+                while (resultSet.next()) {
+                    if (entity == null) entity = this.instantiateEntity(resultSet);
+                    this.populateEntity(resultSet, entity);
+                    if (sampling != null && rows < FetchConfig.SAMPLED_ROWS) observeRow(sampling, entity);
+                    visitor.accept(entity);
+                    rows++;
+                } return rows;
+            }
+        }
+    }
+
+    // Publish methods
+
+    /**
+     * Publish all the entities. Each subscription reads the rows on its own connection of the data source, only as
+     * they are requested, and cancelling it cancels the query.
+     * @param dataSource The data source
+     * @return The publisher
+     */
+    public final Flow.Publisher<T> publish(DataSource dataSource) {
+        String query = String.format(SELECT_ALL_RAW_QUERY, this.columnNamesString, this.tableName);
+        return publishByQuery(dataSource, query, Collections.emptyList());
+    }
+
+    /**
+     * Publish the entities matching a predicate (see publish)
+     * @param dataSource The data source
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @return The publisher
+     */
+    public final Flow.Publisher<T> publishWhere(DataSource dataSource, Predicate predicate) {
+        String query = String.format(SELECT_WHERE_RAW_QUERY, this.columnNamesString, this.tableName, compilePredicate(predicate));
+        return publish(dataSource, query, statement -> populateStatement(statement, predicate));
+    }
+
+    /**
+     * Publish the entities matching a predicate, sorted (see publish)
+     * @param dataSource The data source
+     * @param predicate The predicate, e.g. Predicate.eq("city", "Rome")
+     * @param orderByClause The order by clause, e.g. "name DESC"
+     * @return The publisher
+     */
+    public final Flow.Publisher<T> publishWhere(DataSource dataSource, Predicate predicate, String orderByClause) {
+        String query = String.format(SELECT_WHERE_ORDER_BY_RAW_QUERY, this.columnNamesString, this.tableName, compilePredicate(predicate), orderByClause);
+        return publish(dataSource, query, statement -> populateStatement(statement, predicate));
+    }
+
+    /**
+     * Publish the entities read by a query (see publish). The subscriptions use the fetch configuration active when the publisher is created.
+     * @param dataSource The data source
+     * @param query The query, e.g. "SELECT * FROM table WHERE name = ?"
+     * @param values The values for the query
+     * @return The publisher
+     */
+    public final Flow.Publisher<T> publishByQuery(DataSource dataSource, String query, List<Object> values) {
+        List<Object> parameters = new ArrayList<>(values);
+        return publish(dataSource, query, statement -> populateStatement(statement, parameters));
+    }
+
+    private Flow.Publisher<T> publish(DataSource dataSource, String query, StatementBinder binder) {
+        FetchConfig config = activeFetchConfig();
+        return new ResultPublisher<>(dataSource, publisherExecutor, query, statement -> {
+            config.apply(statement);
+            binder.bind(statement);
+        }, resultSet -> {
+            T entity = this.instantiateEntity(resultSet);
+            this.populateEntity(resultSet, entity);
+            return entity;
+        });
+    }
+
+    // Change tracking methods
+
+    /**
+     * Read a batch of the entities changed after a watermark, ordered by change column and public key (keyset paging).
+     * Rows with a null change column are never returned. Rows committed late with a change value lower than the
+     * watermark (e.g. a timestamp taken at the start of a long transaction) are missed, so prefer values assigned at commit time
+     * or read with a watermark a little behind the last one.
+     * @param connection The connection
+     * @param since The watermark (ChangeBatch.Watermark.initial() to read from the start)
+     * @param batchSize The maximum number of entities of the batch
+     * @return The batch, with the watermark to read the next one from
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     * @throws IllegalStateException If no change tracking field is set
+     */
+    public final ChangeBatch<T> readChangedSince(Connection connection, ChangeBatch.Watermark since, int batchSize) throws SQLException {
+        String changeField = this.changeTrackingFieldName;
+        if (changeField == null) throw new IllegalStateException("No change tracking field set for " + typeClass.getName());
+        if (publicKeyColumnName == null) throw new IllegalStateException("The entity " + typeClass.getName() + " has no public key");
+        String idField = descriptor.getColumnFieldName(publicKeyColumnName);
+        Predicate predicate;
+        if (since.getValue() == null) {
+            predicate = Predicate.isNotNull(changeField);
+        } else if (since.getId() == null) {
+            predicate = Predicate.gt(changeField, since.getValue());
+        } else {
+            predicate = Predicate.or(Predicate.gt(changeField, since.getValue()),
+                    Predicate.and(Predicate.eq(changeField, since.getValue()), Predicate.gt(idField, since.getId())));
+        }
+        String orderByClause = getFieldColumnName(changeField) + ", " + publicKeyColumnName;
+        List<T> entities = readWhere(connection, predicate, orderByClause, (long) batchSize);
+        if (entities.isEmpty()) return new ChangeBatch<>(entities, since, false);
+        T last = entities.get(entities.size() - 1);
+        ChangeBatch.Watermark watermark = new ChangeBatch.Watermark(getFieldValue(last, changeField), getFieldValue(last, idField));
+        return new ChangeBatch<>(entities, watermark, entities.size() == batchSize);
+    }
+
+    /**
+     * Read all the entities changed after a watermark, one batch at a time
+     * @param connection The connection
+     * @param since The watermark (ChangeBatch.Watermark.initial() to read from the start)
+     * @param batchSize The maximum number of entities of a batch
+     * @param consumer The consumer of the batches
+     * @return The watermark after the last change read, to resume from next time
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final ChangeBatch.Watermark readAllChangedSince(Connection connection, ChangeBatch.Watermark since, int batchSize, Consumer<List<T>> consumer) throws SQLException {
+        ChangeBatch<T> batch;
+        do {
+            batch = readChangedSince(connection, since, batchSize);
+            if (!batch.getEntities().isEmpty()) consumer.accept(batch.getEntities());
+            since = batch.getWatermark();
+        } while (batch.hasMore());
+        return since;
+    }
+
+    // Association methods
+
+    /**
+     * Read the entity referenced by each parent and attach it through a setter (many-to-one or one-to-one).
+     * The children are read with one IN query for every 1000 distinct keys, instead of one query per parent.
+     * @param connection The connection
+     * @param parentRepository The repository of the parents
+     * @param parents The parents
+     * @param parentFieldName The parent field holding the key, e.g. "detailsId"
+     * @param childFieldName The field of this entity matched by the key, e.g. "id"
+     * @param setter The setter attaching the child to the parent (called with null if no child matches)
+     * @param <P> The type of the parents
+     * @return The number of children read
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final <P> int attachOne(Connection connection, Repository<P> parentRepository, List<P> parents, String parentFieldName,
+                                   String childFieldName, BiConsumer<P,T> setter) throws SQLException {
+        Map<Object, List<T>> children = readByParents(connection, parentRepository, parents, parentFieldName, childFieldName);
+        int count = 0;
+        for (List<T> list : children.values()) {
+            count += list.size();
+        }
+        for (P parent : parents) {
+            List<T> matches = children.get(normalizeKey(parentRepository.getFieldValue(parent, parentFieldName)));
+            setter.accept(parent, matches == null ? null : matches.get(0));
+        } return count;
+    }
+
+    /**
+     * Read the entities referencing each parent and attach them as a list through a setter (one-to-many).
+     * The children are read with one IN query for every 1000 distinct keys, instead of one query per parent.
+     * @param connection The connection
+     * @param parentRepository The repository of the parents
+     * @param parents The parents
+     * @param parentFieldName The parent field holding the key, e.g. "id"
+     * @param childFieldName The field of this entity matched by the key, e.g. "companyId"
+     * @param setter The setter attaching the children to the parent (called with an empty list if no child matches)
+     * @param <P> The type of the parents
+     * @return The number of children read
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public final <P> int attachMany(Connection connection, Repository<P> parentRepository, List<P> parents, String parentFieldName,
+                                    String childFieldName, BiConsumer<P,List<T>> setter) throws SQLException {
+        Map<Object, List<T>> children = readByParents(connection, parentRepository, parents, parentFieldName, childFieldName);
+        int count = 0;
+        for (List<T> list : children.values()) {
+            count += list.size();
+        }
+        for (P parent : parents) {
+            List<T> matches = children.get(normalizeKey(parentRepository.getFieldValue(parent, parentFieldName)));
+            setter.accept(parent, matches == null ? new ArrayList<>() : matches);
+        } return count;
+    }
+
+    // Snapshot methods
+
+    /**
+     * Write all the rows of the table into a compact binary snapshot file, that can be opened later with {@link #openSnapshot(Path)}
+     * @param connection The connection
+     * @param path The snapshot file (replaced if it already exists)
+     * @return The number of rows written
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     * @throws IOException The IO exception if the file cannot be written
+     */
+    public final long writeSnapshot(Connection connection, Path path) throws SQLException, IOException {
+        return Snapshot.write(this, connection, path, null);
+    }
+
+    /**
+     * Write all the rows of the table into a compact binary snapshot file, that can be opened later with {@link #openSnapshot(Path)}.
+     * The highest value of the updated field is stored as watermark, to fetch only the rows changed afterwards.
+     * @param connection The connection
+     * @param path The snapshot file (replaced if it already exists)
+     * @param updatedFieldName The field name of a last-update timestamp or version column, e.g. "updatedAt"
+     * @return The number of rows written
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     * @throws IOException The IO exception if the file cannot be written
+     */
+    public final long writeSnapshot(Connection connection, Path path, String updatedFieldName) throws SQLException, IOException {
+        return Snapshot.write(this, connection, path, getRequiredFieldColumnName(updatedFieldName));
+    }
+
+    /**
+     * Memory-map a snapshot file written by {@link #writeSnapshot(Connection, Path)}
+     * @param path The snapshot file
+     * @return The snapshot
+     * @throws IOException The IO exception if the file cannot be read or does not match the entity columns
+     */
+    public final Snapshot<T> openSnapshot(Path path) throws IOException {
+        return Snapshot.open(this, path);
+    }
+
     // Overrideable methods
 
     /**
@@ -1213,13 +2038,9 @@ public class Repository<T> {
      * @return A new instance of type T
      */
     public T instantiateEntity()  {
-        T temp = null;
-        try {
-            Constructor<T> constructor = typeClass.getDeclaredConstructor();
-            temp = constructor.newInstance();
-        } catch (Exception e) {
-            e.printStackTrace();
-        } return temp;
+        if (factory == null) {
+            throw new IllegalStateException(typeClass.getName() + " has no no-arg constructor: override instantiateEntity to create its instances");
+        } return factory.get();
     }
 
     /**
@@ -1239,196 +2060,496 @@ public class Repository<T> {
      * @throws SQLException The SQL exception if the operation fails for any reason
      */
     public void populateEntity(ResultSet resultSet, T obj) throws SQLException {
-        for (String columnName : columnNames) {
-            Object rawValue = resultSet.getObject(columnName);
-            this.fieldValueSettersMap.get(columnName).accept(obj, rawValue);
+        for (int i = 0; i < columnSetters.length; i++) {
+            Object value = rawColumns[i] ? resultSet.getObject(descriptor.getColumnName(i)) : columnConverters[i].read(resultSet, descriptor.getColumnName(i));
+            columnSetters[i].accept(obj, value);
+        }
+    }
+
+    // Package methods
+
+    /**
+     * Normalize a key value, so that keys read from different columns or drivers compare equal (e.g. Integer and Long)
+     * @param key The key
+     * @return The normalized key
+     */
+    static Object normalizeKey(Object key) {
+        if (key instanceof Integer || key instanceof Long || key instanceof Short || key instanceof Byte) {
+            return ((Number) key).longValue();
+        } return key;
+    }
+
+    /**
+     * Sum the update counts of a batch, ignoring SUCCESS_NO_INFO and EXECUTE_FAILED
+     * @param counts The update counts
+     * @return The number of affected rows
+     */
+    static int sumAffectedRows(int[] counts) {
+        int total = 0;
+        for (int count : counts) {
+            if (count > 0) total += count;
+        } return total;
+    }
+
+    final void setColumnValue(T entity, String columnName, Object rawValue) {
+        int columnIndex = descriptor.getColumnIndex(columnName);
+        Object value = rawValue == null || rawColumns[columnIndex] ? rawValue : columnConverters[columnIndex].convert(rawValue);
+        columnSetters[columnIndex].accept(entity, value);
+    }
+
+    final Object getColumnValue(T entity, String columnName) {
+        return this.fieldValueGetterMap.get(columnName).apply(entity);
+    }
+
+    final Object getColumnKey(String columnName, Object value) {
+        int columnIndex = descriptor.getColumnIndex(columnName);
+        return normalizeKey(columnIndex < 0 ? value : toColumnValue(columnIndex, value));
+    }
+
+    final boolean hasCustomInstantiation() {
+        return customInstantiation;
+    }
+
+    final IdGenerator getIdGenerator() {
+        return idGenerator;
+    }
+
+    final int getCompiledPredicateCount() {
+        return compiledPredicates.size();
+    }
+
+    final void assignIds(Connection connection, IdGenerator generator, List<T> entities) throws SQLException {
+        Function<T, Object> idGetter = this.columnGetters[publicKeyColumnIndex];
+        BiConsumer<T, Object> idSetter = this.columnSetters[publicKeyColumnIndex];
+        TypeConverter<Object> idConverter = this.columnConverters[publicKeyColumnIndex];
+        for (T entity : entities) {
+            if (idGetter.apply(entity) == null) idSetter.accept(entity, idConverter.convert(generator.next(connection)));
         }
     }
 
+    final FetchConfig activeFetchConfig() {
+        FetchConfig config = callFetchConfig.get();
+        return config != null ? config : fetchConfig;
+    }
+
+    final PreparedStatement prepareRead(Connection connection, String query) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(query);
+        activeFetchConfig().apply(statement);
+        return statement;
+    }
+
     // Private methods
 
     private List<T> readResultSet(ResultSet resultSet) throws SQLException {
         ArrayList<T> results = new ArrayList<>();
+        FetchConfig sampling = samplingFetchConfig();
         T temp = null;
         while (resultSet.next()) {
             temp = this.instantiateEntity(resultSet);
             this.populateEntity(resultSet,temp);
+            if (sampling != null && results.size() < FetchConfig.SAMPLED_ROWS) observeRow(sampling, temp);
             results.add(temp);
         } return results;
     }
 
     private List<T> readResultSet(ResultSet resultSet,BiConsumer<ResultSet,T> consumer) throws SQLException {
         ArrayList<T> results = new ArrayList<>();
+        FetchConfig sampling = samplingFetchConfig();
         T temp = null;
         while (resultSet.next()) {
             temp = this.instantiateEntity(resultSet);
             this.populateEntity(resultSet,temp);
             consumer.accept(resultSet,temp);
+            if (sampling != null && results.size() < FetchConfig.SAMPLED_ROWS) observeRow(sampling, temp);
             results.add(temp);
         } return results;
     }
 
     private <C extends T> List<C> readResultSet(ResultSet resultSet, Supplier<C> supplier, BiConsumer<ResultSet,C> consumer) throws SQLException {
         ArrayList<C> results = new ArrayList<>();
+        FetchConfig sampling = samplingFetchConfig();
         C temp = null;
         while (resultSet.next()) {
             temp = supplier.get();
             this.populateEntity(resultSet,temp);
             consumer.accept(resultSet,temp);
+            if (sampling != null && results.size() < FetchConfig.SAMPLED_ROWS) observeRow(sampling, temp);
             results.add(temp);
         } return results;
     }
 
+    private FetchConfig samplingFetchConfig() {
+        FetchConfig config = activeFetchConfig();
+        return config.isAdaptive() ? config : null;
+    }
+
+    private void observeRow(FetchConfig sampling, T entity) {
+        long bytes = 0;
+        for (Function<T,Object> getter : columnGetters) {
+            bytes += FetchConfig.estimateBytes(getter.apply(entity));
+        } sampling.observe(bytes);
+    }
+
     private void populateStatement(PreparedStatement statement, List<Object> values) throws SQLException {
         for (int i = 0; i < values.size(); i++) {
-            statement.setObject(i+1,values.get(i));
+            bindValue(statement, i + 1, values.get(i));
         }
     }
 
-    private int populateStatement(PreparedStatement statement, T entity, List<String> columns) throws SQLException {
-        int i;
-        for (i = 0; i < columns.size(); i++) {
-            String column = columns.get(i);
-            Object value = fieldValueGetterMap.get(column).apply(entity);
-            statement.setObject(i + 1,value);
-        } return i;
+    private void populateStatement(PreparedStatement statement, String columnName, List<Object> values) throws SQLException {
+        for (int i = 0; i < values.size(); i++) {
+            bindColumnValue(statement, i + 1, columnName, values.get(i));
+        }
     }
 
-    private void init(Class <T> typeClass){
-        this.typeClass = typeClass;
-        if (typeClass.isAnnotationPresent(Table.class)){
-            String annotationTableName = typeClass.getAnnotation(Table.class).name();
-            this.tableName = !annotationTableName.isEmpty() ? annotationTableName : typeClass.getSimpleName();
-        } else if (typeClass.isAnnotationPresent(Entity.class)){
-            String annotationTableName = typeClass.getAnnotation(Entity.class).name();
-            this.tableName = !annotationTableName.isEmpty() ? annotationTableName : typeClass.getSimpleName();
-        }  else {
-            this.tableName = typeClass.getSimpleName();
+    private void bindColumnValue(PreparedStatement statement, int index, String columnName, Object value) throws SQLException {
+        int columnIndex = descriptor.getColumnIndex(columnName);
+        if (value != null && columnIndex >= 0) {
+            Object columnValue = toColumnValue(columnIndex, value);
+            if (columnTypes[columnIndex].isInstance(columnValue)) {
+                columnConverters[columnIndex].write(statement, index, columnValue);
+                return;
+            }
         }
-        Field[] declaredFields = typeClass.getDeclaredFields();
-        for (int i = 0; i < declaredFields.length; i++){
-            this.initField(declaredFields[i],i);
+        bindValue(statement, index, value);
+    }
+
+    private static int hashCapacity(int expectedSize) {
+        return Math.max(16, (int) (expectedSize / 0.75f) + 1);
+    }
+
+    private Object toColumnValue(int columnIndex, Object value) {
+        // Values of another type (e.g. a UUID as String for a BINARY(16) column) are converted to the column type first
+        if (value == null || columnTypes[columnIndex].isInstance(value)) return value;
+        try {
+            return columnConverters[columnIndex].convert(value);
+        } catch (RuntimeException e) {
+            return value;
         }
+    }
 
-        this.columnNamesString = generateColumnNames();
+    @SuppressWarnings("unchecked")
+    private void bindValue(PreparedStatement statement, int index, Object value) throws SQLException {
+        if (value == null) {
+            statement.setObject(index, null);
+            return;
+        }
+        TypeConverter<Object> converter = (TypeConverter<Object>) typeConverters.get(value.getClass());
+        if (converter == null) converter = TypeConverters.find(value.getClass());
+        converter.write(statement, index, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resolveColumnConverter(int columnIndex) {
+        String columnName = descriptor.getColumnName(columnIndex);
+        Class<?> type = descriptor.getField(columnIndex).getType();
+        TypeConverter<?> converter = columnConverterBindings.get(columnName);
+        if (converter == null) converter = typeConverters.get(type);
+        if (converter == null && type.isEnum() && descriptor.getField(columnIndex).isAnnotationPresent(Enumerated.class) &&
+                descriptor.getField(columnIndex).getAnnotation(Enumerated.class).value() == EnumType.ORDINAL) {
+            converter = TypeConverters.enumByOrdinal((Class) type);
+        }
+        if (converter == null) converter = TypeConverters.find(type);
+        this.columnConverters[columnIndex] = (TypeConverter<Object>) converter;
+    }
 
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <E> E[] newArray(Class<?> componentType, int length) {
+        return (E[]) java.lang.reflect.Array.newInstance(componentType, length);
     }
 
-    private String generateColumnNames(){
-        StringBuilder builder = new StringBuilder();
-        columnNames.forEach((String column)->{
-            builder.append(column.concat(","));
-        });
-        return builder.deleteCharAt( builder.length() -1).toString();
+    private static Class<?> boxed(Class<?> type) {
+        if (!type.isPrimitive()) return type;
+        if (type == int.class) return Integer.class;
+        if (type == long.class) return Long.class;
+        if (type == double.class) return Double.class;
+        if (type == float.class) return Float.class;
+        if (type == boolean.class) return Boolean.class;
+        if (type == short.class) return Short.class;
+        if (type == byte.class) return Byte.class;
+        if (type == char.class) return Character.class;
+        return type;
+    }
+
+    private void populateStatement(PreparedStatement statement, Predicate predicate) throws SQLException {
+        populateStatement(statement, predicate, 0);
+    }
+
+    private void populateStatement(PreparedStatement statement, Predicate predicate, int offset) throws SQLException {
+        // Each value is bound with the converter of its field column, as readBy does (e.g. ordinal enums)
+        List<String> fieldNames = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        predicate.collectBindings(fieldNames, values);
+        for (int i = 0; i < values.size(); i++) {
+            bindColumnValue(statement, offset + i + 1, getRequiredFieldColumnName(fieldNames.get(i)), values.get(i));
+        }
     }
 
-    private void initField(Field field, int fieldIndex){
+    private String compilePredicate(Predicate predicate) {
+        List<Object> shapeKey = predicate.getShapeKey();
+        String whereClause = compiledPredicates.get(shapeKey);
+        if (whereClause == null) {
+            whereClause = predicate.toSql(this::getRequiredFieldColumnName);
+            compiledPredicates.put(shapeKey, whereClause);
+        } return whereClause;
+    }
+
+    private List<AggregateRow> aggregate(Connection connection, Predicate predicate, Aggregation aggregation) throws SQLException {
+        StringBuilder query = new StringBuilder("SELECT ").append(aggregation.toSelectSql(this::getRequiredFieldColumnName))
+                .append(" FROM ").append(tableName);
+        if (predicate != null) query.append(" WHERE ").append(compilePredicate(predicate));
+        List<String> groupFieldNames = aggregation.getGroupFieldNames();
+        if (!groupFieldNames.isEmpty()) query.append(" GROUP BY ").append(aggregation.toGroupBySql(this::getRequiredFieldColumnName));
+        query.append(';');
 
-        String columnName = "";
+        int measureCount = aggregation.getMeasureCount();
+        Map<String, Integer> indexes = new LinkedHashMap<>();
+        for (String fieldName : groupFieldNames) indexes.put(fieldName, indexes.size());
+        for (int i = 0; i < measureCount; i++) indexes.put(aggregation.getAlias(i), indexes.size());
+        Map<String, Integer> sharedIndexes = Collections.unmodifiableMap(indexes);
 
-        if (field.isAnnotationPresent(Column.class)){
-            columnName = field.getAnnotation(Column.class).name().isEmpty() ?
-                    field.getName() : field.getAnnotation(Column.class).name();
+        PreparedStatement statement = connection.prepareStatement(query.toString());
+        if (predicate != null) this.populateStatement(statement, predicate);
+        ResultSet resultSet = statement.executeQuery();
+        List<AggregateRow> rows = new ArrayList<>();
+        while (resultSet.next()) {
+            Object[] values = new Object[indexes.size()];
+            int index = 0;
+            for (String fieldName : groupFieldNames) {
+                String columnName = getRequiredFieldColumnName(fieldName);
+                values[index++] = columnConverters[descriptor.getColumnIndex(columnName)].read(resultSet, columnName);
+            }
+            for (int i = 0; i < measureCount; i++) {
+                String function = aggregation.getFunction(i);
+                String label = "a" + i;
+                if (function.startsWith("COUNT")) {
+                    values[index++] = resultSet.getLong(label);
+                } else if (function.equals("MIN") || function.equals("MAX")) {
+                    // The extremes keep the type of the field
+                    String columnName = getRequiredFieldColumnName(aggregation.getFieldName(i));
+                    values[index++] = columnConverters[descriptor.getColumnIndex(columnName)].read(resultSet, label);
+                } else {
+                    values[index++] = resultSet.getObject(label);
+                }
+            }
+            rows.add(new AggregateRow(sharedIndexes, values));
+        } return rows;
+    }
+
+    private long forEachKeyRange(Connection connection, Predicate predicate, int chunkSize, long pauseMillis,
+                                 LongConsumer progress, KeyRangeOperation operation) throws SQLException {
+        if (publicKeyColumnName == null) throw new IllegalStateException("The entity " + typeClass.getName() + " has no public key");
+        if (chunkSize <= 0) throw new IllegalArgumentException("The chunk size must be positive: " + chunkSize);
+        String idField = descriptor.getColumnFieldName(publicKeyColumnName);
+        TypeConverter<Object> idConverter = this.columnConverters[publicKeyColumnIndex];
+        long total = 0;
+        Object lower = null;
+        while (true) {
+            Predicate from = and(predicate, lower == null ? null : Predicate.gt(idField, lower));
+            // The last key of the chunk bounds the range, so the write does not need the keys themselves
+            String query = from == null ?
+                    String.format(SELECT_ALL_ORDER_BY_LIMIT_OFFSET_RAW_QUERY, publicKeyColumnName, this.tableName, publicKeyColumnName, 1, chunkSize - 1) :
+                    String.format(SELECT_WHERE_ORDER_BY_LIMIT_OFFSET_RAW_QUERY, publicKeyColumnName, this.tableName, compilePredicate(from), publicKeyColumnName, 1, chunkSize - 1);
+            Object upper;
+            try (PreparedStatement statement = connection.prepareStatement(query)) {
+                if (from != null) this.populateStatement(statement, from);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    upper = resultSet.next() ? idConverter.read(resultSet, publicKeyColumnName) : null;
+                }
+            }
+
+            total += operation.execute(connection, and(from, upper == null ? null : Predicate.le(idField, upper)));
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+                QueryCache.endTransaction(connection);
+            }
+            QueryCache.invalidate(tableName);
+            if (progress != null) progress.accept(total);
+            if (upper == null) return total;
+            lower = upper;
+            if (pauseMillis > 0) {
+                try {
+                    Thread.sleep(pauseMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted after " + total + " rows", e);
+                }
+            }
         }
+    }
 
-        if (field.isAnnotationPresent(Id.class)){
+    private int deleteRange(Connection connection, Predicate range) throws SQLException {
+        String query = range == null ? String.format(DELETE_ALL_RAW_QUERY, this.tableName) :
+                String.format(DELETE_WHERE_RAW_QUERY, this.tableName, compilePredicate(range));
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            if (range != null) this.populateStatement(statement, range);
+            return statement.executeUpdate();
+        }
+    }
 
-            if (columnName.isEmpty()){
-                columnName = field.getName();
+    private int updateRange(Connection connection, Map<String, Object> assignments, Predicate range) throws SQLException {
+        if (assignments.isEmpty()) throw new IllegalArgumentException("No field to update");
+        List<String> assignedColumns = new ArrayList<>(assignments.size());
+        StringJoiner setClause = new StringJoiner(",");
+        for (String fieldName : assignments.keySet()) {
+            String columnName = getRequiredFieldColumnName(fieldName);
+            assignedColumns.add(columnName);
+            setClause.add(columnName + " = ?");
+        }
+        if (versionColumnIndex >= 0 && !assignedColumns.contains(columnNames.get(versionColumnIndex))) {
+            // The entities read before the update become stale
+            String versionColumn = columnNames.get(versionColumnIndex);
+            setClause.add(versionColumn + " = " + versionColumn + " + 1");
+        }
+        String query = String.format(UPDATE_WHERE_RAW_QUERY, this.tableName, setClause, compilePredicate(range));
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            int index = 0;
+            for (Object value : assignments.values()) {
+                bindColumnValue(statement, index + 1, assignedColumns.get(index), value);
+                index++;
             }
+            populateStatement(statement, range, index);
+            return statement.executeUpdate();
+        }
+    }
+
+    private String versionedQuery(String query) {
+        return query.substring(0, query.length() - 1) + " AND " + columnNames.get(versionColumnIndex) + " = ?;";
+    }
 
-            this.publicKeyColumnName = columnName;
-            this.publicKeyColumnIndex = fieldIndex;
+    private Object versionValue(long version) {
+        Class<?> type = columnTypes[versionColumnIndex];
+        if (type == Integer.class) return (int) version;
+        if (type == Short.class) return (short) version;
+        return version;
+    }
+
+    private Object nextVersion(Object version) {
+        return versionValue(version == null ? 1 : ((Number) version).longValue() + 1);
+    }
 
-            if (field.isAnnotationPresent(GeneratedValue.class) &&
-                    field.getAnnotation(GeneratedValue.class).strategy().equals(GenerationType.AUTO)){
-                this.autoIncrement = true;
+    private void checkVersions(List<T> entities, int[] counts) throws SQLException {
+        List<T> stale = new ArrayList<>();
+        int[] staleIndexes = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                throw new SQLException("The driver returned no update counts for the versioned batch on table " + tableName +
+                        ", so the stale entities cannot be detected: roll back the transaction (e.g. disable the rewriting of batched statements)");
             }
+            if (counts[i] != 0) continue;
+            staleIndexes[stale.size()] = i;
+            stale.add(entities.get(i));
+        }
+        if (!stale.isEmpty()) throw new StaleEntityException(tableName, stale, Arrays.copyOf(staleIndexes, stale.size()), counts);
+    }
+
+    private static Predicate and(Predicate first, Predicate second) {
+        if (first == null) return second;
+        if (second == null) return first;
+        return Predicate.and(first, second);
+    }
+
+    private boolean overridesInstantiateEntity() {
+        try {
+            return getClass().getMethod("instantiateEntity").getDeclaringClass() != Repository.class ||
+                    getClass().getMethod("instantiateEntity", ResultSet.class).getDeclaringClass() != Repository.class;
+        } catch (NoSuchMethodException e) {
+            return false;
         }
+    }
 
-        if (!columnName.isEmpty()){
-            this.columnNames.add(columnName);
-            this.fieldColumnNamesMap.put(field.getName(),columnName);
-            detectSetterAndGetter(field,columnName);
+    private <P> Map<Object, List<T>> readByParents(Connection connection, Repository<P> parentRepository, List<P> parents,
+                                                  String parentFieldName, String childFieldName) throws SQLException {
+        String childColumnName = getRequiredFieldColumnName(childFieldName);
+        Function<T,Object> childKeyGetter = this.fieldValueGetterMap.get(childColumnName);
+        Set<Object> keys = new LinkedHashSet<>();
+        for (P parent : parents) {
+            Object key = parentRepository.getFieldValue(parent, parentFieldName);
+            if (key != null) keys.add(key);
         }
+
+        Map<Object, List<T>> children = new HashMap<>();
+        List<Object> keyList = new ArrayList<>(keys);
+        for (int from = 0; from < keyList.size(); from += IN_CLAUSE_CHUNK_SIZE) {
+            List<Object> chunk = keyList.subList(from, Math.min(from + IN_CLAUSE_CHUNK_SIZE, keyList.size()));
+            for (T child : readBy(connection, childColumnName, chunk)) {
+                children.computeIfAbsent(normalizeKey(childKeyGetter.apply(child)), x -> new ArrayList<>()).add(child);
+            }
+        } return children;
     }
 
-    private void detectSetterAndGetter(Field field, String columnName){
+    private String getRequiredFieldColumnName(String fieldName) {
+        String columnName = this.fieldColumnNamesMap.get(fieldName);
+        if (columnName == null) throw new IllegalArgumentException("Unknown field: " + fieldName);
+        return columnName;
+    }
 
-        field.setAccessible(true);
+    private List<T> readWhere(Connection connection, String query, Predicate predicate) throws SQLException {
+        return read(connection, query, predicate.getValues(), statement -> populateStatement(statement, predicate));
+    }
 
-        if (field.getType().isEnum()){
-            this.fieldValueSettersMap.put(columnName, (x, y) -> {
-                try {
-                    final Class<? extends Enum> enumType = (Class<? extends Enum>) field.getType();
-                    final Enum<?> enumValue = Enum.valueOf(enumType, (String) y);
-                    field.set(x, enumValue);
-                } catch (IllegalAccessException e) {
-                    e.printStackTrace();
-                }
-            });
-            this.fieldValueGetterMap.put(columnName, (x) -> {
-                try {
-                    Object value = field.get(x);
-                    return value.toString();
-                } catch (IllegalAccessException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-            });
-        } else if (field.getType().equals(Date.class)){
-            this.fieldValueSettersMap.put(columnName, (x, y) -> {
-                try {
-                    final Timestamp timestampValue = (Timestamp) y;
-                    Date date = new Date(timestampValue.getTime());
-                    field.set(x, date);
-                } catch (IllegalAccessException e) {
-                    e.printStackTrace();
-                }
-            });
-            this.fieldValueGetterMap.put(columnName, (x) -> {
-                try {
-                    Object value = field.get(x);
-                    return value;
-                } catch (IllegalAccessException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-            });
-        } else if (field.getType().equals(Timestamp.class)){
-            this.fieldValueSettersMap.put(columnName, (x, y) -> {
-                try {
-                    field.set(x, Timestamp.valueOf((LocalDateTime) y));
-                } catch (IllegalAccessException e) {
-                    e.printStackTrace();
-                }
-            });
-            this.fieldValueGetterMap.put(columnName, (x) -> {
-                try {
-                    Object value = field.get(x);
-                    return value;
-                } catch (IllegalAccessException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-            });
-        } else {
-            this.fieldValueSettersMap.put(columnName, (x, y) -> {
-                try {
-                    field.set(x, y);
-                } catch (IllegalAccessException e) {
-                    e.printStackTrace();
-                }
-            });
-            this.fieldValueGetterMap.put(columnName, (x) -> {
-                try {
-                    Object value = field.get(x);
-                    return value;
-                } catch (IllegalAccessException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-            });
+    private List<T> read(Connection connection, String query, List<Object> values, StatementBinder binder) throws SQLException {
+        QueryCache cache = this.queryCache;
+        // A transaction may see its own uncommitted rows, which must be neither served nor stored
+        if (cache == null || publicKeyColumnName == null || customInstantiation || !connection.getAutoCommit()) {
+            PreparedStatement statement = prepareRead(connection, query);
+            binder.bind(statement);
+            ResultSet rs = statement.executeQuery();
+            return readResultSet(rs);
+        }
+        List<Object> cached = cache.get(tableName, query, values);
+        if (cached != null) {
+            List<T> results = new ArrayList<>(cached.size());
+            for (Object entity : cached) results.add(copyEntity(typeClass.cast(entity)));
+            return results;
+        }
+        // The version is taken before the query, so a write running meanwhile makes the stored result stale
+        long version = QueryCache.versionOf(tableName);
+        PreparedStatement statement = prepareRead(connection, query);
+        binder.bind(statement);
+        List<T> results = readResultSet(statement.executeQuery());
+        List<Object> ids = new ArrayList<>(results.size());
+        List<T> copies = new ArrayList<>(results.size());
+        for (T entity : results) {
+            Object id = columnGetters[publicKeyColumnIndex].apply(entity);
+            if (id == null) return results;
+            ids.add(id);
+            copies.add(copyEntity(entity));
         }
+        cache.put(tableName, version, query, values, copies, ids, columnGetters.length);
+        return results;
+    }
+
+    private T copyEntity(T entity) {
+        T copy = instantiateEntity();
+        for (int i = 0; i < columnGetters.length; i++) {
+            columnSetters[i].accept(copy, columnGetters[i].apply(entity));
+        } return copy;
+    }
+
+    private <R> R invalidated(Connection connection, R result) throws SQLException {
+        QueryCache.written(connection, tableName);
+        return result;
+    }
+
+    private int populateStatement(PreparedStatement statement, T entity, List<String> columns) throws SQLException {
+        int i;
+        for (i = 0; i < columns.size(); i++) {
+            String column = columns.get(i);
+            int columnIndex = descriptor.getColumnIndex(column);
+            Object value = columnGetters[columnIndex].apply(entity);
+            if (value == null) {
+                int typeCode = descriptor.getTypeCode(columnIndex);
+                if (typeCode != Types.OTHER) {
+                    statement.setNull(i + 1, typeCode);
+                } else {
+                    statement.setObject(i + 1, null);
+                }
+            } else if (columnTypes[columnIndex].isInstance(value)) {
+                columnConverters[columnIndex].write(statement, i + 1, value);
+            } else {
+                bindValue(statement, i + 1, value);
+            }
+        } return i;
     }
 }
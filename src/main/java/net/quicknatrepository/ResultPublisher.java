@@ -0,0 +1,200 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ResultPublisher class, a Flow.Publisher reading the rows of a query as its subscribers request them.
+ * Each subscription opens its own connection and runs the query on the first request; the rows are then read from
+ * the open ResultSet only while there is demand, so a slow subscriber holds an open cursor instead of a full list.
+ * The blocking JDBC calls run on the executor, one task at a time for each subscription; cancelling the subscription
+ * cancels the running statement and closes the connection.
+ * @param <T> The type of the entity
+ */
+final class ResultPublisher<T> implements Flow.Publisher<T> {
+
+    interface Binder {
+        void bind(PreparedStatement statement) throws SQLException;
+    }
+
+    interface RowReader<T> {
+        T read(ResultSet resultSet) throws SQLException;
+    }
+
+    /**
+     * The default executor: a cached pool of daemon threads, as the tasks block on JDBC calls
+     */
+    final static ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "result-publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final DataSource dataSource;    // The data source of the connections
+    private final Executor executor;        // The executor of the JDBC calls
+    private final String query;             // The query
+    private final Binder binder;            // The binder of the query values
+    private final RowReader<T> reader;      // The reader of a row
+
+    ResultPublisher(DataSource dataSource, Executor executor, String query, Binder binder, RowReader<T> reader) {
+        this.dataSource = dataSource;
+        this.executor = executor;
+        this.query = query;
+        this.binder = binder;
+        this.reader = reader;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber);
+        RowSubscription subscription = new RowSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private final class RowSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong requested = new AtomicLong();      // The outstanding demand
+        private final AtomicInteger pending = new AtomicInteger();  // The signals not yet drained (the drain runs while > 0)
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private volatile PreparedStatement statement;               // The running statement (read by cancel)
+        private Connection connection;
+        private ResultSet resultSet;
+        private boolean done;
+
+        private RowSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("The request must be positive (rule 3.9): " + n);
+            } else {
+                requested.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            PreparedStatement running = statement;
+            if (running != null) {
+                try {
+                    running.cancel();
+                } catch (SQLException e) {
+                    // The statement is closed by the drain anyway
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() != 0) return;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                cancelled = true;
+                subscriber.onError(e);
+            }
+        }
+
+        private void drain() {
+            if (done) return;
+            if (cancelled || invalidRequest != null) {
+                done = true;
+                close();
+                if (!cancelled) subscriber.onError(invalidRequest);
+                return;
+            }
+            try {
+                if (resultSet == null) open();
+                long demand = requested.get();
+                long emitted = 0;
+                while (emitted != demand) {
+                    if (cancelled) {
+                        done = true;
+                        close();
+                        return;
+                    }
+                    if (!resultSet.next()) {
+                        done = true;
+                        close();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    subscriber.onNext(reader.read(resultSet));
+                    emitted++;
+                }
+                requested.addAndGet(-emitted);
+            } catch (Throwable e) {
+                done = true;
+                close();
+                if (!cancelled) subscriber.onError(e);
+            }
+        }
+
+        private void open() throws SQLException {
+            connection = dataSource.getConnection();
+            PreparedStatement prepared = connection.prepareStatement(query);
+            binder.bind(prepared);
+            statement = prepared;
+            resultSet = prepared.executeQuery();
+        }
+
+        private void close() {
+            PreparedStatement running = statement;
+            statement = null;
+            try {
+                if (resultSet != null) resultSet.close();
+                if (running != null) running.close();
+            } catch (SQLException e) {
+                // The connection is closed anyway
+            }
+            try {
+                if (connection != null) connection.close();
+            } catch (SQLException e) {
+                // Nothing left to release
+            }
+            resultSet = null;
+            connection = null;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RetryExecutor class, used to run repository operations that may fail because of lock contention.
+ * Deadlocks, serialization failures and lock wait timeouts are transient: the executor rolls the transaction back
+ * and runs the operation again after a jittered exponential backoff. Any other error is thrown immediately.
+ * <p>
+ * The operation is the unit of retry, so it runs in a transaction owned by the executor: it is committed when
+ * the operation succeeds and rolled back when it fails. Call the executor on a connection without pending changes.
+ * <pre>
+ * RetryExecutor executor = new RetryExecutor(5, 20, 1000);
+ * int[] counts = executor.executeBatch(connection, companies, repository::update);
+ * </pre>
+ * The executor is thread safe and can be shared, so its counters cover all the operations it ran.
+ */
+public class RetryExecutor {
+
+    /**
+     * BatchOperation interface, an operation run on a list of entities
+     * @param <T> The type of the entities
+     */
+    @FunctionalInterface
+    public interface BatchOperation<T> {
+        int[] execute(Connection connection, List<T> entities) throws SQLException;
+    }
+
+    private final static int MYSQL_DEADLOCK = 1213;             // ER_LOCK_DEADLOCK
+    private final static int MYSQL_LOCK_WAIT_TIMEOUT = 1205;    // ER_LOCK_WAIT_TIMEOUT
+
+    private final int maxAttempts;              // The maximum number of attempts of an operation (or of a batch part)
+    private final long baseDelayMillis;         // The backoff of the first retry
+    private final long maxDelayMillis;          // The maximum backoff
+    private int minSplitSize = 1;               // The size under which a failing batch is not split anymore
+
+    private final AtomicLong operations = new AtomicLong();     // The operations run
+    private final AtomicLong retries = new AtomicLong();        // The retries after a transient error
+    private final AtomicLong splits = new AtomicLong();         // The batches split after exhausting their attempts
+    private final AtomicLong failures = new AtomicLong();       // The operations failed
+
+    /**
+     * Constructor, with 5 attempts and a backoff from 10 to 1000 milliseconds
+     */
+    public RetryExecutor() {
+        this(5, 10, 1000);
+    }
+
+    /**
+     * Constructor
+     * @param maxAttempts The maximum number of attempts of an operation, including the first one
+     * @param baseDelayMillis The backoff of the first retry, doubled at each retry
+     * @param maxDelayMillis The maximum backoff
+     */
+    public RetryExecutor(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts <= 0) throw new IllegalArgumentException("The number of attempts must be positive: " + maxAttempts);
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Set the size under which a failing batch is not split anymore (1 by default, i.e. split down to single entities)
+     * @param minSplitSize The size
+     * @return This executor
+     */
+    public RetryExecutor setMinSplitSize(int minSplitSize) {
+        this.minSplitSize = Math.max(1, minSplitSize);
+        return this;
+    }
+
+    // Execute methods
+
+    /**
+     * Run an operation in a transaction, retrying it on transient errors
+     * @param connection The connection
+     * @param operation The operation
+     * @param <R> The type of the result
+     * @return The result of the operation
+     * @throws SQLException The SQL exception if the operation fails with a non transient error or exhausts its attempts
+     */
+    public <R> R execute(Connection connection, SqlOperation<R> operation) throws SQLException {
+        operations.incrementAndGet();
+        try {
+            return attempt(connection, operation);
+        } catch (SQLException | RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Run a batch operation, e.g. repository::update, retrying it on transient errors.
+     * A batch that exhausts its attempts is split in two halves, run (and committed) one after the other, so a few
+     * contended rows do not keep failing the whole batch.
+     * @param connection The connection
+     * @param entities The entities
+     * @param operation The batch operation
+     * @param <T> The type of the entities
+     * @return The affected rows, one for each entity in the order of the list
+     * @throws SQLException The SQL exception if the operation fails with a non transient error, or a part of the batch
+     * that cannot be split anymore exhausts its attempts
+     */
+    public <T> int[] executeBatch(Connection connection, List<T> entities, BatchOperation<T> operation) throws SQLException {
+        operations.incrementAndGet();
+        try {
+            List<int[]> results = new ArrayList<>();
+            executeBatch(connection, entities, operation, results);
+            int[] counts = new int[entities.size()];
+            int position = 0;
+            for (int[] result : results) {
+                System.arraycopy(result, 0, counts, position, result.length);
+                position += result.length;
+            } return counts;
+        } catch (SQLException | RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    // Counters
+
+    /**
+     * Get the number of operations run (a split batch counts once)
+     * @return The number of operations
+     */
+    public long getOperationCount() {
+        return operations.get();
+    }
+
+    /**
+     * Get the number of retries after a transient error
+     * @return The number of retries
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * Get the number of batches split after exhausting their attempts
+     * @return The number of splits
+     */
+    public long getSplitCount() {
+        return splits.get();
+    }
+
+    /**
+     * Get the number of operations failed
+     * @return The number of failures
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Reset all the counters
+     */
+    public void resetCounters() {
+        operations.set(0);
+        retries.set(0);
+        splits.set(0);
+        failures.set(0);
+    }
+
+    // Static methods
+
+    /**
+     * Check whether an error is transient, i.e. the same operation may succeed if run again:
+     * deadlocks and serialization failures (SQLState 40001 or 40P01, MySQL error 1213, SQLTransactionRollbackException) and lock wait timeouts
+     * (MySQL error 1205, SQLState HYT00). The exceptions chained to the error are checked too.
+     * @param exception The exception
+     * @return True if the error is transient
+     */
+    public static boolean isTransient(SQLException exception) {
+        for (Throwable current = exception; current != null; current = current.getCause()) {
+            if (current instanceof SQLException && isTransientError((SQLException) current)) return true;
+        }
+        for (SQLException next = exception.getNextException(); next != null; next = next.getNextException()) {
+            if (isTransientError(next)) return true;
+        } return false;
+    }
+
+    // Private methods
+
+    private <T> void executeBatch(Connection connection, List<T> entities, BatchOperation<T> operation, List<int[]> results) throws SQLException {
+        if (entities.isEmpty()) return;
+        try {
+            results.add(attempt(connection, c -> operation.execute(c, entities)));
+        } catch (SQLException e) {
+            if (!isTransient(e) || entities.size() <= minSplitSize) throw e;
+            splits.incrementAndGet();
+            int middle = entities.size() / 2;
+            executeBatch(connection, entities.subList(0, middle), operation, results);
+            executeBatch(connection, entities.subList(middle, entities.size()), operation, results);
+        }
+    }
+
+    private <R> R attempt(Connection connection, SqlOperation<R> operation) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        if (autoCommit) connection.setAutoCommit(false);
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    R result = operation.execute(connection);
+                    connection.commit();
+                    QueryCache.endTransaction(connection);
+                    return result;
+                } catch (SQLException e) {
+                    connection.rollback();
+                    QueryCache.endTransaction(connection);
+                    if (!isTransient(e) || attempt >= maxAttempts) throw e;
+                    retries.incrementAndGet();
+                    backoff(attempt, e);
+                } catch (RuntimeException e) {
+                    connection.rollback();
+                    QueryCache.endTransaction(connection);
+                    throw e;
+                }
+            }
+        } finally {
+            if (autoCommit) connection.setAutoCommit(true);
+        }
+    }
+
+    private void backoff(int attempt, SQLException cause) throws SQLException {
+        // Full jitter: a random delay up to the exponential bound, so the contending transactions do not retry together
+        long bound = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+        if (bound <= 0) return;
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw cause;
+        }
+    }
+
+    private static boolean isTransientError(SQLException exception) {
+        if (exception instanceof SQLTransactionRollbackException) return true;
+        int errorCode = exception.getErrorCode();
+        if (errorCode == MYSQL_DEADLOCK || errorCode == MYSQL_LOCK_WAIT_TIMEOUT) return true;
+        String sqlState = exception.getSQLState();
+        if (sqlState == null) return false;
+        // 40001 serialization failure / deadlock, 40P01 deadlock (PostgreSQL), HYT00 lock timeout (H2, ODBC)
+        return sqlState.equals("40001") || sqlState.equals("40P01") || sqlState.equals("HYT00");
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * ShardedRepository class, used to store the entities of a type across several databases or tables.
+ * A shard resolver maps the shard key (the public key, or a chosen field) of an entity to one of the shards:
+ * reads by shard key and writes go to a single shard, while the other reads and the counts run on all the shards
+ * in parallel and their results are merged, sorted and limited in memory.
+ * <pre>
+ * ShardedRepository&lt;Company&gt; repository = new ShardedRepository&lt;&gt;(Arrays.asList(
+ *         new ShardedRepository.Shard&lt;&gt;(dataSource1, new Repository&lt;&gt;(Company.class, "companies_0")),
+ *         new ShardedRepository.Shard&lt;&gt;(dataSource2, new Repository&lt;&gt;(Company.class, "companies_1"))));
+ * </pre>
+ * Writes spanning several shards are not atomic: each shard commits its part on its own.
+ * Merged results are sorted in Java (comparing the column values, nulls first), so the order of text columns
+ * may differ from a case-insensitive database collation.
+ * The shards are queried on a thread pool created on first use and kept until the repository is closed,
+ * or on an executor set with {@link #setExecutor(ExecutorService)}.
+ * @param <T> The type of the entity
+ */
+public class ShardedRepository<T> implements AutoCloseable {
+
+    /**
+     * Shard class, the data source and the repository (i.e. the table) of a shard
+     * @param <T> The type of the entity
+     */
+    public static final class Shard<T> {
+        private final DataSource dataSource;
+        private final Repository<T> repository;
+
+        /**
+         * Constructor
+         * @param dataSource The data source of the shard
+         * @param repository The repository of the shard table
+         */
+        public Shard(DataSource dataSource, Repository<T> repository) {
+            this.dataSource = dataSource;
+            this.repository = repository;
+        }
+
+        public DataSource getDataSource() {
+            return dataSource;
+        }
+
+        public Repository<T> getRepository() {
+            return repository;
+        }
+    }
+
+    /**
+     * ShardResolver interface, the mapping of a shard key to a shard
+     */
+    @FunctionalInterface
+    public interface ShardResolver {
+
+        /**
+         * Resolve the shard of a key
+         * @param key The shard key (never null)
+         * @param shardCount The number of shards
+         * @return The shard index (0 to shardCount - 1)
+         */
+        int resolve(Object key, int shardCount);
+    }
+
+    /**
+     * Resolver by hash of the key (numeric keys of any integer type hash alike)
+     */
+    public final static ShardResolver HASH = (key, shardCount) -> Math.floorMod(Repository.normalizeKey(key).hashCode(), shardCount);
+
+    private final List<Shard<T>> shards;            // The shards
+    private final ShardResolver resolver;           // The shard resolver
+    private final Repository<T> metadata;           // The repository of the first shard, used for the mapping metadata
+    private final String shardColumnName;           // The shard key column name
+    private final boolean shardedByPublicKey;       // The shard key is the public key
+    private ExecutorService executor;               // The executor of the shard operations (null until first use)
+    private boolean ownedExecutor;                  // The executor was created by the repository, which shuts it down on close
+
+    /**
+     * Constructor, sharding by public key hash
+     * @param shards The shards (their order must never change once data is stored)
+     */
+    public ShardedRepository(List<Shard<T>> shards) {
+        this(shards, null, HASH);
+    }
+
+    /**
+     * Constructor
+     * @param shards The shards (their order must never change once data is stored)
+     * @param shardFieldName The shard key field name (null for the public key)
+     * @param resolver The shard resolver
+     */
+    public ShardedRepository(List<Shard<T>> shards, String shardFieldName, ShardResolver resolver) {
+        if (shards.isEmpty()) throw new IllegalArgumentException("At least one shard is required");
+        this.shards = new ArrayList<>(shards);
+        this.resolver = resolver;
+        this.metadata = shards.get(0).repository;
+        this.shardColumnName = shardFieldName == null ? metadata.getPublicKeyColumnName() : metadata.getFieldColumnName(shardFieldName);
+        if (this.shardColumnName == null) throw new IllegalArgumentException("Unknown shard key field: " + shardFieldName);
+        this.shardedByPublicKey = this.shardColumnName.equals(metadata.getPublicKeyColumnName());
+    }
+
+    /**
+     * Set the executor of the shard operations, instead of the thread pool owned by the repository.
+     * The executor is not shut down by {@link #close()}.
+     * @param executor The executor
+     * @return This repository
+     */
+    public synchronized ShardedRepository<T> setExecutor(ExecutorService executor) {
+        if (ownedExecutor) this.executor.shutdown();
+        this.executor = executor;
+        this.ownedExecutor = false;
+        return this;
+    }
+
+    /**
+     * Shut down the thread pool owned by the repository, if any
+     */
+    @Override
+    public synchronized void close() {
+        if (ownedExecutor) executor.shutdown();
+        executor = null;
+        ownedExecutor = false;
+    }
+
+    // Getters
+
+    /**
+     * Get the number of shards
+     * @return The number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Get a shard
+     * @param index The shard index
+     * @return The shard
+     */
+    public Shard<T> getShard(int index) {
+        return shards.get(index);
+    }
+
+    /**
+     * Get the shard index of a shard key
+     * @param key The shard key
+     * @return The shard index
+     */
+    public int shardOf(Object key) {
+        if (key == null) throw new IllegalArgumentException("The shard key cannot be null");
+        int index = resolver.resolve(key, shards.size());
+        if (index < 0 || index >= shards.size()) throw new IllegalStateException("Shard index out of range for key " + key + ": " + index);
+        return index;
+    }
+
+    // Count methods
+
+    /**
+     * Get the total number of elements of all the shards
+     * @return The total number of elements
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public long getTotalElements() throws SQLException {
+        long total = 0;
+        for (long count : scatter(shards, shard -> shard.repository::getTotalElements)) total += count;
+        return total;
+    }
+
+    /**
+     * Get the total number of elements matching a predicate in all the shards
+     * @param predicate The predicate
+     * @return The total number of elements
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public long getTotalElementsWhere(Predicate predicate) throws SQLException {
+        long total = 0;
+        for (long count : scatter(shards, shard -> c -> shard.repository.getTotalElementsWhere(c, predicate))) total += count;
+        return total;
+    }
+
+    // Write methods
+
+    /**
+     * Insert an entity in its shard (see {@link #insert(List)} for the shard key)
+     * @param entity The entity
+     * @return The number of affected rows
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public int insert(T entity) throws SQLException {
+        return insert(Collections.singletonList(entity))[0];
+    }
+
+    /**
+     * Insert entities in their shards, in parallel.
+     * When sharding by public key, null public keys are assigned by the IdGenerator of the first shard repository
+     * (see {@link Repository#setIdGenerator}) before the entities are routed; other shard keys must be assigned.
+     * @param entities The entities
+     * @return An array with the number of affected rows (one for each entity)
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public int[] insert(List<T> entities) throws SQLException {
+        assignPublicKeys(entities);
+        return write(entities, Repository::insert);
+    }
+
+    /**
+     * Update an entity in its shard
+     * @param entity The entity
+     * @return The number of affected rows
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public int update(T entity) throws SQLException {
+        return update(Collections.singletonList(entity))[0];
+    }
+
+    /**
+     * Update entities in their shards, in parallel
+     * @param entities The entities
+     * @return An array with the number of affected rows (one for each entity)
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public int[] update(List<T> entities) throws SQLException {
+        return write(entities, Repository::update);
+    }
+
+    /**
+     * Delete an entity from its shard
+     * @param entity The entity
+     * @return The number of affected rows
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public int delete(T entity) throws SQLException {
+        return delete(Collections.singletonList(entity))[0];
+    }
+
+    /**
+     * Delete entities from their shards, in parallel
+     * @param entities The entities
+     * @return An array with the number of affected rows (one for each entity)
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public int[] delete(List<T> entities) throws SQLException {
+        return write(entities, Repository::delete);
+    }
+
+    /**
+     * Delete an entity by id (from a single shard if sharded by public key, from all the shards otherwise)
+     * @param id The id
+     * @return The result of Repository.deleteById, or-ed over the shards
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public boolean deleteById(Object id) throws SQLException {
+        boolean deleted = false;
+        for (boolean result : scatter(shardsOfPublicKey(id), shard -> c -> shard.repository.deleteById(c, id))) deleted |= result;
+        return deleted;
+    }
+
+    // Read methods
+
+    /**
+     * Read an entity by id (from a single shard if sharded by public key, from all the shards otherwise)
+     * @param id The id
+     * @return The entity (null if not found)
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public T readById(Object id) throws SQLException {
+        for (T entity : scatter(shardsOfPublicKey(id), shard -> c -> shard.repository.readById(c, id))) {
+            if (entity != null) return entity;
+        } return null;
+    }
+
+    /**
+     * Read entities by column value (from a single shard if the column is the shard key, from all the shards otherwise)
+     * @param columnName The column name
+     * @param value The value
+     * @return The list of entities
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public List<T> readBy(String columnName, Object value) throws SQLException {
+        List<Shard<T>> targets = columnName.equals(shardColumnName) && value != null ?
+                Collections.singletonList(shards.get(shardOf(value))) : shards;
+        return concat(scatter(targets, shard -> c -> shard.repository.readBy(c, columnName, value)));
+    }
+
+    /**
+     * Read all the entities of all the shards
+     * @return The list of entities
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public List<T> read() throws SQLException {
+        return concat(scatter(shards, shard -> shard.repository::read));
+    }
+
+    /**
+     * Read the entities matching a predicate from all the shards
+     * @param predicate The predicate
+     * @return The list of entities
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public List<T> readWhere(Predicate predicate) throws SQLException {
+        return concat(scatter(shards, shard -> c -> shard.repository.readWhere(c, predicate)));
+    }
+
+    /**
+     * Read a page of the entities matching a predicate from all the shards
+     * @param predicate The predicate
+     * @param pageable The pageable
+     * @return The list of entities
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public List<T> readWhere(Predicate predicate, Repository.Pageable pageable) throws SQLException {
+        String orderByClause = metadata.getOrderByClauseFromPageable(pageable).orElse(null);
+        return readWhere(predicate, orderByClause, pageable.getSize(), pageable.offset());
+    }
+
+    /**
+     * Read the entities matching a predicate from all the shards, sorted and limited.
+     * Each shard reads its first offset + limit entities, then the sorted lists are merged and the page is cut in memory.
+     * @param predicate The predicate
+     * @param orderByClause The order by clause on column names, e.g. "city, company_name DESC" (null for no order)
+     * @param limit The limit (number of entities to read, null for no limit)
+     * @param offset The offset (number of entities to skip, null for none)
+     * @return The list of entities
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public List<T> readWhere(Predicate predicate, String orderByClause, Long limit, Long offset) throws SQLException {
+        long skip = offset == null ? 0 : offset;
+        Long shardLimit = limit == null ? null : limit + skip;
+        List<List<T>> results = scatter(shards, shard -> c -> {
+            Repository<T> repository = shard.repository;
+            if (orderByClause == null) {
+                return shardLimit == null ? repository.readWhere(c, predicate) : repository.readWhere(c, predicate, shardLimit);
+            }
+            return shardLimit == null ? repository.readWhere(c, predicate, orderByClause) : repository.readWhere(c, predicate, orderByClause, shardLimit);
+        });
+        List<T> merged = orderByClause == null ? concat(results) : merge(results, comparatorOf(orderByClause));
+        int from = (int) Math.min(skip, merged.size());
+        int to = limit == null ? merged.size() : (int) Math.min(from + limit, merged.size());
+        return new ArrayList<>(merged.subList(from, to));
+    }
+
+    // Private methods
+
+    private List<Shard<T>> shardsOfPublicKey(Object id) {
+        return shardedByPublicKey ? Collections.singletonList(shards.get(shardOf(id))) : shards;
+    }
+
+    private void assignPublicKeys(List<T> entities) throws SQLException {
+        IdGenerator generator = metadata.getIdGenerator();
+        if (!shardedByPublicKey || generator == null) return;
+        for (T entity : entities) {
+            if (metadata.getColumnValue(entity, shardColumnName) == null) {
+                run(shards.get(0), shard -> c -> {
+                    metadata.assignIds(c, generator, entities);
+                    return null;
+                });
+                return;
+            }
+        }
+    }
+
+    private int[] write(List<T> entities, WriteOperation<T> operation) throws SQLException {
+        Map<Integer, List<Integer>> positionsByShard = new TreeMap<>();
+        for (int i = 0; i < entities.size(); i++) {
+            Object key = metadata.getColumnValue(entities.get(i), shardColumnName);
+            positionsByShard.computeIfAbsent(shardOf(key), x -> new ArrayList<>()).add(i);
+        }
+        List<Shard<T>> targets = new ArrayList<>();
+        for (int index : positionsByShard.keySet()) targets.add(shards.get(index));
+        List<List<Integer>> positions = new ArrayList<>(positionsByShard.values());
+        List<int[]> results = scatter(targets, shard -> c -> {
+            List<Integer> shardPositions = positions.get(targets.indexOf(shard));
+            List<T> shardEntities = new ArrayList<>(shardPositions.size());
+            for (int position : shardPositions) shardEntities.add(entities.get(position));
+            return operation.execute(shard.repository, c, shardEntities);
+        });
+        int[] counts = new int[entities.size()];
+        for (int i = 0; i < results.size(); i++) {
+            List<Integer> shardPositions = positions.get(i);
+            for (int j = 0; j < shardPositions.size(); j++) counts[shardPositions.get(j)] = results.get(i)[j];
+        } return counts;
+    }
+
+    private <R> List<R> scatter(List<Shard<T>> targets, Function<Shard<T>, SqlOperation<R>> operation) throws SQLException {
+        if (targets.size() == 1) return Collections.singletonList(run(targets.get(0), operation));
+        ExecutorService pool = executor();
+        List<Future<R>> futures = new ArrayList<>(targets.size());
+        try {
+            for (Shard<T> shard : targets) {
+                futures.add(pool.submit(() -> run(shard, operation)));
+            }
+            List<R> results = new ArrayList<>(targets.size());
+            SQLException failure = null;
+            for (Future<R> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    SQLException cause = e.getCause() instanceof SQLException ?
+                            (SQLException) e.getCause() : new SQLException("Shard operation failed", e.getCause());
+                    if (failure == null) failure = cause; else failure.addSuppressed(cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for the shards", e);
+                }
+            }
+            if (failure != null) throw failure;
+            return results;
+        } finally {
+            // Only left running if interrupted
+            for (Future<R> future : futures) future.cancel(true);
+        }
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(shards.size(), runnable -> {
+                Thread thread = new Thread(runnable, "sharded-repository");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ownedExecutor = true;
+        } return executor;
+    }
+
+    private static <T, R> R run(Shard<T> shard, Function<Shard<T>, SqlOperation<R>> operation) throws SQLException {
+        try (Connection connection = shard.dataSource.getConnection()) {
+            return operation.apply(shard).execute(connection);
+        }
+    }
+
+    private static <T> List<T> concat(List<List<T>> lists) {
+        int size = 0;
+        for (List<T> list : lists) size += list.size();
+        List<T> result = new ArrayList<>(size);
+        for (List<T> list : lists) result.addAll(list);
+        return result;
+    }
+
+    private static <T> List<T> merge(List<List<T>> sortedLists, Comparator<T> comparator) {
+        // k-way merge: the head of each shard list is in the queue, ordered by the comparator
+        PriorityQueue<int[]> heads = new PriorityQueue<>((a, b) -> comparator.compare(sortedLists.get(a[0]).get(a[1]), sortedLists.get(b[0]).get(b[1])));
+        int size = 0;
+        for (int i = 0; i < sortedLists.size(); i++) {
+            size += sortedLists.get(i).size();
+            if (!sortedLists.get(i).isEmpty()) heads.add(new int[]{i, 0});
+        }
+        List<T> result = new ArrayList<>(size);
+        while (!heads.isEmpty()) {
+            int[] head = heads.poll();
+            List<T> list = sortedLists.get(head[0]);
+            result.add(list.get(head[1]));
+            if (head[1] + 1 < list.size()) heads.add(new int[]{head[0], head[1] + 1});
+        } return result;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Comparator<T> comparatorOf(String orderByClause) {
+        Comparator<T> comparator = null;
+        for (String term : orderByClause.trim().split("\\s*,\\s*")) {
+            String[] parts = term.trim().split("\\s+");
+            String columnName = parts[0];
+            if (metadata.getColumnIndexByName(columnName) < 0) {
+                throw new IllegalArgumentException("Cannot merge the shard results by " + term + ": unknown column " + columnName);
+            }
+            boolean descending = parts.length > 1 && parts[1].equalsIgnoreCase("DESC");
+            Comparator<T> column = Comparator.comparing(entity -> (Comparable) metadata.getColumnValue(entity, columnName),
+                    Comparator.nullsFirst(Comparator.naturalOrder()));
+            if (descending) column = column.reversed();
+            comparator = comparator == null ? column : comparator.thenComparing(column);
+        } return comparator;
+    }
+
+    private interface WriteOperation<T> {
+        int[] execute(Repository<T> repository, Connection connection, List<T> entities) throws SQLException;
+    }
+}
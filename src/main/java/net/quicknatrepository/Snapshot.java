@@ -0,0 +1,639 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * Snapshot class, a read-only, memory-mapped copy of a table written by {@link Repository#writeSnapshot}.
+ * Rows are decoded on demand through the column setters of the repository that opened the snapshot, or through its
+ * instantiateEntity(ResultSet) and populateEntity methods, over a read-only row, when instantiateEntity is overridden.
+ * The snapshot keeps the row count and the highest value of an optional "updated" column, so a caller can
+ * check whether it is still current and fetch only the rows changed after it was written.
+ * Close the snapshot to drop its mapping, which the JVM unmaps once it is garbage collected:
+ * reading rows from a closed snapshot throws an {@link IllegalStateException}.
+ * @param <T> The type of the entity
+ */
+public class Snapshot<T> implements Iterable<T>, AutoCloseable {
+
+    // Constants
+
+    private final static int MAGIC = 0x514E5350;    // "QNSP"
+    private final static short FORMAT_VERSION = 1;
+
+    private final static String SELECT_CHANGED_RAW_QUERY = "SELECT %s FROM %s WHERE %s > ?;";
+    private final static String SELECT_MAX_RAW_QUERY = "SELECT MAX(%s) as watermark FROM %s;";
+
+    private final static byte NULL = 0;
+    private final static byte STRING = 1;
+    private final static byte INT = 2;
+    private final static byte LONG = 3;
+    private final static byte DOUBLE = 4;
+    private final static byte FLOAT = 5;
+    private final static byte BOOLEAN = 6;
+    private final static byte SHORT = 7;
+    private final static byte BYTE = 8;
+    private final static byte BIG_DECIMAL = 9;
+    private final static byte BIG_INTEGER = 10;
+    private final static byte TIMESTAMP = 11;
+    private final static byte SQL_DATE = 12;
+    private final static byte SQL_TIME = 13;
+    private final static byte LOCAL_DATE_TIME = 14;
+    private final static byte LOCAL_DATE = 15;
+    private final static byte BYTES = 16;
+    private final static byte UUID_VALUE = 17;
+
+    private final Repository<T> repository;         // The repository used to decode the rows
+    private final Path path;                        // The snapshot file
+    private volatile ByteBuffer buffer;             // The mapped file, positions are always absolute (null once closed)
+    private final String[] columns;                 // The column names, in file order
+    private final int publicKeyOrdinal;             // The public key position in the columns (-1 if none)
+    private final String updatedColumnName;         // The updated column name (null if none)
+    private final int rowCount;                     // The number of rows
+    private final Object watermark;                 // The highest value of the updated column (null if none)
+    private final long indexOffset;                 // The offset of the row index
+    private volatile Map<Object, Integer> idIndex;  // The public key -> row map, built on first lookup
+    private final ThreadLocal<SnapshotRow> rows;    // The row handed to instantiateEntity, reused by each thread
+
+    private Snapshot(Repository<T> repository, Path path, ByteBuffer buffer, String[] columns, int publicKeyOrdinal,
+                     String updatedColumnName, int rowCount, Object watermark, long indexOffset) {
+        this.repository = repository;
+        this.path = path;
+        this.buffer = buffer;
+        this.columns = columns;
+        this.publicKeyOrdinal = publicKeyOrdinal;
+        this.updatedColumnName = updatedColumnName;
+        this.rowCount = rowCount;
+        this.watermark = watermark;
+        this.indexOffset = indexOffset;
+        this.rows = ThreadLocal.withInitial(() -> new SnapshotRow(columns));
+    }
+
+    // Getters
+
+    /**
+     * Get the snapshot file
+     * @return The path of the snapshot file
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Get the number of rows stored in the snapshot
+     * @return The number of rows
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Get the column used as validity marker
+     * @return The updated column name, or null if the snapshot was written without one
+     */
+    public String getUpdatedColumnName() {
+        return updatedColumnName;
+    }
+
+    /**
+     * Get the highest value of the updated column at the time the snapshot was written
+     * @return The watermark, or null if the snapshot was written without an updated column or the table was empty
+     */
+    public Object getWatermark() {
+        return watermark;
+    }
+
+    // Read methods
+
+    /**
+     * Read the entity stored at the given row
+     * @param row The row (starting from 0)
+     * @return The entity
+     */
+    public T get(int row) {
+        if (row < 0 || row >= rowCount) throw new IndexOutOfBoundsException("Row " + row + " out of " + rowCount);
+        ByteBuffer buffer = buffer();
+        int position = (int) buffer.getLong((int) (indexOffset + (long) row * Long.BYTES));
+        int[] cursor = {position};
+        if (repository.hasCustomInstantiation()) {
+            SnapshotRow snapshotRow = rows.get();
+            for (int i = 0; i < columns.length; i++) {
+                snapshotRow.values[i] = readValue(buffer, cursor);
+            } return instantiateEntity(row, snapshotRow);
+        }
+        T entity = repository.instantiateEntity();
+        for (String column : columns) {
+            repository.setColumnValue(entity, column, readValue(buffer, cursor));
+        }
+        return entity;
+    }
+
+    /**
+     * Read an entity by id
+     * @param id The id of the entity
+     * @return The entity, or null if the snapshot does not contain it
+     */
+    public T readById(Object id) {
+        if (publicKeyOrdinal < 0) throw new IllegalStateException("The snapshot has no public key column");
+        Integer row = getIdIndex().get(repository.getColumnKey(columns[publicKeyOrdinal], id));
+        return row == null ? null : get(row);
+    }
+
+    /**
+     * Read all the entities stored in the snapshot
+     * @return The list of entities
+     */
+    public List<T> readAll() {
+        List<T> results = new ArrayList<>(rowCount);
+        for (int i = 0; i < rowCount; i++) {
+            results.add(get(i));
+        } return results;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < rowCount;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return get(next++);
+            }
+        };
+    }
+
+    /**
+     * Close the snapshot, dropping the mapped file. The row count, the watermark and the validity methods stay available
+     */
+    @Override
+    public void close() {
+        buffer = null;
+        idIndex = null;
+        rows.remove();
+    }
+
+    // Validity methods
+
+    /**
+     * Check whether the table still matches the snapshot, comparing the row count and the highest value of the updated column
+     * @param connection The connection
+     * @return True if the snapshot is still current
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public boolean isCurrent(Connection connection) throws SQLException {
+        if (repository.getTotalElements(connection) != rowCount) return false;
+        if (updatedColumnName == null) return true;
+        return Objects.equals(normalize(readWatermark(connection, repository, updatedColumnName)), normalize(watermark));
+    }
+
+    /**
+     * Read the entities changed after the snapshot was written, i.e. the rows whose updated column is greater than the watermark.
+     * Deleted rows are not reported: compare {@link #getRowCount()} with the table count to detect them.
+     * @param connection The connection
+     * @return The list of changed entities
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public List<T> readDelta(Connection connection) throws SQLException {
+        if (updatedColumnName == null) throw new IllegalStateException("The snapshot was written without an updated column");
+        if (watermark == null) return repository.read(connection);
+        String query = String.format(SELECT_CHANGED_RAW_QUERY, String.join(",", columns), repository.getTableName(), updatedColumnName);
+        return repository.readByQuery(connection, query, watermark);
+    }
+
+    // Write and open methods
+
+    static <T> long write(Repository<T> repository, Connection connection, Path path, String updatedColumnName) throws SQLException, IOException {
+        List<String> columns = repository.getColumnNames();
+        String publicKeyColumnName = repository.getPublicKeyColumnName();
+        int publicKeyOrdinal = publicKeyColumnName == null ? -1 : columns.indexOf(publicKeyColumnName);
+        int updatedOrdinal = updatedColumnName == null ? -1 : columns.indexOf(updatedColumnName);
+
+        String query = String.format("SELECT %s FROM %s;", String.join(",", columns), repository.getTableName());
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        long rows = 0;
+        Object watermark = null;
+
+        try {
+            try (PreparedStatement statement = repository.prepareRead(connection, query);
+                 ResultSet resultSet = statement.executeQuery();
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+
+                out.writeInt(MAGIC);
+                out.writeShort(FORMAT_VERSION);
+                out.writeInt(columns.size());
+                for (String column : columns) {
+                    writeString(out, column);
+                }
+                out.writeInt(publicKeyOrdinal);
+                writeValue(out, updatedColumnName);
+
+                List<Integer> offsets = new ArrayList<>();
+                while (resultSet.next()) {
+                    offsets.add(out.size());
+                    for (int i = 0; i < columns.size(); i++) {
+                        Object value = resultSet.getObject(i + 1);
+                        writeValue(out, value);
+                        if (i == updatedOrdinal && value != null && (watermark == null || compare(value, watermark) > 0)) {
+                            watermark = value;
+                        }
+                    }
+                    rows++;
+                    if (out.size() < 0) throw new IOException("Snapshots larger than 2GB are not supported");
+                }
+
+                int indexOffset = out.size();
+                for (int offset : offsets) {
+                    out.writeLong(offset);
+                }
+                int footerOffset = out.size();
+                out.writeLong(rows);
+                writeValue(out, watermark);
+                out.writeLong(indexOffset);
+                out.writeLong(footerOffset);
+                if (out.size() < 0) throw new IOException("Snapshots larger than 2GB are not supported");
+            }
+
+            Files.move(temporary, path, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        } catch (SQLException | IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return rows;
+    }
+
+    static <T> Snapshot<T> open(Repository<T> repository, Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Snapshots larger than 2GB are not supported");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int[] cursor = {0};
+        if (buffer.getInt(0) != MAGIC) throw new IOException("Not a snapshot file: " + path);
+        if (buffer.getShort(4) != FORMAT_VERSION) throw new IOException("Unsupported snapshot version: " + buffer.getShort(4));
+        cursor[0] = 6;
+        String[] columns = new String[nextInt(buffer, cursor)];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = readString(buffer, cursor);
+        }
+        if (!Arrays.asList(columns).equals(repository.getColumnNames())) {
+            throw new IOException("Snapshot columns " + Arrays.toString(columns) + " do not match the columns of " + repository.getTableName());
+        }
+        int publicKeyOrdinal = nextInt(buffer, cursor);
+        String updatedColumnName = (String) readValue(buffer, cursor);
+
+        cursor[0] = (int) buffer.getLong(buffer.limit() - Long.BYTES);
+        long rows = buffer.getLong(cursor[0]);
+        cursor[0] += Long.BYTES;
+        Object watermark = readValue(buffer, cursor);
+        long indexOffset = buffer.getLong(cursor[0]);
+
+        return new Snapshot<>(repository, path, buffer, columns, publicKeyOrdinal, updatedColumnName, (int) rows, watermark, indexOffset);
+    }
+
+    static Object readWatermark(Connection connection, Repository<?> repository, String updatedColumnName) throws SQLException {
+        String query = String.format(SELECT_MAX_RAW_QUERY, updatedColumnName, repository.getTableName());
+        try (PreparedStatement statement = connection.prepareStatement(query);
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getObject("watermark") : null;
+        }
+    }
+
+    // Private methods
+
+    private ByteBuffer buffer() {
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new IllegalStateException("The snapshot " + path + " is closed");
+        return buffer;
+    }
+
+    private T instantiateEntity(int row, SnapshotRow snapshotRow) {
+        try {
+            T entity = repository.instantiateEntity(snapshotRow.resultSet);
+            repository.populateEntity(snapshotRow.resultSet, entity);
+            return entity;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot instantiate the entity at row " + row + " of " + path, e);
+        } finally {
+            Arrays.fill(snapshotRow.values, null);
+        }
+    }
+
+    private Map<Object, Integer> getIdIndex() {
+        Map<Object, Integer> index = this.idIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = this.idIndex;
+                if (index == null) {
+                    ByteBuffer buffer = buffer();
+                    index = new HashMap<>(Math.max(16, (int) (rowCount / 0.75f) + 1));
+                    for (int row = 0; row < rowCount; row++) {
+                        int[] cursor = {(int) buffer.getLong((int) (indexOffset + (long) row * Long.BYTES))};
+                        for (int i = 0; i < publicKeyOrdinal; i++) {
+                            skipValue(buffer, cursor);
+                        }
+                        index.put(repository.getColumnKey(columns[publicKeyOrdinal], readValue(buffer, cursor)), row);
+                    }
+                    this.idIndex = index;
+                }
+            }
+        } return index;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compare(Object a, Object b) {
+        if (a instanceof Comparable && a.getClass().equals(b.getClass())) {
+            return ((Comparable) a).compareTo(b);
+        }
+        return Long.compare(((Number) normalize(a)).longValue(), ((Number) normalize(b)).longValue());
+    }
+
+    private static Object normalize(Object value) {
+        if (value instanceof Timestamp) return ((Timestamp) value).getTime();
+        if (value instanceof LocalDateTime) return Timestamp.valueOf((LocalDateTime) value).getTime();
+        if (value instanceof java.util.Date) return ((java.util.Date) value).getTime();
+        if (value instanceof Number && !(value instanceof BigDecimal)) return ((Number) value).longValue();
+        return value;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(BIG_DECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof BigInteger) {
+            out.writeByte(BIG_INTEGER);
+            writeString(out, value.toString());
+        } else if (value instanceof Timestamp) {
+            out.writeByte(TIMESTAMP);
+            out.writeLong(((Timestamp) value).getTime());
+            out.writeInt(((Timestamp) value).getNanos());
+        } else if (value instanceof Date) {
+            out.writeByte(SQL_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof Time) {
+            out.writeByte(SQL_TIME);
+            out.writeLong(((Time) value).getTime());
+        } else if (value instanceof LocalDateTime) {
+            out.writeByte(LOCAL_DATE_TIME);
+            out.writeLong(((LocalDateTime) value).toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(((LocalDateTime) value).getNano());
+        } else if (value instanceof LocalDate) {
+            out.writeByte(LOCAL_DATE);
+            out.writeLong(((LocalDate) value).toEpochDay());
+        } else if (value instanceof byte[]) {
+            out.writeByte(BYTES);
+            out.writeInt(((byte[]) value).length);
+            out.write((byte[]) value);
+        } else if (value instanceof UUID) {
+            out.writeByte(UUID_VALUE);
+            out.writeLong(((UUID) value).getMostSignificantBits());
+            out.writeLong(((UUID) value).getLeastSignificantBits());
+        } else {
+            throw new IOException("Unsupported column value type for snapshot: " + value.getClass().getName());
+        }
+    }
+
+    private static int nextInt(ByteBuffer buffer, int[] cursor) {
+        int value = buffer.getInt(cursor[0]);
+        cursor[0] += Integer.BYTES;
+        return value;
+    }
+
+    private static long nextLong(ByteBuffer buffer, int[] cursor) {
+        long value = buffer.getLong(cursor[0]);
+        cursor[0] += Long.BYTES;
+        return value;
+    }
+
+    private static byte[] nextBytes(ByteBuffer buffer, int[] cursor) {
+        byte[] bytes = new byte[nextInt(buffer, cursor)];
+        buffer.get(cursor[0], bytes);
+        cursor[0] += bytes.length;
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer buffer, int[] cursor) {
+        return new String(nextBytes(buffer, cursor), StandardCharsets.UTF_8);
+    }
+
+    private static Object readValue(ByteBuffer buffer, int[] cursor) {
+        byte tag = buffer.get(cursor[0]++);
+        switch (tag) {
+            case NULL: return null;
+            case STRING: return readString(buffer, cursor);
+            case INT: return nextInt(buffer, cursor);
+            case LONG: return nextLong(buffer, cursor);
+            case DOUBLE: return Double.longBitsToDouble(nextLong(buffer, cursor));
+            case FLOAT: return Float.intBitsToFloat(nextInt(buffer, cursor));
+            case BOOLEAN: return buffer.get(cursor[0]++) != 0;
+            case SHORT: {
+                short value = buffer.getShort(cursor[0]);
+                cursor[0] += Short.BYTES;
+                return value;
+            }
+            case BYTE: return buffer.get(cursor[0]++);
+            case BIG_DECIMAL: return new BigDecimal(readString(buffer, cursor));
+            case BIG_INTEGER: return new BigInteger(readString(buffer, cursor));
+            case TIMESTAMP: {
+                Timestamp timestamp = new Timestamp(nextLong(buffer, cursor));
+                timestamp.setNanos(nextInt(buffer, cursor));
+                return timestamp;
+            }
+            case SQL_DATE: return new Date(nextLong(buffer, cursor));
+            case SQL_TIME: return new Time(nextLong(buffer, cursor));
+            case LOCAL_DATE_TIME: {
+                long seconds = nextLong(buffer, cursor);
+                return LocalDateTime.ofEpochSecond(seconds, nextInt(buffer, cursor), ZoneOffset.UTC);
+            }
+            case LOCAL_DATE: return LocalDate.ofEpochDay(nextLong(buffer, cursor));
+            case BYTES: return nextBytes(buffer, cursor);
+            case UUID_VALUE: {
+                long most = nextLong(buffer, cursor);
+                return new UUID(most, nextLong(buffer, cursor));
+            }
+            default: throw new IllegalStateException("Corrupted snapshot: unknown value tag " + tag);
+        }
+    }
+
+    private static void skipValue(ByteBuffer buffer, int[] cursor) {
+        byte tag = buffer.get(cursor[0]++);
+        switch (tag) {
+            case NULL: break;
+            case STRING: case BIG_DECIMAL: case BIG_INTEGER: case BYTES: cursor[0] += nextInt(buffer, cursor); break;
+            case INT: case FLOAT: cursor[0] += Integer.BYTES; break;
+            case LONG: case DOUBLE: case SQL_DATE: case SQL_TIME: case LOCAL_DATE: cursor[0] += Long.BYTES; break;
+            case BOOLEAN: case BYTE: cursor[0] += 1; break;
+            case SHORT: cursor[0] += Short.BYTES; break;
+            case TIMESTAMP: case LOCAL_DATE_TIME: cursor[0] += Long.BYTES + Integer.BYTES; break;
+            case UUID_VALUE: cursor[0] += 2 * Long.BYTES; break;
+            default: throw new IllegalStateException("Corrupted snapshot: unknown value tag " + tag);
+        }
+    }
+
+    // Private classes
+
+    /**
+     * A read-only, single-row ResultSet over the decoded values of a snapshot row, so the entities of repositories
+     * overriding instantiateEntity are built as they are from a query. Each thread reuses one row, refilling its values
+     */
+    private static final class SnapshotRow implements InvocationHandler {
+        private final String[] columns;
+        private final Object[] values;
+        private final ResultSet resultSet;
+        private boolean wasNull;
+
+        private SnapshotRow(String[] columns) {
+            this.columns = columns;
+            this.values = new Object[columns.length];
+            this.resultSet = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "wasNull":
+                    return wasNull;
+                case "findColumn":
+                    return columnIndex(args[0]) + 1;
+                case "close":
+                    return null;
+                case "isClosed":
+                    return false;
+                case "toString":
+                    return "SnapshotRow" + Arrays.toString(values);
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    if (!method.getName().startsWith("get") || args == null || args.length == 0 || args.length > 2) break;
+                    Object value = values[columnIndex(args[0])];
+                    wasNull = value == null;
+                    if (args.length == 2) {
+                        if (!(args[1] instanceof Class)) break;
+                        return convert(value, (Class<?>) args[1]);
+                    }
+                    return method.getName().equals("getObject") ? value : convert(value, method.getReturnType());
+            }
+            throw new SQLFeatureNotSupportedException("Snapshot rows do not support " + method.getName());
+        }
+
+        private int columnIndex(Object column) throws SQLException {
+            if (column instanceof Integer) {
+                int index = (Integer) column - 1;
+                if (index >= 0 && index < columns.length) return index;
+            } else {
+                for (int i = 0; i < columns.length; i++) {
+                    if (columns[i].equalsIgnoreCase((String) column)) return i;
+                }
+            }
+            throw new SQLException("Column not found: " + column);
+        }
+
+        private static Object convert(Object value, Class<?> type) throws SQLException {
+            Class<?> target = MethodType.methodType(type).wrap().returnType();
+            if (value == null) return type.isPrimitive() ? java.lang.reflect.Array.get(java.lang.reflect.Array.newInstance(type, 1), 0) : null;
+            if (target.isInstance(value)) return value;
+            if (target == String.class) return value.toString();
+            if (value instanceof Number) {
+                Number number = (Number) value;
+                if (target == Long.class) return number.longValue();
+                if (target == Integer.class) return number.intValue();
+                if (target == Short.class) return number.shortValue();
+                if (target == Byte.class) return number.byteValue();
+                if (target == Double.class) return number.doubleValue();
+                if (target == Float.class) return number.floatValue();
+                if (target == Boolean.class) return number.intValue() != 0;
+                if (target == BigDecimal.class) return new BigDecimal(number.toString());
+            }
+            if (value instanceof LocalDateTime && target == Timestamp.class) return Timestamp.valueOf((LocalDateTime) value);
+            if (value instanceof Timestamp && target == LocalDateTime.class) return ((Timestamp) value).toLocalDateTime();
+            if (value instanceof LocalDate && target == Date.class) return Date.valueOf((LocalDate) value);
+            if (value instanceof Date && target == LocalDate.class) return ((Date) value).toLocalDate();
+            throw new SQLException("Cannot convert " + value.getClass().getName() + " to " + type.getName());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SnowflakeIdGenerator class, a lock-free generator of time-ordered 64-bit keys.
+ * A key is made of 41 bits of milliseconds since the epoch of the generator, 10 bits of worker id and 12 bits
+ * of sequence, so up to 1024 processes can generate up to 4096 keys per millisecond each without coordination.
+ * The keys of a generator are strictly increasing: when the sequence overflows or the clock moves backwards,
+ * the generator borrows the next millisecond.
+ */
+public class SnowflakeIdGenerator implements IdGenerator {
+
+    public final static long DEFAULT_EPOCH = 1704067200000L;   // 2024-01-01T00:00:00Z
+    public final static int MAX_WORKER_ID = 1023;
+
+    private final static int SEQUENCE_BITS = 12;
+    private final static int WORKER_BITS = 10;
+
+    private final long epoch;                               // The epoch, in milliseconds
+    private final long workerId;                            // The worker id (0 - 1023)
+    private final AtomicLong state = new AtomicLong();      // The last (timestamp << 12 | sequence) value
+
+    /**
+     * Constructor, with the default epoch
+     * @param workerId The worker id, unique among the processes writing to the same table (0 - 1023)
+     */
+    public SnowflakeIdGenerator(int workerId) {
+        this(workerId, DEFAULT_EPOCH);
+    }
+
+    /**
+     * Constructor
+     * @param workerId The worker id, unique among the processes writing to the same table (0 - 1023)
+     * @param epoch The epoch, in milliseconds (keys are valid for about 69 years from it)
+     */
+    public SnowflakeIdGenerator(int workerId, long epoch) {
+        if (workerId < 0 || workerId > MAX_WORKER_ID) {
+            throw new IllegalArgumentException("The worker id must be between 0 and " + MAX_WORKER_ID + ": " + workerId);
+        }
+        this.workerId = workerId;
+        this.epoch = epoch;
+    }
+
+    @Override
+    public Object next(Connection connection) {
+        return nextLong();
+    }
+
+    /**
+     * Generate the next key
+     * @return The key
+     */
+    public long nextLong() {
+        long now = (System.currentTimeMillis() - epoch) << SEQUENCE_BITS;
+        long next;
+        while (true) {
+            long last = state.get();
+            next = now > last ? now : last + 1;
+            if (state.compareAndSet(last, next)) break;
+        }
+        long timestamp = next >>> SEQUENCE_BITS;
+        long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+        return (timestamp << (WORKER_BITS + SEQUENCE_BITS)) | (workerId << SEQUENCE_BITS) | sequence;
+    }
+
+    /**
+     * Get the creation time of a key
+     * @param id The key
+     * @return The milliseconds since 1970-01-01T00:00:00Z
+     */
+    public long timestampOf(long id) {
+        return (id >>> (WORKER_BITS + SEQUENCE_BITS)) + epoch;
+    }
+
+    /**
+     * Get the worker id of a key
+     * @param id The key
+     * @return The worker id
+     */
+    public static int workerIdOf(long id) {
+        return (int) ((id >>> SEQUENCE_BITS) & MAX_WORKER_ID);
+    }
+}
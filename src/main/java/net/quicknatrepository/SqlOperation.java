@@ -0,0 +1,39 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * SqlOperation interface, an operation run on a connection, e.g. a repository call passed to a RetryExecutor.
+ * <pre>
+ * List&lt;Company&gt; companies = executor.execute(connection, c -&gt; repository.readBy(c, "city", "Rome"));
+ * </pre>
+ * @param <R> The type of the result
+ */
+@FunctionalInterface
+public interface SqlOperation<R> {
+
+    /**
+     * Run the operation
+     * @param connection The connection
+     * @return The result
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    R execute(Connection connection) throws SQLException;
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.quicknatrepository;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * StaleEntityException class, thrown by the batched updates and deletes of an entity with a @Version field when some
+ * entities were changed or deleted by someone else since they were read (their version no longer matches).
+ * The other entities of the batch were written (updated or deleted): roll back the transaction to discard those changes
+ * too, then read the stale entities again. Since the transaction is expected to be rolled back, the updated entities
+ * get their previous versions back, like the stale ones.
+ * Drivers returning no update counts for batches (SUCCESS_NO_INFO, e.g. MySQL with rewriteBatchedStatements) cannot
+ * report the stale entities: versioned batches then fail with a plain SQLException, and must be rolled back as well.
+ */
+public class StaleEntityException extends SQLException {
+
+    private final static long serialVersionUID = 1L;
+
+    private final List<?> staleEntities;    // The entities that failed the version check, in batch order
+    private final int[] staleIndexes;       // Their indexes in the batch
+    private final int[] updateCounts;       // The update counts of the batch
+
+    StaleEntityException(String tableName, List<?> staleEntities, int[] staleIndexes, int[] updateCounts) {
+        super(staleEntities.size() + " stale entities of " + updateCounts.length + " in table " + tableName);
+        this.staleEntities = List.copyOf(staleEntities);
+        this.staleIndexes = staleIndexes;
+        this.updateCounts = updateCounts;
+    }
+
+    /**
+     * Get the entities that failed the version check
+     * @return The entities, in batch order
+     */
+    public List<?> getStaleEntities() {
+        return staleEntities;
+    }
+
+    /**
+     * Get the indexes in the batch of the entities that failed the version check
+     * @return The indexes, ascending
+     */
+    public int[] getStaleIndexes() {
+        return staleIndexes.clone();
+    }
+
+    /**
+     * Get the update counts of the batch (0 for the stale entities)
+     * @return The update counts, one for each entity
+     */
+    public int[] getUpdateCounts() {
+        return updateCounts.clone();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * TypeConverter interface, the JDBC read and write strategy for a Java type.
+ * Implementations should use the typed ResultSet and PreparedStatement methods (getLong, setString, ...) of the column.
+ * @param <J> The Java type
+ */
+public interface TypeConverter<J> {
+
+    /**
+     * Read a column value
+     * @param resultSet The result set, positioned on the row to read
+     * @param columnLabel The column label
+     * @return The value (null if the column is SQL NULL)
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    J read(ResultSet resultSet, String columnLabel) throws SQLException;
+
+    /**
+     * Bind a value to a statement parameter
+     * @param statement The statement
+     * @param index The parameter index (starting from 1)
+     * @param value The value (never null: null values are bound by the repository)
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    void write(PreparedStatement statement, int index, J value) throws SQLException;
+
+    /**
+     * Convert a value returned by ResultSet.getObject (e.g. stored in a snapshot or returned as generated key) into the Java type
+     * @param value The raw value (never null)
+     * @return The converted value
+     */
+    @SuppressWarnings("unchecked")
+    default J convert(Object value) {
+        return (J) value;
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.time.*;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * TypeConverters class, the global registry of the type converters and the built-in converters.
+ * Converters registered here apply to the repositories created afterwards; a repository can override them with
+ * {@link Repository#registerConverter} and {@link Repository#bindColumnToConverter}.
+ */
+public final class TypeConverters {
+
+    // Built-in converters
+
+    /**
+     * Fallback converter, using getObject and setObject
+     */
+    public final static TypeConverter<Object> OBJECT = new TypeConverter<>() {
+        public Object read(ResultSet resultSet, String columnLabel) throws SQLException { return resultSet.getObject(columnLabel); }
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException { statement.setObject(index, value); }
+    };
+
+    public final static TypeConverter<String> STRING = new TypeConverter<>() {
+        public String read(ResultSet resultSet, String columnLabel) throws SQLException { return resultSet.getString(columnLabel); }
+        public void write(PreparedStatement statement, int index, String value) throws SQLException { statement.setString(index, value); }
+        public String convert(Object value) { return value.toString(); }
+    };
+
+    public final static TypeConverter<Integer> INTEGER = new TypeConverter<>() {
+        public Integer read(ResultSet resultSet, String columnLabel) throws SQLException {
+            int value = resultSet.getInt(columnLabel);
+            return resultSet.wasNull() ? null : value;
+        }
+        public void write(PreparedStatement statement, int index, Integer value) throws SQLException { statement.setInt(index, value); }
+        public Integer convert(Object value) { return ((Number) value).intValue(); }
+    };
+
+    public final static TypeConverter<Long> LONG = new TypeConverter<>() {
+        public Long read(ResultSet resultSet, String columnLabel) throws SQLException {
+            long value = resultSet.getLong(columnLabel);
+            return resultSet.wasNull() ? null : value;
+        }
+        public void write(PreparedStatement statement, int index, Long value) throws SQLException { statement.setLong(index, value); }
+        public Long convert(Object value) { return ((Number) value).longValue(); }
+    };
+
+    public final static TypeConverter<Short> SHORT = new TypeConverter<>() {
+        public Short read(ResultSet resultSet, String columnLabel) throws SQLException {
+            short value = resultSet.getShort(columnLabel);
+            return resultSet.wasNull() ? null : value;
+        }
+        public void write(PreparedStatement statement, int index, Short value) throws SQLException { statement.setShort(index, value); }
+        public Short convert(Object value) { return ((Number) value).shortValue(); }
+    };
+
+    public final static TypeConverter<Byte> BYTE = new TypeConverter<>() {
+        public Byte read(ResultSet resultSet, String columnLabel) throws SQLException {
+            byte value = resultSet.getByte(columnLabel);
+            return resultSet.wasNull() ? null : value;
+        }
+        public void write(PreparedStatement statement, int index, Byte value) throws SQLException { statement.setByte(index, value); }
+        public Byte convert(Object value) { return ((Number) value).byteValue(); }
+    };
+
+    public final static TypeConverter<Double> DOUBLE = new TypeConverter<>() {
+        public Double read(ResultSet resultSet, String columnLabel) throws SQLException {
+            double value = resultSet.getDouble(columnLabel);
+            return resultSet.wasNull() ? null : value;
+        }
+        public void write(PreparedStatement statement, int index, Double value) throws SQLException { statement.setDouble(index, value); }
+        public Double convert(Object value) { return ((Number) value).doubleValue(); }
+    };
+
+    public final static TypeConverter<Float> FLOAT = new TypeConverter<>() {
+        public Float read(ResultSet resultSet, String columnLabel) throws SQLException {
+            float value = resultSet.getFloat(columnLabel);
+            return resultSet.wasNull() ? null : value;
+        }
+        public void write(PreparedStatement statement, int index, Float value) throws SQLException { statement.setFloat(index, value); }
+        public Float convert(Object value) { return ((Number) value).floatValue(); }
+    };
+
+    public final static TypeConverter<Boolean> BOOLEAN = new TypeConverter<>() {
+        public Boolean read(ResultSet resultSet, String columnLabel) throws SQLException {
+            boolean value = resultSet.getBoolean(columnLabel);
+            return resultSet.wasNull() ? null : value;
+        }
+        public void write(PreparedStatement statement, int index, Boolean value) throws SQLException { statement.setBoolean(index, value); }
+        public Boolean convert(Object value) { return value instanceof Number ? ((Number) value).intValue() != 0 : (Boolean) value; }
+    };
+
+    public final static TypeConverter<BigDecimal> BIG_DECIMAL = new TypeConverter<>() {
+        public BigDecimal read(ResultSet resultSet, String columnLabel) throws SQLException { return resultSet.getBigDecimal(columnLabel); }
+        public void write(PreparedStatement statement, int index, BigDecimal value) throws SQLException { statement.setBigDecimal(index, value); }
+        public BigDecimal convert(Object value) { return value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString()); }
+    };
+
+    public final static TypeConverter<byte[]> BYTES = new TypeConverter<>() {
+        public byte[] read(ResultSet resultSet, String columnLabel) throws SQLException { return resultSet.getBytes(columnLabel); }
+        public void write(PreparedStatement statement, int index, byte[] value) throws SQLException { statement.setBytes(index, value); }
+    };
+
+    public final static TypeConverter<Date> SQL_DATE = new TypeConverter<>() {
+        public Date read(ResultSet resultSet, String columnLabel) throws SQLException { return resultSet.getDate(columnLabel); }
+        public void write(PreparedStatement statement, int index, Date value) throws SQLException { statement.setDate(index, value); }
+        public Date convert(Object value) {
+            if (value instanceof LocalDate) return Date.valueOf((LocalDate) value);
+            if (value instanceof LocalDateTime) return Date.valueOf(((LocalDateTime) value).toLocalDate());
+            return value instanceof Date ? (Date) value : new Date(((java.util.Date) value).getTime());
+        }
+    };
+
+    public final static TypeConverter<Time> SQL_TIME = new TypeConverter<>() {
+        public Time read(ResultSet resultSet, String columnLabel) throws SQLException { return resultSet.getTime(columnLabel); }
+        public void write(PreparedStatement statement, int index, Time value) throws SQLException { statement.setTime(index, value); }
+        public Time convert(Object value) { return value instanceof LocalTime ? Time.valueOf((LocalTime) value) : (Time) value; }
+    };
+
+    public final static TypeConverter<Timestamp> TIMESTAMP = new TypeConverter<>() {
+        public Timestamp read(ResultSet resultSet, String columnLabel) throws SQLException { return resultSet.getTimestamp(columnLabel); }
+        public void write(PreparedStatement statement, int index, Timestamp value) throws SQLException { statement.setTimestamp(index, value); }
+        public Timestamp convert(Object value) {
+            if (value instanceof LocalDateTime) return Timestamp.valueOf((LocalDateTime) value);
+            return value instanceof Timestamp ? (Timestamp) value : new Timestamp(((java.util.Date) value).getTime());
+        }
+    };
+
+    public final static TypeConverter<LocalDate> LOCAL_DATE = new TypeConverter<>() {
+        public LocalDate read(ResultSet resultSet, String columnLabel) throws SQLException { return resultSet.getObject(columnLabel, LocalDate.class); }
+        public void write(PreparedStatement statement, int index, LocalDate value) throws SQLException { statement.setObject(index, value); }
+        public LocalDate convert(Object value) {
+            if (value instanceof Date) return ((Date) value).toLocalDate();
+            if (value instanceof LocalDateTime) return ((LocalDateTime) value).toLocalDate();
+            return (LocalDate) value;
+        }
+    };
+
+    public final static TypeConverter<LocalDateTime> LOCAL_DATE_TIME = new TypeConverter<>() {
+        public LocalDateTime read(ResultSet resultSet, String columnLabel) throws SQLException { return resultSet.getObject(columnLabel, LocalDateTime.class); }
+        public void write(PreparedStatement statement, int index, LocalDateTime value) throws SQLException { statement.setObject(index, value); }
+        public LocalDateTime convert(Object value) { return value instanceof Timestamp ? ((Timestamp) value).toLocalDateTime() : (LocalDateTime) value; }
+    };
+
+    public final static TypeConverter<LocalTime> LOCAL_TIME = new TypeConverter<>() {
+        public LocalTime read(ResultSet resultSet, String columnLabel) throws SQLException { return resultSet.getObject(columnLabel, LocalTime.class); }
+        public void write(PreparedStatement statement, int index, LocalTime value) throws SQLException { statement.setObject(index, value); }
+        public LocalTime convert(Object value) { return value instanceof Time ? ((Time) value).toLocalTime() : (LocalTime) value; }
+    };
+
+    public final static TypeConverter<Instant> INSTANT = new TypeConverter<>() {
+        public Instant read(ResultSet resultSet, String columnLabel) throws SQLException {
+            Timestamp value = resultSet.getTimestamp(columnLabel);
+            return value == null ? null : value.toInstant();
+        }
+        public void write(PreparedStatement statement, int index, Instant value) throws SQLException { statement.setTimestamp(index, Timestamp.from(value)); }
+        public Instant convert(Object value) {
+            if (value instanceof LocalDateTime) return Timestamp.valueOf((LocalDateTime) value).toInstant();
+            return value instanceof Instant ? (Instant) value : ((java.util.Date) value).toInstant();
+        }
+    };
+
+    public final static TypeConverter<OffsetDateTime> OFFSET_DATE_TIME = new TypeConverter<>() {
+        public OffsetDateTime read(ResultSet resultSet, String columnLabel) throws SQLException { return resultSet.getObject(columnLabel, OffsetDateTime.class); }
+        public void write(PreparedStatement statement, int index, OffsetDateTime value) throws SQLException { statement.setObject(index, value); }
+    };
+
+    /**
+     * UUID bound with setObject, for native uuid columns (the default for UUID fields). Values read as 16 bytes or text are converted.
+     */
+    public final static TypeConverter<UUID> UUID_OBJECT = new TypeConverter<>() {
+        public UUID read(ResultSet resultSet, String columnLabel) throws SQLException {
+            Object value = resultSet.getObject(columnLabel);
+            return value == null ? null : convert(value);
+        }
+        public void write(PreparedStatement statement, int index, UUID value) throws SQLException { statement.setObject(index, value); }
+        public UUID convert(Object value) { return toUuid(value); }
+    };
+
+    /**
+     * UUID stored as BINARY(16), most significant bytes first (a CHAR(36) column is also accepted when reading).
+     * Opt-in: register it globally or for a repository, e.g. repository.registerConverter(UUID.class, TypeConverters.UUID_BINARY)
+     */
+    public final static TypeConverter<UUID> UUID_BINARY = new TypeConverter<>() {
+        public UUID read(ResultSet resultSet, String columnLabel) throws SQLException {
+            byte[] value = resultSet.getBytes(columnLabel);
+            return value == null ? null : convert(value);
+        }
+        public void write(PreparedStatement statement, int index, UUID value) throws SQLException { statement.setBytes(index, toBytes(value)); }
+        public UUID convert(Object value) { return toUuid(value); }
+    };
+
+    private final static Map<Class<?>, TypeConverter<?>> REGISTRY = new ConcurrentHashMap<>();
+    private final static Map<Class<?>, TypeConverter<?>> ENUM_CONVERTERS = new ConcurrentHashMap<>();
+    private final static Map<Class<?>, TypeConverter<?>> ORDINAL_ENUM_CONVERTERS = new ConcurrentHashMap<>();
+
+    static {
+        REGISTRY.put(Object.class, OBJECT);
+        REGISTRY.put(String.class, STRING);
+        REGISTRY.put(Integer.class, INTEGER);
+        REGISTRY.put(int.class, INTEGER);
+        REGISTRY.put(Long.class, LONG);
+        REGISTRY.put(long.class, LONG);
+        REGISTRY.put(Short.class, SHORT);
+        REGISTRY.put(short.class, SHORT);
+        REGISTRY.put(Byte.class, BYTE);
+        REGISTRY.put(byte.class, BYTE);
+        REGISTRY.put(Double.class, DOUBLE);
+        REGISTRY.put(double.class, DOUBLE);
+        REGISTRY.put(Float.class, FLOAT);
+        REGISTRY.put(float.class, FLOAT);
+        REGISTRY.put(Boolean.class, BOOLEAN);
+        REGISTRY.put(boolean.class, BOOLEAN);
+        REGISTRY.put(BigDecimal.class, BIG_DECIMAL);
+        REGISTRY.put(byte[].class, BYTES);
+        REGISTRY.put(Date.class, SQL_DATE);
+        REGISTRY.put(Time.class, SQL_TIME);
+        REGISTRY.put(Timestamp.class, TIMESTAMP);
+        REGISTRY.put(LocalDate.class, LOCAL_DATE);
+        REGISTRY.put(LocalDateTime.class, LOCAL_DATE_TIME);
+        REGISTRY.put(LocalTime.class, LOCAL_TIME);
+        REGISTRY.put(Instant.class, INSTANT);
+        REGISTRY.put(OffsetDateTime.class, OFFSET_DATE_TIME);
+        REGISTRY.put(UUID.class, UUID_OBJECT);
+    }
+
+    private TypeConverters() {
+    }
+
+    // Registry methods
+
+    /**
+     * Register a converter for a Java type, used by the repositories created afterwards
+     * @param type The Java type
+     * @param converter The converter
+     * @param <J> The Java type
+     */
+    public static <J> void register(Class<J> type, TypeConverter<J> converter) {
+        REGISTRY.put(type, converter);
+    }
+
+    /**
+     * Find the converter of a Java type: the registered one, an enum converter, or {@link #OBJECT}
+     * @param type The Java type
+     * @return The converter
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static TypeConverter<Object> find(Class<?> type) {
+        TypeConverter<?> converter = REGISTRY.get(type);
+        if (converter == null && type.isEnum()) {
+            converter = ENUM_CONVERTERS.computeIfAbsent(type, x -> new EnumConverter(x, false));
+        }
+        return (TypeConverter<Object>) (converter == null ? OBJECT : converter);
+    }
+
+    // Factory methods
+
+    /**
+     * Create a converter for an enum stored by name (read also accepts ordinals).
+     * Constants are resolved through cached arrays instead of Enum.valueOf.
+     * @param type The enum type
+     * @param <E> The enum type
+     * @return The converter
+     */
+    @SuppressWarnings("unchecked")
+    public static <E extends Enum<E>> TypeConverter<E> enumByName(Class<E> type) {
+        return (TypeConverter<E>) ENUM_CONVERTERS.computeIfAbsent(type, x -> new EnumConverter<>(type, false));
+    }
+
+    /**
+     * Create a converter for an enum stored by ordinal (read also accepts names)
+     * @param type The enum type
+     * @param <E> The enum type
+     * @return The converter
+     */
+    @SuppressWarnings("unchecked")
+    public static <E extends Enum<E>> TypeConverter<E> enumByOrdinal(Class<E> type) {
+        return (TypeConverter<E>) ORDINAL_ENUM_CONVERTERS.computeIfAbsent(type, x -> new EnumConverter<>(type, true));
+    }
+
+    /**
+     * Create a converter for a JSON column, stored as text
+     * @param parser The function parsing the JSON text, e.g. text -> objectMapper.readValue(text, Settings.class)
+     * @param serializer The function serializing the value to JSON text, e.g. objectMapper::writeValueAsString
+     * @param <J> The Java type
+     * @return The converter
+     */
+    public static <J> TypeConverter<J> json(Function<String, J> parser, Function<J, String> serializer) {
+        return new TypeConverter<>() {
+            public J read(ResultSet resultSet, String columnLabel) throws SQLException {
+                String value = resultSet.getString(columnLabel);
+                return value == null ? null : parser.apply(value);
+            }
+            public void write(PreparedStatement statement, int index, J value) throws SQLException { statement.setString(index, serializer.apply(value)); }
+            public J convert(Object value) { return parser.apply(value.toString()); }
+        };
+    }
+
+    /**
+     * Convert a UUID into its 16 bytes, most significant first (same as Uuids.toBytes)
+     * @param value The UUID
+     * @return The bytes
+     */
+    public static byte[] toBytes(UUID value) {
+        return Uuids.toBytes(value);
+    }
+
+    // Private methods
+
+    private static UUID toUuid(Object value) {
+        if (value instanceof UUID) return (UUID) value;
+        if (value instanceof byte[] && ((byte[]) value).length == 16) return Uuids.fromBytes((byte[]) value);
+        String text = value instanceof byte[] ? new String((byte[]) value, java.nio.charset.StandardCharsets.US_ASCII) : value.toString();
+        return UUID.fromString(text);
+    }
+
+    // Private classes
+
+    private static final class EnumConverter<E extends Enum<E>> implements TypeConverter<E> {
+        private final Class<E> type;                // The enum type
+        private final E[] constants;                // The constants, by ordinal
+        private final String[] names;               // The constant names, by ordinal
+        private final boolean ordinal;              // The enum is stored by ordinal
+
+        private EnumConverter(Class<E> type, boolean ordinal) {
+            this.type = type;
+            this.constants = type.getEnumConstants();
+            this.names = new String[constants.length];
+            for (int i = 0; i < constants.length; i++) {
+                names[i] = constants[i].name();
+            }
+            this.ordinal = ordinal;
+        }
+
+        public E read(ResultSet resultSet, String columnLabel) throws SQLException {
+            if (ordinal) {
+                int value = resultSet.getInt(columnLabel);
+                return resultSet.wasNull() ? null : byOrdinal(value);
+            }
+            String value = resultSet.getString(columnLabel);
+            return value == null ? null : convert(value);
+        }
+
+        public void write(PreparedStatement statement, int index, E value) throws SQLException {
+            if (ordinal) {
+                statement.setInt(index, value.ordinal());
+            } else {
+                statement.setString(index, value.name());
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public E convert(Object value) {
+            if (value instanceof Number) return byOrdinal(((Number) value).intValue());
+            if (value instanceof Enum) return (E) value;
+            String text = value.toString();
+            E constant = byName(text);
+            if (constant == null) {
+                if (!text.isEmpty() && text.chars().allMatch(Character::isDigit)) return byOrdinal(Integer.parseInt(text));
+                throw new IllegalArgumentException("No enum constant " + type.getName() + "." + text);
+            } return constant;
+        }
+
+        private E byOrdinal(int value) {
+            if (value < 0 || value >= constants.length) {
+                throw new IllegalArgumentException("No enum constant of " + type.getName() + " with ordinal " + value);
+            } return constants[value];
+        }
+
+        private E byName(String value) {
+            // Enums are small: comparing the names (length first) is cheaper than hashing the value of every row
+            int length = value.length();
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].length() == length && names[i].equals(value)) return constants[i];
+            } return null;
+        }
+    }
+}
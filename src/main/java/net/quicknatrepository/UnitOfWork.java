@@ -0,0 +1,239 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * UnitOfWork class, used to write entities of several repositories together.
+ * Inserts, updates and deletes are collected in memory and flushed in a single transaction, with one batch for
+ * each repository and operation. Deletes run first, with the referencing repositories first, so a key can be deleted and
+ * inserted again in the same flush; then inserts and updates run with the referenced repositories first.
+ * Since updates run after the deletes, a row cannot be deleted in the same flush as the update removing its last reference.
+ * <pre>
+ * new UnitOfWork()
+ *         .dependsOn(companyRepository, companyDetailsRepository)
+ *         .insert(companyDetailsRepository, details)
+ *         .insert(companyRepository, company)
+ *         .flush(connection);
+ * </pre>
+ */
+public class UnitOfWork {
+
+    private static class Operations<T> {
+        private final Repository<T> repository;
+        private final List<T> inserts = new ArrayList<>();
+        private final List<T> updates = new ArrayList<>();
+        private final List<T> deletes = new ArrayList<>();
+
+        private Operations(Repository<T> repository) {
+            this.repository = repository;
+        }
+    }
+
+    private final Map<Repository<?>, Operations<?>> operations = new LinkedHashMap<>();       // The operations by repository, in registration order
+    private final Map<Repository<?>, Set<Repository<?>>> dependencies = new HashMap<>();    // The dependencies (repository -> repositories it references)
+
+    // Register methods
+
+    /**
+     * Register an entity to insert
+     * @param repository The repository of the entity
+     * @param entity The entity
+     * @param <T> The type of the entity
+     * @return This unit of work
+     */
+    public <T> UnitOfWork insert(Repository<T> repository, T entity) {
+        operationsOf(repository).inserts.add(entity);
+        return this;
+    }
+
+    /**
+     * Register entities to insert
+     * @param repository The repository of the entities
+     * @param entities The entities
+     * @param <T> The type of the entities
+     * @return This unit of work
+     */
+    public <T> UnitOfWork insert(Repository<T> repository, List<T> entities) {
+        operationsOf(repository).inserts.addAll(entities);
+        return this;
+    }
+
+    /**
+     * Register an entity to update
+     * @param repository The repository of the entity
+     * @param entity The entity
+     * @param <T> The type of the entity
+     * @return This unit of work
+     */
+    public <T> UnitOfWork update(Repository<T> repository, T entity) {
+        operationsOf(repository).updates.add(entity);
+        return this;
+    }
+
+    /**
+     * Register entities to update
+     * @param repository The repository of the entities
+     * @param entities The entities
+     * @param <T> The type of the entities
+     * @return This unit of work
+     */
+    public <T> UnitOfWork update(Repository<T> repository, List<T> entities) {
+        operationsOf(repository).updates.addAll(entities);
+        return this;
+    }
+
+    /**
+     * Register an entity to delete
+     * @param repository The repository of the entity
+     * @param entity The entity
+     * @param <T> The type of the entity
+     * @return This unit of work
+     */
+    public <T> UnitOfWork delete(Repository<T> repository, T entity) {
+        operationsOf(repository).deletes.add(entity);
+        return this;
+    }
+
+    /**
+     * Register entities to delete
+     * @param repository The repository of the entities
+     * @param entities The entities
+     * @param <T> The type of the entities
+     * @return This unit of work
+     */
+    public <T> UnitOfWork delete(Repository<T> repository, List<T> entities) {
+        operationsOf(repository).deletes.addAll(entities);
+        return this;
+    }
+
+    /**
+     * Declare that the rows of a repository reference the rows of another one (e.g. through a foreign key),
+     * so the referenced rows are inserted first and deleted last
+     * @param dependent The repository whose rows hold the reference
+     * @param dependency The repository whose rows are referenced
+     * @return This unit of work
+     */
+    public UnitOfWork dependsOn(Repository<?> dependent, Repository<?> dependency) {
+        dependencies.computeIfAbsent(dependent, x -> new LinkedHashSet<>()).add(dependency);
+        return this;
+    }
+
+    // Flush methods
+
+    /**
+     * Check whether there is nothing to flush
+     * @return True if no operation is registered
+     */
+    public boolean isEmpty() {
+        for (Operations<?> ops : operations.values()) {
+            if (!ops.inserts.isEmpty() || !ops.updates.isEmpty() || !ops.deletes.isEmpty()) return false;
+        } return true;
+    }
+
+    /**
+     * Discard all the registered operations
+     */
+    public void clear() {
+        operations.clear();
+    }
+
+    /**
+     * Execute all the registered operations in a single transaction and clear them.
+     * If the connection is in auto-commit mode, the transaction is committed (or rolled back on failure) here;
+     * otherwise the operations join the transaction already open on the connection.
+     * @param connection The connection
+     * @return The total number of affected rows
+     * @throws SQLException The SQL exception if the operation fails for any reason
+     */
+    public int flush(Connection connection) throws SQLException {
+        if (isEmpty()) return 0;
+        List<Operations<?>> ordered = sortByDependencies();
+        boolean autoCommit = connection.getAutoCommit();
+        if (autoCommit) connection.setAutoCommit(false);
+        try {
+            int affectedRows = 0;
+            for (int i = ordered.size() - 1; i >= 0; i--) {
+                affectedRows += flushDeletes(connection, ordered.get(i));
+            }
+            for (Operations<?> ops : ordered) {
+                affectedRows += flushInserts(connection, ops);
+                affectedRows += flushUpdates(connection, ops);
+            }
+            if (autoCommit) {
+                connection.commit();
+                // The cached results read by other threads between the writes and the commit are stale too
+                QueryCache.endTransaction(connection);
+            }
+            clear();
+            return affectedRows;
+        } catch (SQLException | RuntimeException e) {
+            if (autoCommit) {
+                connection.rollback();
+                QueryCache.endTransaction(connection);
+            }
+            throw e;
+        } finally {
+            if (autoCommit) connection.setAutoCommit(true);
+        }
+    }
+
+    // Private methods
+
+    @SuppressWarnings("unchecked")
+    private <T> Operations<T> operationsOf(Repository<T> repository) {
+        return (Operations<T>) operations.computeIfAbsent(repository, x -> new Operations<>(repository));
+    }
+
+    private List<Operations<?>> sortByDependencies() throws SQLException {
+        List<Operations<?>> ordered = new ArrayList<>();
+        Set<Repository<?>> visited = new HashSet<>();
+        Set<Repository<?>> visiting = new HashSet<>();
+        for (Repository<?> repository : operations.keySet()) {
+            visit(repository, visited, visiting, ordered);
+        } return ordered;
+    }
+
+    private void visit(Repository<?> repository, Set<Repository<?>> visited, Set<Repository<?>> visiting, List<Operations<?>> ordered) throws SQLException {
+        if (visited.contains(repository)) return;
+        if (!visiting.add(repository)) {
+            throw new SQLException("Circular dependency between repositories involving table " + repository.getTableName());
+        }
+        for (Repository<?> dependency : dependencies.getOrDefault(repository, Collections.emptySet())) {
+            visit(dependency, visited, visiting, ordered);
+        }
+        visiting.remove(repository);
+        visited.add(repository);
+        Operations<?> ops = operations.get(repository);
+        if (ops != null) ordered.add(ops);
+    }
+
+    private static <T> int flushInserts(Connection connection, Operations<T> ops) throws SQLException {
+        return ops.inserts.isEmpty() ? 0 : Repository.sumAffectedRows(ops.repository.insert(connection, ops.inserts));
+    }
+
+    private static <T> int flushUpdates(Connection connection, Operations<T> ops) throws SQLException {
+        return ops.updates.isEmpty() ? 0 : Repository.sumAffectedRows(ops.repository.update(connection, ops.updates));
+    }
+
+    private static <T> int flushDeletes(Connection connection, Operations<T> ops) throws SQLException {
+        return ops.deletes.isEmpty() ? 0 : Repository.sumAffectedRows(ops.repository.delete(connection, ops.deletes));
+    }
+}
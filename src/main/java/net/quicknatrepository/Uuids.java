@@ -0,0 +1,89 @@
+/*
+ * Copyright 2024 Dario Gagliano
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.quicknatrepository;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uuids class, the UUID utilities used for BINARY(16) keys.
+ * Version 7 UUIDs start with a millisecond timestamp, so keys generated one after the other are stored close
+ * together in the primary key index, unlike random (version 4) UUIDs.
+ */
+public final class Uuids {
+
+    private final static AtomicLong LAST_TIMESTAMP = new AtomicLong();     // The last (timestamp << 12 | counter) value
+
+    private Uuids() {
+    }
+
+    /**
+     * Generate a time-ordered version 7 UUID (RFC 9562).
+     * UUIDs generated by this JVM are strictly increasing: within the same millisecond a 12-bit counter is used,
+     * and when it overflows the timestamp is advanced by one millisecond.
+     * @return The UUID
+     */
+    public static UUID v7() {
+        long now = System.currentTimeMillis() << 12;
+        long next;
+        while (true) {
+            long last = LAST_TIMESTAMP.get();
+            next = now > last ? now : last + 1;
+            if (LAST_TIMESTAMP.compareAndSet(last, next)) break;
+        }
+        long timestamp = next >>> 12;
+        long counter = next & 0xFFF;
+        long mostSigBits = (timestamp << 16) | 0x7000L | counter;
+        long leastSigBits = (ThreadLocalRandom.current().nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        return new UUID(mostSigBits, leastSigBits);
+    }
+
+    /**
+     * Get the creation time of a version 7 UUID
+     * @param uuid The UUID
+     * @return The milliseconds since the epoch
+     */
+    public static long timestampOf(UUID uuid) {
+        if (uuid.version() != 7) throw new IllegalArgumentException("Not a version 7 UUID: " + uuid);
+        return uuid.getMostSignificantBits() >>> 16;
+    }
+
+    /**
+     * Convert a UUID into its 16 bytes, most significant first
+     * @param value The UUID
+     * @return The bytes
+     */
+    public static byte[] toBytes(UUID value) {
+        return ByteBuffer.allocate(16)
+                .putLong(value.getMostSignificantBits())
+                .putLong(value.getLeastSignificantBits())
+                .array();
+    }
+
+    /**
+     * Convert 16 bytes, most significant first, into a UUID
+     * @param bytes The bytes
+     * @return The UUID
+     */
+    public static UUID fromBytes(byte[] bytes) {
+        if (bytes.length != 16) throw new IllegalArgumentException("A UUID needs 16 bytes, found " + bytes.length);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+}
@@ -0,0 +1,51 @@
+package entities;
+
+import javax.persistence.Column;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Version;
+
+@Table(name = "accounts")
+public class Account {
+
+    @Id
+    private Long id;
+
+    @Column
+    private String owner;
+
+    @Version
+    private Integer version;
+
+    public Account() {
+    }
+
+    public Account(Long id, String owner) {
+        this.id = id;
+        this.owner = owner;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public Integer getVersion() {
+        return version;
+    }
+
+    public void setVersion(Integer version) {
+        this.version = version;
+    }
+}
@@ -0,0 +1,41 @@
+package entities;
+
+import javax.persistence.Column;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.util.UUID;
+
+@Table(name = "devices")
+public class Device {
+
+    @Id
+    @GeneratedValue
+    private UUID id;
+
+    @Column
+    private String name;
+
+    public Device() {
+    }
+
+    public Device(String name) {
+        this.name = name;
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public void setId(UUID id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+}
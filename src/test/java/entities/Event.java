@@ -0,0 +1,82 @@
+package entities;
+
+import javax.persistence.Column;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.UUID;
+
+@Table(name = "events")
+public class Event {
+
+    public enum Type { CREATED, UPDATED, DELETED }
+
+    public enum Priority { LOW, MEDIUM, HIGH }
+
+    @Id
+    private Long id;
+
+    @Column
+    private Type type;
+
+    @Column
+    @Enumerated(EnumType.ORDINAL)
+    private Priority priority;
+
+    @Column(name = "event_day")
+    private LocalDate day;
+
+    @Column(name = "created_at")
+    private Instant createdAt;
+
+    @Column
+    private UUID reference;
+
+    @Column
+    private List<String> tags;
+
+    public Event() {
+    }
+
+    public Event(Long id, Type type, Priority priority, LocalDate day, Instant createdAt, UUID reference, List<String> tags) {
+        this.id = id;
+        this.type = type;
+        this.priority = priority;
+        this.day = day;
+        this.createdAt = createdAt;
+        this.reference = reference;
+        this.tags = tags;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public LocalDate getDay() {
+        return day;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public UUID getReference() {
+        return reference;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+}
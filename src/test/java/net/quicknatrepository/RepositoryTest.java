@@ -1,18 +1,44 @@
 package net.quicknatrepository;
 
+import entities.Account;
 import entities.Company;
+import entities.Device;
+import entities.Event;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.persistence.Column;
+import javax.persistence.Id;
+import javax.persistence.Table;
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
 
 import org.h2.jdbcx.JdbcConnectionPool;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 public class RepositoryTest {
@@ -37,14 +63,58 @@ public class RepositoryTest {
             "('co011', 'Mirage Media Studios', 'Turin')," +
             "('co012', 'PyroTech Electronics', 'Venice');";
 
+    private static String createEventsTableQuery = "CREATE TABLE events (" +
+            "id BIGINT NOT NULL, " +
+            "type VARCHAR(16), " +
+            "priority INT, " +
+            "event_day DATE, " +
+            "created_at TIMESTAMP, " +
+            "reference BINARY(16), " +
+            "tags VARCHAR(255), " +
+            "PRIMARY KEY (id));";
+
+    private static String createDevicesTableQuery = "CREATE TABLE devices (" +
+            "id BINARY(16) NOT NULL, " +
+            "name VARCHAR(45), " +
+            "PRIMARY KEY (id));";
+
+    private static String createAccountsTableQuery = "CREATE TABLE accounts (" +
+            "id BIGINT NOT NULL, " +
+            "owner VARCHAR(45), " +
+            "version INT NOT NULL, " +
+            "PRIMARY KEY (id));";
+
+    private static String createSequencesTableQuery = "CREATE TABLE sequences (" +
+            "name VARCHAR(64) NOT NULL, " +
+            "next_value BIGINT NOT NULL, " +
+            "PRIMARY KEY (name));";
+
     private static DataSource dataSource;
 
+    @Table(name = "companies")
+    public static class ImmutableCompany {
+        @Id
+        private final String id;
+
+        @Column(name = "company_name")
+        private final String companyName;
+
+        public ImmutableCompany(String id, String companyName) {
+            this.id = id;
+            this.companyName = companyName;
+        }
+    }
+
     @BeforeAll
     public static void setUp() throws SQLException {
         dataSource = JdbcConnectionPool.create("jdbc:h2:mem:test;DB_CLOSE_DELAY=-1", "user", "pass");
         try (Connection conn = dataSource.getConnection()) {
             conn.createStatement().execute(createCompaniesTableQuery);
             conn.createStatement().execute(populateCompaniesTableQuery);
+            conn.createStatement().execute(createEventsTableQuery);
+            conn.createStatement().execute(createDevicesTableQuery);
+            conn.createStatement().execute(createSequencesTableQuery);
+            conn.createStatement().execute(createAccountsTableQuery);
         }
     }
 
@@ -319,4 +389,1249 @@ public class RepositoryTest {
             }
         }
     }
+
+    @Test
+    public void testSnapshot(@TempDir Path directory) throws SQLException, IOException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+
+                Repository<Company> repo = new Repository<>(Company.class);
+                Path path = directory.resolve("companies.snapshot");
+
+                long rows = repo.writeSnapshot(conn, path);
+                assertEquals(12, rows);
+
+                Snapshot<Company> snapshot = repo.openSnapshot(path);
+                assertEquals(12, snapshot.getRowCount());
+                assertEquals(12, snapshot.readAll().size());
+                assertTrue(snapshot.isCurrent(conn));
+
+                Company company = snapshot.readById("co008");
+                assertEquals("Prisma Design Co", company.getCompanyName());
+                assertEquals("Rome", company.getCity());
+                assertNull(snapshot.readById("co999"));
+
+                repo.insert(conn, new Company("co013", "New Codes", "Florence"));
+                assertFalse(snapshot.isCurrent(conn));
+
+                // A closed snapshot keeps its metadata but no longer reads rows
+                snapshot.close();
+                assertEquals(12, snapshot.getRowCount());
+                assertFalse(snapshot.isCurrent(conn));
+                assertThrows(IllegalStateException.class, () -> snapshot.get(0));
+                assertThrows(IllegalStateException.class, () -> snapshot.readById("co008"));
+
+                // A failed write leaves neither the snapshot nor its temporary file behind
+                Path occupied = Files.createDirectories(directory.resolve("occupied.snapshot"));
+                Files.createFile(occupied.resolve("entry"));
+                assertThrows(IOException.class, () -> repo.writeSnapshot(conn, occupied));
+                assertFalse(Files.exists(directory.resolve("occupied.snapshot.tmp")));
+
+                // Keys are matched through the column converter, e.g. UUIDs stored as BINARY(16)
+                Repository<Device> deviceRepo = new Repository<>(Device.class);
+                Device device = new Device("alpha");
+                deviceRepo.insert(conn, device);
+                deviceRepo.writeSnapshot(conn, directory.resolve("devices.snapshot"));
+                try (Snapshot<Device> devices = deviceRepo.openSnapshot(directory.resolve("devices.snapshot"))) {
+                    assertEquals("alpha", devices.readById(device.getId()).getName());
+                    assertNull(devices.readById(UUID.randomUUID()));
+                }
+
+                // Repositories overriding instantiateEntity build the entities from the snapshot rows
+                Repository<ImmutableCompany> customRepo = new Repository<>(ImmutableCompany.class) {
+                    @Override
+                    public ImmutableCompany instantiateEntity(java.sql.ResultSet resultSet) throws SQLException {
+                        return new ImmutableCompany(resultSet.getString("id"), resultSet.getString("company_name"));
+                    }
+
+                    @Override
+                    public void populateEntity(java.sql.ResultSet resultSet, ImmutableCompany obj) {
+                    }
+                };
+                customRepo.writeSnapshot(conn, directory.resolve("immutables.snapshot"));
+                try (Snapshot<ImmutableCompany> immutables = customRepo.openSnapshot(directory.resolve("immutables.snapshot"))) {
+                    assertEquals("Prisma Design Co", immutables.readById("co008").companyName);
+                    // The reused row is refilled for each entity
+                    List<ImmutableCompany> all = immutables.readAll();
+                    assertEquals(customRepo.read(conn).stream().map(c -> c.companyName).collect(java.util.stream.Collectors.toList()),
+                            all.stream().map(c -> c.companyName).collect(java.util.stream.Collectors.toList()));
+                }
+
+            } finally {
+                conn.rollback();
+            }
+        }
+    }
+
+    @Test
+    public void testReadWherePredicate() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+
+                Repository<Company> repo = new Repository<>(Company.class);
+
+                List<Company> results = repo.readWhere(conn, Predicate.eq("city", "Milan"));
+                assertEquals(3, results.size());
+
+                results = repo.readWhere(conn, Predicate.eq("city", "Milan").or(Predicate.in("city", Arrays.asList("Turin", "Venice"))), "company_name", 3L, 1L);
+                assertEquals(3, results.size());
+                assertEquals("BluePeak Logistics", results.get(0).getCompanyName());
+
+                results = repo.readWhere(conn, Predicate.like("companyName", "%Tech%"), new Repository.Pageable(0L, 5L, "companyName", "desc"));
+                assertEquals(2, results.size());
+                assertEquals("Veloxia Technologies", results.get(0).getCompanyName());
+
+                assertEquals("(company_name = ? AND city IN (?,?))",
+                        Predicate.and(Predicate.eq("companyName", "x"), Predicate.in("city", Arrays.asList("a", "b"))).toSql(repo::getFieldColumnName));
+
+                long total = repo.getTotalElementsWhere(conn, Predicate.and(Predicate.eq("city", "Genoa"), Predicate.ne("id", "co001")));
+                assertEquals(3, total);
+
+                // Predicates with the same shape share the compiled SQL; the cache evicts the least recently used shapes
+                assertEquals(Predicate.eq("city", "Rome").getShapeKey(), Predicate.eq("city", "Milan").getShapeKey());
+                assertFalse(Predicate.in("city", Arrays.asList("a")).getShapeKey().equals(Predicate.in("city", Arrays.asList("a", "b")).getShapeKey()));
+                Repository<Company> shapes = new Repository<>(Company.class);
+                List<Object> cities = new ArrayList<>();
+                for (int i = 0; i < 1100; i++) {
+                    cities.add("City " + i);
+                    shapes.getTotalElementsWhere(conn, Predicate.in("city", cities));
+                }
+                assertEquals(1024, shapes.getCompiledPredicateCount());
+                assertEquals(3, shapes.getTotalElementsWhere(conn, Predicate.eq("city", "Milan")));
+
+                int deleted = repo.deleteWhere(conn, Predicate.in("city", Arrays.asList("Rome", "Venice")));
+                assertEquals(3, deleted);
+                assertEquals(0, repo.readWhere(conn, Predicate.eq("city", "Rome")).size());
+
+            } finally {
+                conn.rollback();
+            }
+        }
+    }
+
+    @Test
+    public void testMetadata() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+
+                Repository<Company> repo = new Repository<>(Company.class);
+                Repository<Company> otherRepo = new Repository<>(Company.class);
+
+                assertSame(EntityDescriptor.of(Company.class), EntityDescriptor.of(Company.class));
+                assertEquals("companies", repo.getTableName());
+                assertEquals("id", repo.getPublicKeyColumnName());
+                assertEquals(0, repo.getPublicKeyColumnIndex());
+                assertEquals(Arrays.asList("id", "company_name", "city"), repo.getColumnNames());
+                assertEquals("companyName", repo.getColumnFieldName("company_name"));
+                assertNull(repo.getColumnFieldName("unknown"));
+                assertEquals(2, repo.getColumnIndexByName("city"));
+                assertEquals(-1, repo.getColumnIndexByName("unknown"));
+                assertEquals("city", repo.getColumnNameByIndex(2));
+
+                repo.bindFieldToSetter("city", (x, y) -> x.setCity(((String) y).toUpperCase()));
+                assertEquals("ROME", repo.readById(conn, "co008").getCity());
+                assertEquals("Rome", otherRepo.readById(conn, "co008").getCity());
+
+            } finally {
+                conn.rollback();
+            }
+        }
+    }
+
+    @Test
+    public void testUnitOfWork() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+
+                Repository<Company> repo = new Repository<>(Company.class);
+                Repository<Company> otherRepo = new Repository<>(Company.class);
+
+                Company existing = repo.readById(conn, "co001");
+                existing.setCity("Naples");
+
+                UnitOfWork unitOfWork = new UnitOfWork()
+                        .dependsOn(repo, otherRepo)
+                        .insert(repo, new Company("co013", "New Codes", "Florence"))
+                        .insert(otherRepo, Arrays.asList(new Company("co014", "Code Studio 14", "Pisa"), new Company("co015", "Code Studio 15", "Pisa")))
+                        .update(repo, existing)
+                        .delete(otherRepo, repo.readById(conn, "co012"));
+
+                int affectedRows = unitOfWork.flush(conn);
+                assertEquals(5, affectedRows);
+                assertTrue(unitOfWork.isEmpty());
+
+                assertEquals(14, repo.getTotalElements(conn));
+                assertEquals("Naples", repo.readById(conn, "co001").getCity());
+                assertNull(repo.readById(conn, "co012"));
+
+                // Deletes run first, so a key can be deleted and inserted again in the same flush
+                affectedRows = new UnitOfWork()
+                        .insert(repo, new Company("co002", "Replaced Company", "Bari"))
+                        .delete(repo, repo.readById(conn, "co002"))
+                        .flush(conn);
+                assertEquals(2, affectedRows);
+                assertEquals("Replaced Company", repo.readById(conn, "co002").getCompanyName());
+
+            } finally {
+                conn.rollback();
+            }
+        }
+    }
+
+    @Test
+    public void testAttachAssociations() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+
+                Repository<Company> repo = new Repository<>(Company.class);
+                List<Company> parents = repo.readBy(conn, "city", Arrays.asList("Milan", "Rome"));
+                parents.add(new Company("co099", "Missing Company", "Atlantis"));
+
+                Map<String, List<Company>> sameCity = new HashMap<>();
+                int read = repo.attachMany(conn, repo, parents, "city", "city", (parent, children) -> sameCity.put(parent.getId(), children));
+                assertEquals(5, read);
+                assertEquals(3, sameCity.get("co005").size());
+                assertEquals(2, sameCity.get("co008").size());
+                assertEquals(0, sameCity.get("co099").size());
+
+                Map<String, Company> self = new HashMap<>();
+                read = repo.attachOne(conn, repo, parents, "id", "id", (parent, child) -> self.put(parent.getId(), child));
+                assertEquals(5, read);
+                assertEquals("Prisma Design Co", self.get("co008").getCompanyName());
+                assertTrue(self.containsKey("co099"));
+                assertNull(self.get("co099"));
+
+            } finally {
+                conn.rollback();
+            }
+        }
+    }
+
+    @Test
+    public void testScan() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+
+                Repository<Company> repo = new Repository<>(Company.class);
+
+                Set<Company> instances = new HashSet<>();
+                Set<String> cities = new HashSet<>();
+                long rows = repo.scan(conn, company -> {
+                    instances.add(company);
+                    cities.add(company.getCity());
+                });
+                assertEquals(12, rows);
+                assertEquals(1, instances.size());
+                assertEquals(5, cities.size());
+
+                List<String> names = new ArrayList<>();
+                rows = repo.scanWhere(conn, Predicate.eq("city", "Genoa"), company -> names.add(company.getCompanyName()));
+                assertEquals(4, rows);
+                assertTrue(names.contains("EchoSafe Security"));
+
+                rows = repo.scanByQuery(conn, "SELECT * FROM companies WHERE city = ?;", company -> { }, "Turin");
+                assertEquals(2, rows);
+
+            } finally {
+                conn.rollback();
+            }
+        }
+    }
+
+    @Test
+    public void testInstantiateEntity() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+
+                Repository<Company> repo = new Repository<>(Company.class);
+                assertTrue(repo.instantiateEntity() != repo.instantiateEntity());
+
+                assertThrows(IllegalArgumentException.class, () -> new Repository<>(ImmutableCompany.class));
+
+                Repository<ImmutableCompany> customRepo = new Repository<>(ImmutableCompany.class) {
+                    @Override
+                    public ImmutableCompany instantiateEntity(java.sql.ResultSet resultSet) throws SQLException {
+                        return new ImmutableCompany(resultSet.getString("id"), resultSet.getString("company_name"));
+                    }
+
+                    @Override
+                    public void populateEntity(java.sql.ResultSet resultSet, ImmutableCompany obj) {
+                    }
+                };
+                ImmutableCompany company = customRepo.readById(conn, "co008");
+                assertEquals("Prisma Design Co", company.companyName);
+
+                // Entities without a no-arg constructor cannot be copied, so the cache is not used
+                QueryCache cache = new QueryCache(1024 * 1024);
+                customRepo.setQueryCache(cache);
+                try (Connection autoCommitConn = dataSource.getConnection()) {
+                    assertEquals("Prisma Design Co", customRepo.readById(autoCommitConn, "co008").companyName);
+                    assertEquals("Prisma Design Co", customRepo.readById(autoCommitConn, "co008").companyName);
+                }
+                assertEquals(0, cache.getResultCount());
+
+            } finally {
+                conn.rollback();
+            }
+        }
+    }
+
+    @Test
+    public void testTypeConverters() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+
+                Repository<Event> repo = new Repository<>(Event.class);
+                repo.bindColumnToConverter("tags", TypeConverters.json(
+                        text -> Arrays.asList(text.split(",")),
+                        (List<String> tags) -> String.join(",", tags)));
+
+                UUID reference = UUID.randomUUID();
+                Instant createdAt = Instant.parse("2024-05-01T10:15:30Z");
+                Event event = new Event(1L, Event.Type.UPDATED, Event.Priority.HIGH, LocalDate.of(2024, 5, 1), createdAt, reference, Arrays.asList("a", "b"));
+                repo.insert(conn, event);
+                repo.insert(conn, new Event(2L, null, null, null, null, null, null));
+
+                Event saved = repo.readById(conn, 1L);
+                assertEquals(Event.Type.UPDATED, saved.getType());
+                assertEquals(Event.Priority.HIGH, saved.getPriority());
+                assertEquals(LocalDate.of(2024, 5, 1), saved.getDay());
+                assertEquals(createdAt, saved.getCreatedAt());
+                assertEquals(reference, saved.getReference());
+                assertEquals(Arrays.asList("a", "b"), saved.getTags());
+
+                Event empty = repo.readById(conn, 2L);
+                assertNull(empty.getType());
+                assertNull(empty.getReference());
+
+                assertEquals(1, repo.readWhere(conn, Predicate.eq("reference", reference)).size());
+                assertEquals(1, repo.readWhere(conn, Predicate.eq("type", Event.Type.UPDATED)).size());
+
+                java.sql.ResultSet resultSet = conn.createStatement().executeQuery("SELECT priority, type FROM events WHERE id = 1");
+                assertTrue(resultSet.next());
+                assertEquals(Event.Priority.HIGH.ordinal(), resultSet.getInt("priority"));
+                assertEquals("UPDATED", resultSet.getString("type"));
+
+                // Setters bound with bindFieldToSetter receive the raw value, unless a converter is bound to the column
+                Repository<Event> rawRepo = new Repository<>(Event.class);
+                rawRepo.bindColumnToConverter("tags", TypeConverters.json(
+                        text -> Arrays.asList(text.split(",")),
+                        (List<String> tags) -> String.join(",", tags)));
+                List<Object> received = new ArrayList<>();
+                rawRepo.bindFieldToSetter("priority", (entity, value) -> received.add(value));
+                rawRepo.readById(conn, 1L);
+                assertEquals(Event.Priority.HIGH.ordinal(), received.get(0));
+                rawRepo.bindColumnToConverter("priority", TypeConverters.enumByOrdinal(Event.Priority.class));
+                rawRepo.readById(conn, 1L);
+                assertEquals(Event.Priority.HIGH, received.get(1));
+
+                // Enum values are resolved by name or ordinal, and unknown ones name the enum type
+                TypeConverter<Event.Priority> priorities = TypeConverters.enumByOrdinal(Event.Priority.class);
+                assertEquals(Event.Priority.HIGH, priorities.convert("HIGH"));
+                assertEquals(Event.Priority.LOW, priorities.convert(Event.Priority.LOW.ordinal()));
+                IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> priorities.convert(99));
+                assertTrue(e.getMessage().contains(Event.Priority.class.getName()) && e.getMessage().contains("99"));
+                assertThrows(IllegalArgumentException.class, () -> TypeConverters.enumByName(Event.Type.class).convert("UNKNOWN"));
+                conn.createStatement().execute("UPDATE events SET priority = 42 WHERE id = 1");
+                assertThrows(IllegalArgumentException.class, () -> repo.readById(conn, 1L));
+
+            } finally {
+                conn.rollback();
+            }
+        }
+    }
+
+    @Test
+    public void testUuidKeys() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+
+                // UUIDs are bound with setObject by default; BINARY(16) storage is opt-in
+                assertSame(TypeConverters.UUID_OBJECT, TypeConverters.find(UUID.class));
+                Repository<Device> repo = new Repository<>(Device.class);
+                repo.registerConverter(UUID.class, TypeConverters.UUID_BINARY);
+                List<Device> devices = Arrays.asList(new Device("alpha"), new Device("beta"), new Device("gamma"));
+                repo.insert(conn, devices);
+
+                for (int i = 0; i < devices.size(); i++) {
+                    assertEquals(7, devices.get(i).getId().version());
+                    if (i > 0) assertTrue(devices.get(i - 1).getId().compareTo(devices.get(i).getId()) < 0);
+                }
+
+                UUID id = devices.get(0).getId();
+                assertEquals("alpha", repo.readById(conn, id).getName());
+                assertEquals("alpha", new Repository<>(Device.class).readById(conn, id).getName());
+                assertEquals("alpha", repo.readById(conn, id.toString()).getName());
+                assertEquals(id, Uuids.fromBytes(Uuids.toBytes(id)));
+
+                List<Object> ids = Arrays.asList(devices.get(1).getId(), devices.get(2).getId().toString());
+                assertEquals(2, repo.readBy(conn, "id", ids).size());
+
+                devices.get(1).setName("delta");
+                repo.update(conn, devices.get(1));
+                assertEquals("delta", repo.readById(conn, devices.get(1).getId()).getName());
+
+                repo.deleteByIds(conn, ids);
+                assertEquals(1, repo.getTotalElements(conn));
+
+            } finally {
+                conn.rollback();
+            }
+        }
+    }
+
+    @Test
+    public void testIdGenerators() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+
+                Repository<Event> repo = new Repository<>(Event.class);
+                repo.setIdGenerator(new HiLoIdGenerator(dataSource, "sequences", "events", 2));
+                List<Event> events = new ArrayList<>();
+                for (int i = 0; i < 5; i++) {
+                    events.add(new Event(null, Event.Type.CREATED, null, null, null, null, null));
+                }
+                events.add(new Event(100L, Event.Type.CREATED, null, null, null, null, null));
+                repo.insert(conn, events);
+
+                Set<Long> ids = new HashSet<>();
+                for (Event event : events) ids.add(event.getId());
+                assertEquals(6, ids.size());
+                assertTrue(ids.contains(100L));
+                assertEquals(6, repo.getTotalElements(conn));
+
+                SnowflakeIdGenerator snowflake = new SnowflakeIdGenerator(7);
+                repo.setIdGenerator(snowflake);
+                Event event = new Event(null, Event.Type.UPDATED, null, null, null, null, null);
+                repo.insert(conn, event);
+                assertEquals(7, SnowflakeIdGenerator.workerIdOf(event.getId()));
+                assertTrue(Math.abs(snowflake.timestampOf(event.getId()) - System.currentTimeMillis()) < 60000);
+                assertEquals(Event.Type.UPDATED, repo.readById(conn, event.getId()).getType());
+
+                long previous = snowflake.nextLong();
+                for (int i = 0; i < 10000; i++) {
+                    long next = snowflake.nextLong();
+                    assertTrue(next > previous);
+                    previous = next;
+                }
+
+                assertThrows(IllegalArgumentException.class, () -> new SnowflakeIdGenerator(1024));
+
+            } finally {
+                conn.rollback();
+            }
+        }
+    }
+
+    @Test
+    public void testParallelWriter() throws SQLException {
+        Repository<Company> repo = new Repository<>(Company.class);
+        ParallelWriter<Company> writer = new ParallelWriter<>(repo, dataSource, 4, 50);
+        List<Company> companies = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            companies.add(new Company(String.format("p%04d", i), "Parallel " + i, "Bari"));
+        }
+        try {
+            assertEquals(500, writer.insert(companies));
+            for (Company company : companies) company.setCity("Lecce");
+            assertEquals(500, writer.update(companies));
+            try (Connection conn = dataSource.getConnection()) {
+                assertEquals(500, repo.getTotalElementsBy(conn, "city", "Lecce"));
+            }
+
+            List<Company> duplicates = Arrays.asList(new Company("p9999", "New", "Bari"), companies.get(0));
+            assertThrows(SQLException.class, () -> writer.insert(duplicates));
+        } finally {
+            // The writer reuses its own pool until closed; an executor set by the caller is left running
+            java.util.concurrent.ExecutorService shared = java.util.concurrent.Executors.newFixedThreadPool(4);
+            try {
+                writer.setExecutor(shared);
+                assertEquals(500, writer.delete(companies));
+                writer.close();
+                assertFalse(shared.isShutdown());
+            } finally {
+                shared.shutdown();
+            }
+            try (Connection conn = dataSource.getConnection()) {
+                repo.deleteById(conn, "p9999");
+                assertEquals(12, repo.getTotalElements(conn));
+            }
+        }
+    }
+
+    @Test
+    public void testRetryExecutor() throws SQLException {
+        assertTrue(RetryExecutor.isTransient(new SQLException("Deadlock", "40001")));
+        assertTrue(RetryExecutor.isTransient(new SQLException("Lock wait timeout exceeded", "HY000", 1205)));
+        assertTrue(RetryExecutor.isTransient(new SQLException("Batch failed", "HY000", new SQLException("Deadlock", "40001", 1213))));
+        assertFalse(RetryExecutor.isTransient(new SQLException("Duplicate entry", "23000", 1062)));
+
+        try (Connection conn = dataSource.getConnection()) {
+            Repository<Company> repo = new Repository<>(Company.class);
+            RetryExecutor executor = new RetryExecutor(3, 1, 5);
+
+            int[] calls = new int[1];
+            long total = executor.execute(conn, c -> {
+                if (++calls[0] < 3) throw new SQLException("Deadlock", "40001");
+                return repo.getTotalElements(c);
+            });
+            assertEquals(12, total);
+            assertEquals(2, executor.getRetryCount());
+            assertTrue(conn.getAutoCommit());
+
+            assertThrows(SQLException.class, () -> executor.execute(conn, c -> {
+                throw new SQLException("Duplicate entry", "23000", 1062);
+            }));
+            assertEquals(2, executor.getRetryCount());
+            assertEquals(1, executor.getFailureCount());
+
+            // Batches of more than 2 entities always deadlock: they are split until they succeed
+            executor.resetCounters();
+            List<Integer> entities = Arrays.asList(1, 2, 3, 4, 5, 6, 7);
+            int[] counts = executor.executeBatch(conn, entities, (c, batch) -> {
+                if (batch.size() > 2) throw new SQLException("Deadlock", "40001");
+                return batch.stream().mapToInt(x -> x).toArray();
+            });
+            assertEquals(Arrays.toString(new int[]{1, 2, 3, 4, 5, 6, 7}), Arrays.toString(counts));
+            assertEquals(3, executor.getSplitCount());
+            assertEquals(0, executor.getFailureCount());
+        }
+    }
+
+    @Test
+    public void testReplicaRouter() throws SQLException {
+        JdbcConnectionPool replica = JdbcConnectionPool.create("jdbc:h2:mem:replica;DB_CLOSE_DELAY=-1", "user", "pass");
+        JdbcConnectionPool missing = JdbcConnectionPool.create("jdbc:h2:mem:missing;IFEXISTS=TRUE", "user", "pass");
+        try {
+            try (Connection conn = replica.getConnection()) {
+                conn.createStatement().execute(createCompaniesTableQuery);
+                conn.createStatement().execute("INSERT INTO companies (id, company_name, city) VALUES ('co001', 'Replica', 'Genoa')");
+            }
+
+            Repository<Company> repo = new Repository<>(Company.class);
+            ReplicaRouter router = new ReplicaRouter(dataSource, missing, replica);
+
+            // The missing replica is skipped, the other one serves the reads
+            for (int i = 0; i < 3; i++) {
+                assertEquals(1, router.read(repo::getTotalElements));
+            }
+            assertFalse(router.isHealthy(0));
+            assertTrue(router.isHealthy(1));
+
+            router.write(c -> repo.update(c, repo.readById(c, "co001")));
+            assertTrue(router.isPinnedToPrimary());
+            assertEquals(12, router.read(repo::getTotalElements));
+
+            router.setReadYourWritesMillis(0);
+            assertEquals(1, router.read(repo::getTotalElements));
+
+            assertThrows(SQLException.class, () -> router.read(c -> repo.readWhere(c, "unknown_column = 1")));
+            assertTrue(router.isHealthy(1));
+        } finally {
+            replica.dispose();
+            missing.dispose();
+        }
+    }
+
+    @Test
+    public void testShardedRepository() throws SQLException {
+        JdbcConnectionPool otherDataSource = JdbcConnectionPool.create("jdbc:h2:mem:shard;DB_CLOSE_DELAY=-1", "user", "pass");
+        try {
+            try (Connection conn = dataSource.getConnection()) {
+                conn.createStatement().execute(createCompaniesTableQuery.replace("companies", "companies_0"));
+            }
+            try (Connection conn = otherDataSource.getConnection()) {
+                conn.createStatement().execute(createCompaniesTableQuery.replace("companies", "companies_1"));
+            }
+            ShardedRepository<Company> repo = new ShardedRepository<>(Arrays.asList(
+                    new ShardedRepository.Shard<>(dataSource, new Repository<>(Company.class, "companies_0")),
+                    new ShardedRepository.Shard<>(otherDataSource, new Repository<>(Company.class, "companies_1"))));
+
+            List<Company> companies = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                companies.add(new Company(String.format("s%04d", i), "Sharded " + (char) ('A' + (i * 7) % 20), i % 2 == 0 ? "Rome" : "Milan"));
+            }
+            int[] counts = repo.insert(companies);
+            assertEquals(20, Arrays.stream(counts).sum());
+            assertEquals(20, repo.getTotalElements());
+            assertEquals(10, repo.getTotalElementsWhere(Predicate.eq("city", "Rome")));
+            try (Connection conn = dataSource.getConnection()) {
+                long firstShard = companies.stream().filter(c -> repo.shardOf(c.getId()) == 0).count();
+                assertEquals(firstShard, repo.getShard(0).getRepository().getTotalElements(conn));
+                assertTrue(firstShard > 0 && firstShard < 20);
+            }
+
+            assertEquals("Sharded H", repo.readById("s0001").getCompanyName());
+            assertNull(repo.readById("s9999"));
+
+            List<Company> page = repo.readWhere(Predicate.eq("city", "Rome"), "company_name DESC", 3L, 2L);
+            List<String> expected = companies.stream().filter(c -> c.getCity().equals("Rome"))
+                    .map(Company::getCompanyName).sorted(java.util.Comparator.reverseOrder()).skip(2).limit(3)
+                    .collect(java.util.stream.Collectors.toList());
+            assertEquals(expected, page.stream().map(Company::getCompanyName).collect(java.util.stream.Collectors.toList()));
+            assertEquals(expected, repo.readWhere(Predicate.eq("city", "Rome"), new Repository.Pageable(0L, 5L, "companyName", "desc"))
+                    .stream().skip(2).map(Company::getCompanyName).collect(java.util.stream.Collectors.toList()));
+
+            companies.get(3).setCity("Naples");
+            assertEquals(1, repo.update(companies.get(3)));
+            assertEquals(1, repo.readBy("city", "Naples").size());
+
+            repo.deleteById("s0003");
+            assertNull(repo.readById("s0003"));
+
+            // Null public keys are assigned by the IdGenerator of the first shard before routing
+            java.util.concurrent.atomic.AtomicInteger sequence = new java.util.concurrent.atomic.AtomicInteger(100);
+            repo.getShard(0).getRepository().setIdGenerator(c -> "g" + sequence.incrementAndGet());
+            List<Company> generated = Arrays.asList(new Company(null, "Generated A", "Bari"), new Company(null, "Generated B", "Bari"));
+            assertEquals(2, Arrays.stream(repo.insert(generated)).sum());
+            assertEquals("g101", generated.get(0).getId());
+            assertEquals("Generated B", repo.readById("g102").getCompanyName());
+            assertEquals(2, Arrays.stream(repo.delete(generated)).sum());
+            assertEquals(19, Arrays.stream(repo.delete(companies)).sum());
+            assertEquals(0, repo.getTotalElements());
+            repo.close();
+
+            // A shared executor replaces the owned pool and is left running on close
+            java.util.concurrent.ExecutorService shared = java.util.concurrent.Executors.newFixedThreadPool(2);
+            try {
+                repo.setExecutor(shared);
+                assertEquals(0, repo.getTotalElements());
+                repo.close();
+                assertFalse(shared.isShutdown());
+            } finally {
+                shared.shutdown();
+            }
+        } finally {
+            try (Connection conn = dataSource.getConnection()) {
+                conn.createStatement().execute("DROP TABLE IF EXISTS companies_0");
+            }
+            otherDataSource.dispose();
+        }
+    }
+
+    @Test
+    public void testConnectionPool() throws SQLException, InterruptedException {
+        org.h2.jdbcx.JdbcDataSource h2 = new org.h2.jdbcx.JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:test;DB_CLOSE_DELAY=-1");
+        h2.setUser("user");
+        h2.setPassword("pass");
+        List<Throwable> leaks = new java.util.concurrent.CopyOnWriteArrayList<>();
+        Repository<Company> repo = new Repository<>(Company.class);
+
+        try (ConnectionPool pool = new ConnectionPool(h2).setMaxSize(2).setConnectionTimeoutMillis(50)
+                .setLeakDetectionMillis(50).setLeakReporter(leaks::add)) {
+
+            for (int i = 0; i < 3; i++) {
+                try (Connection conn = pool.getConnection()) {
+                    assertEquals("Veloxia Technologies", repo.readById(conn, "co001").getCompanyName());
+                }
+            }
+            assertEquals(1, pool.getTotalConnections());
+            assertEquals(1, pool.getIdleConnections());
+            assertEquals(3, pool.getBorrowCount());
+            assertEquals(1, pool.getStatementCacheMisses());
+            assertEquals(2, pool.getStatementCacheHits());
+
+            // Pending changes are rolled back when the connection is returned
+            try (Connection conn = pool.getConnection()) {
+                conn.setAutoCommit(false);
+                repo.insert(conn, new Company("co099", "Pooled", "Bari"));
+            }
+            try (Connection conn = pool.getConnection()) {
+                assertTrue(conn.getAutoCommit());
+                assertNull(repo.readById(conn, "co099"));
+            }
+
+            Connection first = pool.getConnection();
+            Connection second = pool.getConnection();
+            assertEquals(2, pool.getActiveConnections());
+            assertThrows(java.sql.SQLTransientConnectionException.class, pool::getConnection);
+            assertEquals(1, pool.getTimeoutCount());
+
+            Thread.sleep(200);
+            assertTrue(pool.getLeakCount() >= 2);
+            assertTrue(Arrays.stream(leaks.get(0).getStackTrace()).anyMatch(e -> e.getMethodName().equals("testConnectionPool")));
+
+            first.close();
+            second.close();
+            assertTrue(first.isClosed());
+            assertThrows(SQLException.class, () -> first.prepareStatement("SELECT 1"));
+            assertEquals(0, pool.getActiveConnections());
+        }
+    }
+
+    @Test
+    public void testQueryCache() throws SQLException {
+        try (Connection conn = dataSource.getConnection(); Connection tx = dataSource.getConnection()) {
+            tx.setAutoCommit(false);
+            QueryCache cache = new QueryCache(1024 * 1024);
+            Repository<Company> repo = new Repository<>(Company.class);
+            Repository<Company> writer = new Repository<>(Company.class);
+            repo.setQueryCache(cache);
+            try {
+
+                List<Company> first = repo.readBy(conn, "city", "Rome");
+                List<Company> second = repo.readBy(conn, "city", "Rome");
+                assertEquals(2, second.size());
+                assertEquals(1, cache.getMissCount());
+                assertEquals(1, cache.getHitCount());
+                assertFalse(first.get(0) == second.get(0));
+
+                second.get(0).setCity("Changed");
+                assertEquals("Rome", repo.readBy(conn, "city", "Rome").get(0).getCity());
+                assertEquals(2, cache.getHitCount());
+
+                // Same SQL and values as readBy(conn, "city", "Rome")
+                assertEquals(2, repo.readWhere(conn, Predicate.eq("city", "Rome")).size());
+                assertEquals(3, cache.getHitCount());
+                repo.readWhere(conn, Predicate.in("city", Arrays.asList("Rome", "Turin")));
+                repo.readWhere(conn, Predicate.in("city", Arrays.asList("Rome", "Turin")));
+                assertEquals(4, cache.getHitCount());
+
+                // Reads inside a transaction bypass the cache, since they see the uncommitted rows
+                writer.insert(tx, new Company("co013", "Cached", "Rome"));
+                assertEquals(3, repo.readBy(tx, "city", "Rome").size());
+                assertEquals(4, cache.getHitCount());
+                assertEquals(2, cache.getMissCount());
+
+                // A result read by another connection before the commit is not served after it
+                assertEquals(2, repo.readBy(conn, "city", "Rome").size());
+                tx.commit();
+                QueryCache.endTransaction(tx);
+                assertEquals(3, repo.readBy(conn, "city", "Rome").size());
+                assertEquals(3, repo.readWhere(conn, Predicate.eq("city", "Rome")).size());
+
+                // Rolled back rows are never cached
+                writer.insert(tx, new Company("co014", "Rolled back", "Rome"));
+                assertEquals(4, repo.readBy(tx, "city", "Rome").size());
+                tx.rollback();
+                QueryCache.endTransaction(tx);
+                assertEquals(3, repo.readBy(conn, "city", "Rome").size());
+
+                QueryCache small = new QueryCache(1000);
+                repo.setQueryCache(small);
+                for (String city : Arrays.asList("Genoa", "Milan", "Rome", "Turin", "Venice")) repo.readBy(conn, "city", city);
+                assertTrue(small.getEstimatedBytes() <= 1000);
+                assertTrue(small.getResultCount() < 5);
+
+            } finally {
+                tx.rollback();
+                tx.setAutoCommit(true);
+                writer.deleteById(conn, "co013");
+            }
+        }
+    }
+
+    @Test
+    public void testReadChangedSince() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+
+                Repository<Event> repo = new Repository<>(Event.class);
+                repo.setChangeTrackingField("createdAt");
+                assertThrows(IllegalArgumentException.class, () -> repo.setChangeTrackingField("unknown"));
+
+                Instant base = Instant.parse("2024-05-01T10:00:00Z");
+                List<Event> events = new ArrayList<>();
+                for (long i = 1; i <= 7; i++) {
+                    // Several events share the same change value
+                    events.add(new Event(i, Event.Type.CREATED, null, null, base.plusSeconds(i / 3), null, null));
+                }
+                repo.insert(conn, events);
+
+                List<Long> read = new ArrayList<>();
+                ChangeBatch.Watermark watermark = repo.readAllChangedSince(conn, ChangeBatch.Watermark.initial(), 3,
+                        batch -> batch.forEach(e -> read.add(e.getId())));
+                assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L), read);
+                assertEquals(base.plusSeconds(2), watermark.getValue());
+                assertEquals(7L, watermark.getId());
+
+                ChangeBatch<Event> batch = repo.readChangedSince(conn, watermark, 3);
+                assertTrue(batch.getEntities().isEmpty());
+                assertFalse(batch.hasMore());
+                assertSame(watermark, batch.getWatermark());
+
+                repo.insert(conn, new Event(8L, Event.Type.UPDATED, null, null, base.plusSeconds(60), null, null));
+                batch = repo.readChangedSince(conn, watermark, 3);
+                assertEquals(1, batch.getEntities().size());
+                assertEquals(8L, batch.getEntities().get(0).getId());
+
+                batch = repo.readChangedSince(conn, ChangeBatch.Watermark.after(base.plusSeconds(1)), 10);
+                assertEquals(3, batch.getEntities().size());
+
+            } finally {
+                conn.rollback();
+            }
+        }
+    }
+
+    @Test
+    public void testPublisher() throws Exception {
+        Repository<Company> repo = new Repository<>(Company.class);
+        try (ConnectionPool pool = new ConnectionPool(dataSource)) {
+
+            // Requests two rows at a time
+            List<String> ids = new java.util.concurrent.CopyOnWriteArrayList<>();
+            java.util.concurrent.CompletableFuture<Void> completed = new java.util.concurrent.CompletableFuture<>();
+            repo.publishWhere(pool, Predicate.eq("city", "Genoa"), "id").subscribe(new java.util.concurrent.Flow.Subscriber<Company>() {
+                private java.util.concurrent.Flow.Subscription subscription;
+                private int received;
+                public void onSubscribe(java.util.concurrent.Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(2);
+                }
+                public void onNext(Company item) {
+                    ids.add(item.getId());
+                    if (++received % 2 == 0) subscription.request(2);
+                }
+                public void onError(Throwable throwable) {
+                    completed.completeExceptionally(throwable);
+                }
+                public void onComplete() {
+                    completed.complete(null);
+                }
+            });
+            completed.get(10, java.util.concurrent.TimeUnit.SECONDS);
+            assertEquals(Arrays.asList("co001", "co002", "co003", "co004"), ids);
+
+            // Cancels after three rows
+            List<String> received = new java.util.concurrent.CopyOnWriteArrayList<>();
+            java.util.concurrent.CountDownLatch cancelled = new java.util.concurrent.CountDownLatch(1);
+            repo.publish(pool).subscribe(new java.util.concurrent.Flow.Subscriber<Company>() {
+                private java.util.concurrent.Flow.Subscription subscription;
+                public void onSubscribe(java.util.concurrent.Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(Long.MAX_VALUE);
+                }
+                public void onNext(Company item) {
+                    received.add(item.getId());
+                    if (received.size() == 3) {
+                        subscription.cancel();
+                        cancelled.countDown();
+                    }
+                }
+                public void onError(Throwable throwable) {
+                }
+                public void onComplete() {
+                    received.add("completed");
+                }
+            });
+            assertTrue(cancelled.await(10, java.util.concurrent.TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (pool.getActiveConnections() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertEquals(0, pool.getActiveConnections());
+            assertEquals(3, received.size());
+        }
+    }
+
+    @Test
+    public void testFetchConfig() throws SQLException {
+        Repository<Company> repo = new Repository<>(Company.class);
+        String query = "SELECT * FROM companies";
+        List<Integer> fetchSizes = new ArrayList<>();
+        BiConsumer<ResultSet, Company> recorder = (rs, company) -> {
+            try {
+                fetchSizes.add(rs.getStatement().getFetchSize());
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        try (Connection conn = dataSource.getConnection()) {
+            int count = repo.read(conn).size();
+
+            repo.setFetchConfig(FetchConfig.of(50));
+            assertEquals(count, repo.readByQuery(conn, query, recorder).size());
+            assertEquals(50, fetchSizes.get(0));
+
+            // H2 rejects Integer.MIN_VALUE, so streaming falls back to fixed batches
+            fetchSizes.clear();
+            List<Company> streamed = repo.withFetchConfig(conn, FetchConfig.streaming(), c -> repo.readByQuery(c, query, recorder));
+            assertEquals(count, streamed.size());
+            assertEquals(FetchConfig.STREAMING_FALLBACK_SIZE, fetchSizes.get(0));
+
+            // The per call configuration ends with the call
+            fetchSizes.clear();
+            repo.readByQuery(conn, query, recorder);
+            assertEquals(50, fetchSizes.get(0));
+
+            FetchConfig adaptive = FetchConfig.adaptive(1000);
+            assertEquals(FetchConfig.INITIAL_ADAPTIVE_SIZE, adaptive.getFetchSize());
+            repo.setFetchConfig(adaptive);
+            assertEquals(count, repo.scan(conn, company -> {}));
+            assertTrue(adaptive.getAverageRowBytes() > 0);
+            int expected = (int) Math.max(FetchConfig.MIN_ADAPTIVE_SIZE, Math.min(FetchConfig.MAX_ADAPTIVE_SIZE, 1000 / adaptive.getAverageRowBytes()));
+            assertEquals(expected, adaptive.getFetchSize());
+            fetchSizes.clear();
+            repo.readByQuery(conn, query, recorder);
+            assertEquals(expected, fetchSizes.get(0));
+
+            assertThrows(IllegalArgumentException.class, () -> FetchConfig.of(0));
+
+            // DEFAULT resets the size left on a reused statement
+            try (java.sql.PreparedStatement statement = conn.prepareStatement(query)) {
+                int defaultSize = statement.getFetchSize();
+                FetchConfig.of(50).apply(statement);
+                FetchConfig.DEFAULT.apply(statement);
+                assertEquals(defaultSize, statement.getFetchSize());
+            }
+        }
+    }
+
+    @Test
+    public void testAggregate() throws SQLException {
+        Repository<Company> companyRepo = new Repository<>(Company.class);
+        Repository<Event> eventRepo = new Repository<>(Event.class);
+        try (Connection conn = dataSource.getConnection()) {
+
+            Map<String, Long> companiesByCity = new HashMap<>();
+            for (AggregateRow row : companyRepo.aggregate(conn, new Aggregation().groupBy("city").count("companies").max("id", "lastId"))) {
+                companiesByCity.put(row.get("city", String.class), row.getLong("companies"));
+                if (row.get("city").equals("Milan")) assertEquals("co007", row.get("lastId"));
+            }
+            assertEquals(5, companiesByCity.size());
+            assertEquals(4L, companiesByCity.get("Genoa"));
+            assertEquals(1L, companiesByCity.get("Venice"));
+
+            List<AggregateRow> rows = companyRepo.aggregateWhere(conn, Predicate.in("city", Arrays.asList("Rome", "Turin")),
+                    new Aggregation().count("companies").countDistinct("city", "cities").min("companyName", "first"));
+            assertEquals(1, rows.size());
+            assertEquals(4L, rows.get(0).getLong("companies"));
+            assertEquals(2L, rows.get(0).getLong("cities"));
+            assertEquals("Celestia Entertainment", rows.get(0).get("first"));
+
+            assertThrows(IllegalArgumentException.class, () -> new Aggregation().count("x").sum("id", "x"));
+            assertThrows(IllegalStateException.class, () -> companyRepo.aggregate(conn, new Aggregation().groupBy("city")));
+            assertThrows(IllegalArgumentException.class, () -> companyRepo.aggregate(conn, new Aggregation().sum("unknown", "x")));
+
+            conn.setAutoCommit(false);
+            try {
+                Instant base = Instant.parse("2024-05-01T10:00:00Z");
+                for (long i = 1; i <= 6; i++) {
+                    eventRepo.insert(conn, new Event(i, i % 2 == 0 ? Event.Type.CREATED : Event.Type.UPDATED, null, null, base.plusSeconds(i), null, null));
+                }
+                rows = eventRepo.aggregate(conn, new Aggregation().groupBy("type").sum("id", "sum").avg("id", "avg").min("createdAt", "first"));
+                assertEquals(2, rows.size());
+                for (AggregateRow row : rows) {
+                    // The grouping values and the extremes are read with the field types
+                    Event.Type type = row.get("type", Event.Type.class);
+                    assertEquals(type == Event.Type.CREATED ? 12L : 9L, row.getLong("sum"));
+                    assertEquals(type == Event.Type.CREATED ? 4.0 : 3.0, row.getDouble("avg"), 0.0001);
+                    assertEquals(base.plusSeconds(type == Event.Type.CREATED ? 2 : 1), row.get("first", Instant.class));
+                }
+
+                rows = eventRepo.aggregateWhere(conn, Predicate.gt("id", 100L), new Aggregation().count("events").sum("id", "sum"));
+                assertEquals(0L, rows.get(0).getLong("events"));
+                assertNull(rows.get(0).get("sum"));
+            } finally {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Test
+    public void testExists() throws SQLException {
+        Repository<Company> repo = new Repository<>(Company.class);
+        Repository<Device> deviceRepo = new Repository<>(Device.class);
+        try (Connection conn = dataSource.getConnection()) {
+            assertTrue(repo.existsById(conn, "co001"));
+            assertFalse(repo.existsById(conn, "co999"));
+            assertTrue(repo.existsBy(conn, "city", "Turin"));
+            assertFalse(repo.existsBy(conn, "city", "Naples"));
+
+            Set<Object> existing = repo.existingIds(conn, Arrays.asList("co999", "co003", "co001", "co003", null));
+            assertEquals(Arrays.asList("co003", "co001"), new ArrayList<>(existing));
+            assertTrue(repo.existingIds(conn, new ArrayList<>()).isEmpty());
+
+            // More ids than a single IN chunk
+            List<Object> ids = new ArrayList<>();
+            for (int i = 0; i < 2500; i++) ids.add(String.format("x%04d", i));
+            ids.add("co012");
+            List<java.sql.Statement> statements = new ArrayList<>();
+            assertEquals(Set.of("co012"), repo.existingIds(recordingConnection(conn, statements), ids));
+            assertTrue(repo.existsBy(recordingConnection(conn, statements), "city", "Turin"));
+            assertAllClosed(statements);
+
+            // Ids given as strings are converted to the UUID key type
+            conn.setAutoCommit(false);
+            try {
+                Device device = new Device();
+                device.setName("exists");
+                deviceRepo.insert(conn, device);
+                String id = device.getId().toString();
+                assertTrue(deviceRepo.existsById(conn, id));
+                assertEquals(Set.of(id), deviceRepo.existingIds(conn, Arrays.asList(id, UUID.randomUUID())));
+            } finally {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Test
+    public void testReadByIds() throws SQLException {
+        Repository<Company> repo = new Repository<>(Company.class);
+        try (Connection conn = dataSource.getConnection()) {
+            Map<Object, Company> companies = repo.readByIds(conn, Arrays.asList("co005", "co001", "co005", "co999"));
+            assertEquals(2, companies.size());
+            assertEquals("Vortex Gaming", companies.get("co005").getCompanyName());
+            assertEquals("co001", companies.get("co001").getId());
+
+            List<Object> missing = new ArrayList<>();
+            List<Object> ids = new ArrayList<>();
+            for (int i = 0; i < 1500; i++) ids.add(String.format("x%04d", i));
+            ids.addAll(Arrays.asList("co012", "co002", "co007", null, "co002"));
+            companies = repo.readByIds(conn, ids, true, missing);
+            assertEquals(Arrays.asList("co012", "co002", "co007"), new ArrayList<>(companies.keySet()));
+            assertEquals(1500, missing.size());
+            assertEquals("x0000", missing.get(0));
+
+            Map<Object, Company> empty = repo.readByIds(conn, new ArrayList<>());
+            assertTrue(empty.isEmpty());
+        }
+    }
+
+    @Test
+    public void testPurge() throws SQLException {
+        Repository<Event> repo = new Repository<>(Event.class);
+        try (Connection conn = dataSource.getConnection()) {
+            List<Event> events = new ArrayList<>();
+            for (long i = 1001; i <= 1025; i++) events.add(new Event(i, Event.Type.CREATED, null, null, null, null, null));
+            repo.insert(conn, events);
+
+            List<Long> progress = new ArrayList<>();
+            List<java.sql.Statement> statements = new ArrayList<>();
+            assertEquals(20, repo.purgeWhere(recordingConnection(conn, statements), Predicate.gt("id", 1005L), 10, 1, progress::add));
+            assertEquals(Arrays.asList(10L, 20L, 20L), progress);
+            assertAllClosed(statements);
+            assertEquals(5, repo.getTotalElements(conn));
+
+            // Without auto-commit, every chunk is committed
+            conn.setAutoCommit(false);
+            try {
+                assertEquals(5, repo.purgeAll(conn, 2, 0, null));
+                conn.rollback();
+                assertEquals(0, repo.getTotalElements(conn));
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            assertThrows(IllegalArgumentException.class, () -> repo.purgeWhere(conn, Predicate.gt("id", 0L), 0));
+        }
+    }
+
+    @Test
+    public void testUpdateWhere() throws SQLException {
+        Repository<Event> repo = new Repository<>(Event.class);
+        try (Connection conn = dataSource.getConnection()) {
+            List<Event> events = new ArrayList<>();
+            for (long i = 2001; i <= 2012; i++) events.add(new Event(i, Event.Type.CREATED, null, null, null, null, null));
+            repo.insert(conn, events);
+            try {
+                Map<String, Object> assignments = new java.util.LinkedHashMap<>();
+                assignments.put("type", Event.Type.UPDATED);
+                assignments.put("priority", Event.Priority.HIGH);
+                assertEquals(4, repo.updateWhere(conn, assignments, Predicate.between("id", 2001L, 2004L)));
+                Event updated = repo.readById(conn, 2003L);
+                assertEquals(Event.Type.UPDATED, updated.getType());
+                assertEquals(Event.Priority.HIGH, updated.getPriority());
+                assertEquals(Event.Type.CREATED, repo.readById(conn, 2005L).getType());
+
+                // The chunks are bounded by key ranges, so rows leaving the predicate do not shift them
+                List<java.sql.Statement> statements = new ArrayList<>();
+                assertEquals(8, repo.updateWhere(recordingConnection(conn, statements), Map.of("type", Event.Type.UPDATED), Predicate.eq("type", Event.Type.CREATED), 3));
+                assertAllClosed(statements);
+                assertEquals(12, repo.getTotalElementsWhere(conn, Predicate.eq("type", Event.Type.UPDATED)));
+
+                assertThrows(IllegalArgumentException.class, () -> repo.updateWhere(conn, Map.of(), Predicate.gt("id", 0L)));
+                assertThrows(IllegalArgumentException.class, () -> repo.updateWhere(conn, Map.of("id", 1L), Predicate.gt("id", 0L), 10));
+            } finally {
+                repo.purgeAll(conn, 100, 0, null);
+            }
+        }
+    }
+
+    @Test
+    public void testOptimisticLocking() throws SQLException {
+        Repository<Account> repo = new Repository<>(Account.class);
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                List<Account> accounts = Arrays.asList(new Account(1L, "alice"), new Account(2L, "bob"), new Account(3L, "carol"));
+                repo.insert(conn, accounts);
+                assertEquals(1, accounts.get(0).getVersion());
+
+                accounts.get(0).setOwner("alice2");
+                repo.update(conn, accounts);
+                assertEquals(2, accounts.get(0).getVersion());
+                assertEquals("alice2", repo.readById(conn, 1L).getOwner());
+                assertEquals(2, repo.readById(conn, 1L).getVersion());
+
+                // Another writer updates the second account
+                Account concurrent = repo.readById(conn, 2L);
+                concurrent.setOwner("bobby");
+                repo.update(conn, concurrent);
+
+                accounts.get(1).setOwner("robert");
+                StaleEntityException e = assertThrows(StaleEntityException.class, () -> repo.update(conn, accounts));
+                assertArrayEquals(new int[]{1}, e.getStaleIndexes());
+                assertSame(accounts.get(1), e.getStaleEntities().get(0));
+                assertArrayEquals(new int[]{1, 0, 1}, e.getUpdateCounts());
+                assertEquals(2, accounts.get(1).getVersion());
+                assertEquals(2, accounts.get(0).getVersion());      // restored, since the transaction must be rolled back
+                assertEquals("bobby", repo.readById(conn, 2L).getOwner());
+
+                assertThrows(StaleEntityException.class, () -> repo.delete(conn, accounts.get(1)));
+                assertTrue(repo.existsById(conn, 2L));
+                repo.delete(conn, concurrent);
+                assertFalse(repo.existsById(conn, 2L));
+
+                // Bulk updates increment the version too
+                assertEquals(1, repo.updateWhere(conn, Map.of("owner", "carla"), Predicate.eq("id", 3L)));
+                assertThrows(StaleEntityException.class, () -> repo.delete(conn, accounts.get(2)));
+
+                // A failure while binding restores the versions already incremented and keeps the original exception
+                Repository<Account> failing = new Repository<>(Account.class);
+                failing.bindColumnToConverter("owner", new TypeConverter<String>() {
+                    @Override
+                    public String read(ResultSet resultSet, String columnLabel) throws SQLException {
+                        return resultSet.getString(columnLabel);
+                    }
+
+                    @Override
+                    public void write(java.sql.PreparedStatement statement, int index, String value) throws SQLException {
+                        if (value.equals("boom")) throw new SQLException("boom");
+                        statement.setString(index, value);
+                    }
+                });
+                Account first = failing.readById(conn, 1L);
+                int firstVersion = first.getVersion();
+                Account second = new Account(4L, "boom");
+                second.setVersion(5);
+                Account third = new Account(5L, "dave");
+                SQLException failure = assertThrows(SQLException.class, () -> failing.update(conn, Arrays.asList(first, second, third)));
+                assertEquals("boom", failure.getMessage());
+                assertEquals(firstVersion, first.getVersion());
+                assertEquals(5, second.getVersion());
+                assertNull(third.getVersion());
+            } finally {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Test
+    public void testOptimisticLockingWithoutUpdateCounts() throws SQLException {
+        Repository<Account> repo = new Repository<>(Account.class);
+        Connection conn = org.mockito.Mockito.mock(Connection.class);
+        java.sql.PreparedStatement statement = org.mockito.Mockito.mock(java.sql.PreparedStatement.class);
+        org.mockito.Mockito.when(conn.prepareStatement(org.mockito.ArgumentMatchers.anyString())).thenReturn(statement);
+        org.mockito.Mockito.when(statement.executeBatch()).thenReturn(new int[]{java.sql.Statement.SUCCESS_NO_INFO});
+
+        // Batches rewritten by the driver report no counts, so the version check fails instead of passing silently
+        Account account = new Account(1L, "alice");
+        account.setVersion(1);
+        SQLException e = assertThrows(SQLException.class, () -> repo.update(conn, account));
+        assertFalse(e instanceof StaleEntityException);
+        assertEquals(1, account.getVersion());
+        assertThrows(SQLException.class, () -> repo.delete(conn, account));
+    }
+
+    @Test
+    public void testPredicateColumnConverters() throws SQLException {
+        Repository<Event> repo = new Repository<>(Event.class);
+        repo.bindColumnToConverter("tags", TypeConverters.json(
+                text -> Arrays.asList(text.split(",")),
+                (List<String> tags) -> String.join(",", tags)));
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                repo.insert(conn, Arrays.asList(
+                        new Event(3001L, Event.Type.CREATED, Event.Priority.HIGH, null, null, null, Arrays.asList("a", "b")),
+                        new Event(3002L, Event.Type.CREATED, Event.Priority.LOW, null, null, null, null)));
+
+                // The ordinal enum is bound as INT through the column converter, as readBy does
+                List<Event> high = repo.readWhere(conn, Predicate.eq("priority", Event.Priority.HIGH));
+                assertEquals(1, high.size());
+                assertEquals(3001L, high.get(0).getId());
+                assertEquals(1, repo.getTotalElementsWhere(conn, Predicate.in("priority", Arrays.asList(Event.Priority.LOW))));
+                assertEquals(1, repo.scanWhere(conn, Predicate.eq("tags", Arrays.asList("a", "b")), e -> {}));
+                assertEquals(1, repo.updateWhere(conn, Map.of("type", Event.Type.UPDATED), Predicate.eq("priority", Event.Priority.LOW)));
+                assertEquals(Event.Type.UPDATED, repo.readById(conn, 3002L).getType());
+            } finally {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Test
+    public void testConnectionPoolRestoresDefaults() throws SQLException {
+        try (ConnectionPool pool = new ConnectionPool(dataSource).setMaxSize(1)) {
+            int isolation;
+            int fetchSize;
+            int maxRows;
+            int queryTimeout;
+            try (Connection conn = pool.getConnection()) {
+                isolation = conn.getTransactionIsolation();
+                try (java.sql.PreparedStatement statement = conn.prepareStatement("SELECT id FROM companies")) {
+                    fetchSize = statement.getFetchSize();
+                    maxRows = statement.getMaxRows();
+                    queryTimeout = statement.getQueryTimeout();
+                    statement.setFetchSize(7);
+                    statement.setMaxRows(3);
+                    statement.setQueryTimeout(5);
+                }
+                conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+                conn.setReadOnly(true);
+            }
+            try (Connection conn = pool.getConnection()) {
+                assertEquals(isolation, conn.getTransactionIsolation());
+                assertFalse(conn.isReadOnly());
+                try (java.sql.PreparedStatement statement = conn.prepareStatement("SELECT id FROM companies")) {
+                    assertEquals(fetchSize, statement.getFetchSize());
+                    assertEquals(maxRows, statement.getMaxRows());
+                    assertEquals(queryTimeout, statement.getQueryTimeout());
+                }
+            }
+            assertEquals(1, pool.getStatementCacheHits());
+
+            // The settings are fixed once a connection was borrowed
+            assertThrows(IllegalStateException.class, () -> pool.setMaxSize(5));
+            assertThrows(IllegalStateException.class, () -> pool.setLeakDetectionMillis(1000));
+        }
+    }
+
+    private static Connection recordingConnection(Connection connection, List<java.sql.Statement> statements) {
+        // Records the statements prepared on the connection, so a test can check that they were closed
+        return (Connection) java.lang.reflect.Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    Object result;
+                    try {
+                        result = method.invoke(connection, args);
+                    } catch (java.lang.reflect.InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    if (result instanceof java.sql.Statement) statements.add((java.sql.Statement) result);
+                    return result;
+                });
+    }
+
+    private static void assertAllClosed(List<java.sql.Statement> statements) throws SQLException {
+        assertFalse(statements.isEmpty());
+        for (java.sql.Statement statement : statements) {
+            assertTrue(statement.isClosed(), "Statement not closed");
+        }
+    }
 }